@@ -140,8 +140,18 @@ public abstract class AIHelper {
 	protected void invalidateChunkCache() {
 		if (minecraftWorld == null
 				|| mc.theWorld != minecraftWorld.getBackingWorld()) {
+			final NetworkHelper network = getNetworkHelper();
+			if (minecraftWorld != null && network != null) {
+				network.removeChunkChangeListener(minecraftWorld);
+				network.removeBlockChangeListener(minecraftWorld);
+			}
 			minecraftWorld = mc.theWorld == null ? null : new WorldData(
 					mc.theWorld, mc.thePlayer);
+			if (minecraftWorld != null && network != null) {
+				// Keeps the block set planes up to date.
+				network.addChunkChangeListener(minecraftWorld);
+				network.addBlockChangeListener(minecraftWorld);
+			}
 		}
 		if (minecraftWorld != null) {
 			minecraftWorld.invalidateChunkCache();
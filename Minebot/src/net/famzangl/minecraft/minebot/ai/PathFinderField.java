@@ -16,8 +16,13 @@
  *******************************************************************************/
 package net.famzangl.minecraft.minebot.ai;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.PriorityQueue;
 
@@ -42,7 +47,36 @@ public class PathFinderField implements Comparator<Integer> {
 	// Power of 2!
 	private static final int Y_LEVEL = 32;
 	private static int SIZE_X_Z = 256;
-	private static int FIELD_SIZE = (1 << 16) * Y_LEVEL;
+	public static final int FIELD_SIZE = (1 << 16) * Y_LEVEL;
+	/**
+	 * How far the search reaches from the start position in x and z direction.
+	 */
+	public static final int SEARCH_RADIUS_X_Z = SIZE_X_Z / 2;
+	/**
+	 * How far the search reaches from the start position in y direction.
+	 */
+	public static final int SEARCH_RADIUS_Y = Y_LEVEL / 2;
+	/**
+	 * How many steps the player may walk away from the search start before we
+	 * restart the search.
+	 */
+	private static final int MAX_LEAD_IN = 8;
+	/**
+	 * How far a node may be from a changed block so that the change can
+	 * influence it: Path finders look at the blocks around a node and up to
+	 * three blocks above it.
+	 */
+	private static final int BLOCK_INFLUENCE_X_Z = 1;
+	private static final int BLOCK_INFLUENCE_UP = 1;
+	private static final int BLOCK_INFLUENCE_DOWN = 3;
+	/**
+	 * How many blocks a single step can go up or down.
+	 */
+	private static final int MAX_STEP_Y = 3;
+	/**
+	 * If more blocks changed, we simply restart.
+	 */
+	private static final int MAX_CHANGED_BLOCKS = 64;
 	// Needs to be more than normal distance spread. Power of 2.
 	private static int FAST_DISTANCE_ACCESS = 64;
 
@@ -73,68 +107,125 @@ public class PathFinderField implements Comparator<Integer> {
 
 	private boolean isRunning = false;
 	/**
-	 * Stored:
-	 * 
-	 * 
+	 * How many nodes the current search expanded.
 	 */
-	private int[] field;
+	private int expandedNodes;
+	/**
+	 * The position the running search started at.
+	 */
+	private int startX, startY, startZ;
+	/**
+	 * The positions the player walked to since the search was started, newest
+	 * first. Each of them can walk to the next one and the last one can walk
+	 * to the start position.
+	 */
+	private final LinkedList<BlockPos> leadIn = new LinkedList<BlockPos>();
+	/**
+	 * The node data. Taken from the pool while a search is running.
+	 */
+	private PathFinderFieldStorage field;
 	private long startTime;
+	/**
+	 * The nodes that were cleared by the running repair, in the order they
+	 * were cleared. They are also marked in {@link PathFinderFieldStorage#getMarks()}.
+	 */
+	private int[] clearedNodes = new int[256];
+	private int clearedCount;
+
+	/**
+	 * If <code>true</code>, the nodes are stored in bricks of 4x4x4 blocks.
+	 * Otherwise, they are stored line by line.
+	 */
+	private final boolean brickLayout;
 
 	public PathFinderField() {
+		this(true);
 	}
 
+	/**
+	 * Creates a new path finder field.
+	 * 
+	 * @param brickLayout
+	 *            Store the nodes in bricks of 4x4x4 blocks. This is faster,
+	 *            since the neighbours of a node are in the same brick most of
+	 *            the time. The line by line layout is only there for
+	 *            comparison.
+	 */
+	protected PathFinderField(boolean brickLayout) {
+		this.brickLayout = brickLayout;
+	}
+
+	/*
+	 * The field is a torus: The index only depends on the world coordinates,
+	 * so moving the offset keeps all nodes that are still in the field at the
+	 * same index.
+	 * 
+	 * Brick layout: The lowest 6 bits are the position in the brick (x, z,
+	 * y), then follow 6 bits brick x, 6 bits brick z and 3 bits brick y.
+	 */
+
 	protected final int getIndexForBlock(int x, int y, int z) {
-		return x - data.offsetX & SIZE_X_Z - 1
-				| (z - data.offsetZ & SIZE_X_Z - 1) << 8
-				| (y - data.offsetY & Y_LEVEL - 1) << 16;
+		if (brickLayout) {
+			return x & 3 | (z & 3) << 2 | (y & 3) << 4 | (x & 0xfc) << 4
+					| (z & 0xfc) << 10 | (y & 0x1c) << 16;
+		} else {
+			return x & SIZE_X_Z - 1 | (z & SIZE_X_Z - 1) << 8
+					| (y & Y_LEVEL - 1) << 16;
+		}
 	}
 
 	protected final int getIndexForBlockSafe(int x, int y, int z) {
 		int dx = x - data.offsetX;
 		int dz = z - data.offsetZ;
 		int dy = y - data.offsetY;
-		return dx == (dx & SIZE_X_Z - 1) && dz == (dz & SIZE_X_Z - 1) && dy == (dy & Y_LEVEL - 1) ? dx | (dz << 8) | (dy << 16) : -1;
+		return dx == (dx & SIZE_X_Z - 1) && dz == (dz & SIZE_X_Z - 1)
+				&& dy == (dy & Y_LEVEL - 1) ? getIndexForBlock(x, y, z) : -1;
 	}
 
 	protected final int getX(int currentNode) {
-		return (currentNode & SIZE_X_Z - 1) + data.offsetX;
+		final int x = brickLayout ? currentNode & 3 | currentNode >> 4 & 0xfc
+				: currentNode;
+		return (x - data.offsetX & SIZE_X_Z - 1) + data.offsetX;
 	}
 
 	protected final int getY(int currentNode) {
-		return (currentNode >> 16 & Y_LEVEL - 1) + data.offsetY;
+		final int y = brickLayout ? currentNode >> 4 & 3 | currentNode >> 16
+				& 0x1c : currentNode >> 16;
+		return (y - data.offsetY & Y_LEVEL - 1) + data.offsetY;
 	}
 
 	protected final int getZ(int currentNode) {
-		return (currentNode >> 8 & SIZE_X_Z - 1) + data.offsetZ;
+		final int z = brickLayout ? currentNode >> 2 & 3 | currentNode >> 10
+				& 0xfc : currentNode >> 8;
+		return (z - data.offsetZ & SIZE_X_Z - 1) + data.offsetZ;
 	}
 
 	private boolean isVisited(int blockIndex) {
-		return (field[blockIndex] & FIELD_VISITED_MASK) == FIELD_VISITED_MASK;
+		return (field.get(blockIndex) & FIELD_VISITED_MASK) == FIELD_VISITED_MASK;
 	}
 
 	private void setVisited(int blockIndex) {
-		field[blockIndex] |= FIELD_VISITED_MASK;
+		field.set(blockIndex, field.get(blockIndex) | FIELD_VISITED_MASK);
 	}
 
 	private boolean isInQueue(int blockIndex) {
-		return (field[blockIndex] & FIELD_IN_QUEUE_MASK) != 0;
+		return (field.get(blockIndex) & FIELD_IN_QUEUE_MASK) != 0;
 	}
 
 	private void setInQueue(int blockIndex) {
-		field[blockIndex] |= FIELD_IN_QUEUE_MASK;
+		field.set(blockIndex, field.get(blockIndex) | FIELD_IN_QUEUE_MASK);
 	}
 
 	private int getDistance(int blockIndex) {
-		int inField = field[blockIndex];
+		int inField = field.get(blockIndex);
 		return (inField & FIELD_DISTANCE_SET_MASK) == 0 ? Integer.MAX_VALUE
 				: (inField & FIELD_DISTANCE_MASK) >> FIELD_DISTANCE_SHIFT;
 	}
 
 	private void setDistance(int blockIndex, int distance) {
-		field[blockIndex] &= ~FIELD_DISTANCE_MASK;
-		field[blockIndex] |= distance << FIELD_DISTANCE_SHIFT
-				& FIELD_DISTANCE_MASK;
-		field[blockIndex] |= FIELD_DISTANCE_SET_MASK;
+		int inField = field.get(blockIndex) & ~FIELD_DISTANCE_MASK;
+		inField |= distance << FIELD_DISTANCE_SHIFT & FIELD_DISTANCE_MASK;
+		field.set(blockIndex, inField | FIELD_DISTANCE_SET_MASK);
 	}
 
 	private void setMoveFrom(int newIndex, int currentNode) {
@@ -144,17 +235,19 @@ public class PathFinderField implements Comparator<Integer> {
 		final int oldx = getX(currentNode);
 		final int oldy = getY(currentNode);
 		final int oldz = getZ(currentNode);
-		field[newIndex] &= ~(FIELD_MOVEFROM_X_MASK | FIELD_MOVEFROM_Y_MASK | FIELD_MOVEFROM_Z_MASK);
-		field[newIndex] |= newx - oldx << FIELD_MOVEFROM_X_SHIFT
+		int inField = field.get(newIndex)
+				& ~(FIELD_MOVEFROM_X_MASK | FIELD_MOVEFROM_Y_MASK | FIELD_MOVEFROM_Z_MASK);
+		inField |= newx - oldx << FIELD_MOVEFROM_X_SHIFT
 				& FIELD_MOVEFROM_X_MASK;
-		field[newIndex] |= newy - oldy << FIELD_MOVEFROM_Y_SHIFT
+		inField |= newy - oldy << FIELD_MOVEFROM_Y_SHIFT
 				& FIELD_MOVEFROM_Y_MASK;
-		field[newIndex] |= newz - oldz << FIELD_MOVEFROM_Z_SHIFT
+		inField |= newz - oldz << FIELD_MOVEFROM_Z_SHIFT
 				& FIELD_MOVEFROM_Z_MASK;
+		field.set(newIndex, inField);
 	}
 
 	private int getFromDirectionMasked(int blockIndex, int mask, int shift) {
-		int res = (field[blockIndex] & mask) >> shift;
+		int res = (field.get(blockIndex) & mask) >> shift;
 		final int signBit = (mask >> shift) + 1 >> 1;
 		if ((res & signBit) != 0) {
 			res |= ~(mask >> shift);
@@ -177,9 +270,19 @@ public class PathFinderField implements Comparator<Integer> {
 				FIELD_MOVEFROM_Z_SHIFT);
 	}
 
+	/**
+	 * The value the queue is sorted by: The distance plus the estimated
+	 * distance to the destination.
+	 */
+	private int getPriority(int blockIndex) {
+		return getDistance(blockIndex)
+				+ estimateRemainingDistance(getX(blockIndex),
+						getY(blockIndex), getZ(blockIndex));
+	}
+
 	@Override
 	public int compare(Integer o1, Integer o2) {
-		int c1 = getDistance(o1) - getDistance(o2);
+		int c1 = getPriority(o1) - getPriority(o2);
 		// if (c1 == 0) {
 		// return o1 - o2;
 		// } else {
@@ -205,24 +308,35 @@ public class PathFinderField implements Comparator<Integer> {
 	}
 
 	protected boolean searchSomethingAround(int cx, int cy, int cz) {
-		if (data.offsetX != cx - SIZE_X_Z / 2
-				|| data.offsetY != cy - Y_LEVEL / 2
-				|| data.offsetZ != cz - SIZE_X_Z / 2) {
+		if (isRunning
+				&& (data.offsetX != cx - SIZE_X_Z / 2
+						|| data.offsetY != cy - Y_LEVEL / 2 || data.offsetZ != cz
+						- SIZE_X_Z / 2) && !moveCenter(cx, cy, cz)) {
 			LOGGER.debug(MARKER_PATH,
 					"Path finding center changed. Marking for restart.");
 			isRunning = false;
 		}
 		if (!isRunning) {
 			LOGGER.debug(MARKER_PATH, "Restart path finder.");
-			field = new int[FIELD_SIZE];
+			if (field == null) {
+				field = PathFinderFieldStorage.obtain(FIELD_SIZE);
+			} else {
+				field.nextGeneration();
+			}
 			data.offsetX = cx - SIZE_X_Z / 2;
 			data.offsetY = cy - Y_LEVEL / 2;
 			data.offsetZ = cz - SIZE_X_Z / 2;
+			startX = cx;
+			startY = cy;
+			startZ = cz;
+			leadIn.clear();
+			expandedNodes = 0;
 			pqClear();
+			searchStarted();
 			final int start = getIndexForBlock(cx, cy, cz);
 			setDistance(start, 1);
 			setInQueue(start);
-			pqAdd(start, 1);
+			pqAdd(start, getPriority(start));
 			final float startRating = rateDestination(start);
 			if (startRating >= 0) {
 				currentDest = new Dest(start, startRating);
@@ -239,7 +353,7 @@ public class PathFinderField implements Comparator<Integer> {
 			final int currentNode = pqPoll();
 			final int currentDistance = getDistance(currentNode);
 			if (currentDest != null
-					&& currentDistance + 1 > currentDest.destDistanceRating) {
+					&& getPriority(currentNode) + 1 > currentDest.destDistanceRating) {
 				pqClear();
 				break;
 			}
@@ -251,6 +365,7 @@ public class PathFinderField implements Comparator<Integer> {
 				}
 			}
 
+			expandedNodes++;
 			final int[] neighbours = getNeighbours(currentNode);
 			for (final int n : neighbours) {
 				if (n < 0) {
@@ -260,10 +375,11 @@ public class PathFinderField implements Comparator<Integer> {
 						+ currentDistance;
 				if (isVisited(n)) {
 					if (distance < getDistance(n)) {
-						LOGGER.error(
-								MARKER_PATH,
-								"A shorter path was found. THis should not happen. Node: %d.",
-								n);
+						// This can only happen after the field was moved and
+						// we found a shorter way through the new part.
+						LOGGER.trace(MARKER_PATH,
+								"A shorter path was found. Reopening node " + n);
+						reopen(n, distance, currentNode);
 					}
 					continue;
 				}
@@ -271,22 +387,23 @@ public class PathFinderField implements Comparator<Integer> {
 					setDistance(n, distance);
 					setMoveFrom(n, currentNode);
 					setInQueue(n);
-					pqAdd(n, distance);
+					pqAdd(n, getPriority(n));
 				} else {
-					int oldDistance = getDistance(n);
-					if (distance < oldDistance) {
+					int oldPriority = getPriority(n);
+					if (distance < getDistance(n)) {
 						setDistance(n, distance);
 						setMoveFrom(n, currentNode);
-						pqUpdate(n, oldDistance, distance);
+						pqUpdate(n, oldPriority, getPriority(n));
 					}
 				}
 			}
 			setVisited(currentNode);
 		}
 		if (pqEmpty()) {
-			LOGGER.debug(MARKER_PATH, "Path found to " + currentDest);
+			LOGGER.debug(MARKER_PATH, "Path found to " + currentDest + " after "
+					+ expandedNodes + " expanded nodes.");
 			if (currentDest != null) {
-				planPathTo(currentDest.destNode, cx, cy, cz);
+				planPathTo(currentDest.destNode, startX, startY, startZ);
 				terminated();
 			} else {
 				terminated();
@@ -303,12 +420,328 @@ public class PathFinderField implements Comparator<Integer> {
 		}
 	}
 
+	private void reopen(int node, int distance, int fromNode) {
+		field.set(node, field.get(node) & ~FIELD_VISITED_MASK);
+		setDistance(node, distance);
+		setMoveFrom(node, fromNode);
+		setInQueue(node);
+		pqAdd(node, getPriority(node));
+	}
+
+	/**
+	 * Moves the field so that it is centered around the new player position,
+	 * keeping the search tree. The search still starts at the old start
+	 * position, we remember how to walk back there.
+	 * 
+	 * @return <code>false</code> if the search needs to be restarted.
+	 */
+	private boolean moveCenter(int cx, int cy, int cz) {
+		if (cx == startX && cy == startY && cz == startZ) {
+			leadIn.clear();
+		} else {
+			final BlockPos newPos = new BlockPos(cx, cy, cz);
+			final int knownIndex = leadIn.indexOf(newPos);
+			if (knownIndex >= 0) {
+				// We walked back.
+				for (int i = 0; i < knownIndex; i++) {
+					leadIn.removeFirst();
+				}
+			} else if (leadIn.size() < MAX_LEAD_IN
+					&& canWalkBack(newPos, leadIn.isEmpty() ? new BlockPos(
+							startX, startY, startZ) : leadIn.getFirst())) {
+				leadIn.addFirst(newPos);
+			} else {
+				return false;
+			}
+		}
+
+		LOGGER.debug(MARKER_PATH, "Path finding center changed. Moving field.");
+		moveField(cx - SIZE_X_Z / 2, cy - Y_LEVEL / 2, cz - SIZE_X_Z / 2);
+		return true;
+	}
+
+	private boolean canWalkBack(BlockPos from, BlockPos to) {
+		final int fromIndex = getIndexForBlockSafe(from.getX(), from.getY(),
+				from.getZ());
+		final int toIndex = getIndexForBlockSafe(to.getX(), to.getY(),
+				to.getZ());
+		if (fromIndex < 0 || toIndex < 0) {
+			return false;
+		}
+		for (final int n : getNeighbours(fromIndex)) {
+			if (n == toIndex) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves the field offset. All nodes that leave the field are reset, as
+	 * well as all nodes whose path goes through such a node. The visited nodes
+	 * around them are expanded again.
+	 * <p>
+	 * Only the slabs that leave the field are touched. The nodes that enter
+	 * the field have the same indexes, so they are empty afterwards.
+	 */
+	private void moveField(int newOffsetX, int newOffsetY, int newOffsetZ) {
+		final int oldX = data.offsetX;
+		final int oldY = data.offsetY;
+		final int oldZ = data.offsetZ;
+		clearBox(leavingMin(oldX, newOffsetX, SIZE_X_Z),
+				leavingMax(oldX, newOffsetX, SIZE_X_Z), oldY, oldY + Y_LEVEL,
+				oldZ, oldZ + SIZE_X_Z);
+		clearBox(oldX, oldX + SIZE_X_Z, leavingMin(oldY, newOffsetY, Y_LEVEL),
+				leavingMax(oldY, newOffsetY, Y_LEVEL), oldZ, oldZ + SIZE_X_Z);
+		clearBox(oldX, oldX + SIZE_X_Z, oldY, oldY + Y_LEVEL,
+				leavingMin(oldZ, newOffsetZ, SIZE_X_Z),
+				leavingMax(oldZ, newOffsetZ, SIZE_X_Z));
+		// Their children still need the old coordinates.
+		clearOrphans();
+
+		data.offsetX = newOffsetX;
+		data.offsetY = newOffsetY;
+		data.offsetZ = newOffsetZ;
+		requeueAroundCleared();
+	}
+
+	/**
+	 * @return The first coordinate of the slab that leaves the field when the
+	 *         offset is moved in one direction.
+	 */
+	private static int leavingMin(int oldOffset, int newOffset, int size) {
+		return newOffset > oldOffset ? oldOffset : Math.max(newOffset + size,
+				oldOffset);
+	}
+
+	/**
+	 * @return The end (exclusive) of the slab that leaves the field.
+	 */
+	private static int leavingMax(int oldOffset, int newOffset, int size) {
+		return newOffset > oldOffset ? Math.min(newOffset, oldOffset + size)
+				: oldOffset + size;
+	}
+
+	private void clearBox(int minX, int maxX, int minY, int maxY, int minZ,
+			int maxZ) {
+		for (int y = minY; y < maxY; y++) {
+			for (int z = minZ; z < maxZ; z++) {
+				for (int x = minX; x < maxX; x++) {
+					clearNode(getIndexForBlock(x, y, z));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Repairs the search tree after some blocks in the world changed. Only the
+	 * nodes around the changed blocks and the nodes whose path goes through
+	 * them are reset. The visited nodes around them are expanded again, so
+	 * that their distances are recomputed on the next search call.
+	 * <p>
+	 * Needs to be called before the search is continued.
+	 * 
+	 * @param changed
+	 *            The blocks that changed.
+	 */
+	protected void blocksChanged(Collection<BlockPos> changed) {
+		if (!isRunning || changed.isEmpty()) {
+			return;
+		}
+		if (changed.size() > MAX_CHANGED_BLOCKS) {
+			LOGGER.debug(MARKER_PATH, changed.size()
+					+ " blocks changed. Marking for restart.");
+			isRunning = false;
+			return;
+		}
+
+		for (final BlockPos p : changed) {
+			for (int y = p.getY() - BLOCK_INFLUENCE_DOWN; y <= p.getY()
+					+ BLOCK_INFLUENCE_UP; y++) {
+				for (int x = p.getX() - BLOCK_INFLUENCE_X_Z; x <= p.getX()
+						+ BLOCK_INFLUENCE_X_Z; x++) {
+					for (int z = p.getZ() - BLOCK_INFLUENCE_X_Z; z <= p.getZ()
+							+ BLOCK_INFLUENCE_X_Z; z++) {
+						final int n = getIndexForBlockSafe(x, y, z);
+						if (n >= 0) {
+							clearNode(n);
+						}
+					}
+				}
+			}
+		}
+		if (clearedCount == 0) {
+			return;
+		}
+		final BitSet cleared = field.getMarks();
+		if (cleared.get(getIndexForBlock(startX, startY, startZ))
+				|| leadInCleared(cleared)) {
+			LOGGER.debug(MARKER_PATH,
+					"Block at search start changed. Marking for restart.");
+			isRunning = false;
+			resetCleared();
+			return;
+		}
+
+		LOGGER.debug(MARKER_PATH, "Repairing search tree after "
+				+ changed.size() + " block changes.");
+		clearOrphans();
+		requeueAroundCleared();
+	}
+
+	private boolean leadInCleared(BitSet cleared) {
+		for (final BlockPos p : leadIn) {
+			if (cleared.get(getIndexForBlock(p.getX(), p.getY(), p.getZ()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Expands the visited nodes around the cleared nodes again and ends the
+	 * repair.
+	 */
+	private void requeueAroundCleared() {
+		final BitSet cleared = field.getMarks();
+		final ArrayList<Integer> queued = new ArrayList<Integer>();
+		for (int slot = 0; slot < FAST_DISTANCE_ACCESS; slot++) {
+			for (int i = 0; i < pqByDistanceFill[slot]; i++) {
+				final int n = pqByDistance[slot][i];
+				if (!cleared.get(n)) {
+					queued.add(n);
+				}
+			}
+		}
+		for (final int n : pq) {
+			if (!cleared.get(n)) {
+				queued.add(n);
+			}
+		}
+
+		// Expand everything next to a cleared node again.
+		for (int k = 0; k < clearedCount; k++) {
+			final int i = clearedNodes[k];
+			final int x = getX(i);
+			final int y = getY(i);
+			final int z = getZ(i);
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -MAX_STEP_Y; dy <= MAX_STEP_Y; dy++) {
+					for (int dz = -1; dz <= 1; dz++) {
+						final int n = getIndexForBlockSafe(x + dx, y + dy, z
+								+ dz);
+						if (n >= 0 && !cleared.get(n) && isVisited(n)) {
+							field.set(n, field.get(n) & ~FIELD_VISITED_MASK);
+							setInQueue(n);
+							queued.add(n);
+						}
+					}
+				}
+			}
+		}
+
+		resetCleared();
+		pqClear();
+		Collections.sort(queued, this);
+		for (final int n : queued) {
+			pqAdd(n, getPriority(n));
+		}
+	}
+
+	/**
+	 * Clears all nodes that have a path that goes through a cleared node. The
+	 * children of a node are the neighbours that were reached from it, so
+	 * only the nodes around the cleared ones need to be looked at.
+	 */
+	private void clearOrphans() {
+		final BitSet cleared = field.getMarks();
+		// clearedCount grows while we walk down the tree.
+		for (int k = 0; k < clearedCount; k++) {
+			final int parent = clearedNodes[k];
+			final int x = getX(parent);
+			final int y = getY(parent);
+			final int z = getZ(parent);
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -MAX_STEP_Y; dy <= MAX_STEP_Y; dy++) {
+					for (int dz = -1; dz <= 1; dz++) {
+						final int n = getIndexForBlockSafe(x + dx, y + dy, z
+								+ dz);
+						if (n >= 0 && !cleared.get(n)
+								&& getDistance(n) != Integer.MAX_VALUE
+								&& getFromDirectionX(n) == dx
+								&& getFromDirectionY(n) == dy
+								&& getFromDirectionZ(n) == dz) {
+							clearNode(n);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void clearNode(int node) {
+		final BitSet cleared = field.getMarks();
+		if (cleared.get(node)) {
+			return;
+		}
+		if (field.get(node) != 0) {
+			field.set(node, 0);
+		}
+		cleared.set(node);
+		if (clearedCount == clearedNodes.length) {
+			clearedNodes = Arrays.copyOf(clearedNodes, clearedCount * 2);
+		}
+		clearedNodes[clearedCount++] = node;
+		if (currentDest != null && currentDest.destNode == node) {
+			currentDest = null;
+		}
+	}
+
+	/**
+	 * Removes the marks of the cleared nodes, so that the storage can be used
+	 * for the next repair.
+	 */
+	private void resetCleared() {
+		final BitSet cleared = field.getMarks();
+		for (int k = 0; k < clearedCount; k++) {
+			cleared.clear(clearedNodes[k]);
+		}
+		clearedCount = 0;
+	}
+
+	/**
+	 * Adds the way from the current player position to the start of the
+	 * search.
+	 * 
+	 * @param path
+	 *            The path, starting at the search start.
+	 */
+	private void addLeadIn(LinkedList<BlockPos> path) {
+		for (int i = 0; i < leadIn.size(); i++) {
+			int onPath = path.lastIndexOf(leadIn.get(i));
+			if (onPath >= 0) {
+				// We are already on the path.
+				for (int j = 0; j < onPath; j++) {
+					path.removeFirst();
+				}
+				for (int j = i - 1; j >= 0; j--) {
+					path.addFirst(leadIn.get(j));
+				}
+				return;
+			}
+		}
+		for (Iterator<BlockPos> it = leadIn.descendingIterator(); it
+				.hasNext();) {
+			path.addFirst(it.next());
+		}
+	}
+
 	private void pqStats() {
 		int min = Integer.MAX_VALUE;
 		int max = 0;
 		for (Integer i : pq) {
-			min = Math.min(min, getDistance(i));
-			max = Math.max(max, getDistance(i));
+			min = Math.min(min, getPriority(i));
+			max = Math.max(max, getPriority(i));
 		}
 		LOGGER.debug(MARKER_PATH, "Current priority queue range: " + min + " to " + max);
 	}
@@ -319,7 +752,11 @@ public class PathFinderField implements Comparator<Integer> {
 
 	private void terminated() {
 		isRunning = false;
-		field = null;
+		leadIn.clear();
+		if (field != null) {
+			PathFinderFieldStorage.release(field);
+			field = null;
+		}
 		pqClear();
 		currentDest = null;
 	}
@@ -328,6 +765,13 @@ public class PathFinderField implements Comparator<Integer> {
 		terminated();
 	}
 
+	/**
+	 * @return <code>true</code> if a search was started and needs more time.
+	 */
+	protected boolean isSearchRunning() {
+		return isRunning;
+	}
+
 	protected int distanceFor(int from, int to) {
 		return 1;
 	}
@@ -351,6 +795,7 @@ public class PathFinderField implements Comparator<Integer> {
 			cz -= getFromDirectionZ(current);
 		}
 		path.addFirst(new BlockPos(origX, origY, origZ));
+		addLeadIn(path);
 		foundPath(path);
 	}
 
@@ -384,6 +829,48 @@ public class PathFinderField implements Comparator<Integer> {
 		return distance;
 	}
 
+	/**
+	 * Called whenever a new search is started, before the first node is
+	 * added. Path finders can prepare the data
+	 * {@link #estimateRemainingDistance(int, int, int)} needs here, since the
+	 * estimate may not change while the search is running.
+	 */
+	protected void searchStarted() {
+	}
+
+	/**
+	 * Estimates the distance from a given block to the nearest destination.
+	 * This allows the search to go into the direction of the destination
+	 * first. The default is 0, which searches in all directions.
+	 * <p>
+	 * The estimate may never be more than the real distance and may not
+	 * change by more than {@link #distanceFor(int, int)} between two
+	 * neighbours. Otherwise, the path found might not be the best one. It is
+	 * called for every node that is queued, so it should be fast.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The estimated distance.
+	 * @see #estimateWalkDistance(int, int, int, int, int, int)
+	 */
+	protected int estimateRemainingDistance(int x, int y, int z) {
+		return 0;
+	}
+
+	/**
+	 * A lower bound of the distance between two blocks for all path finders
+	 * that need at least distance 1 per step and change x and z by at most
+	 * one block per step.
+	 * 
+	 * @return The estimated distance.
+	 */
+	protected static int estimateWalkDistance(int x1, int y1, int z1,
+			int x2, int y2, int z2) {
+		return Math.max(Math.abs(x1 - x2) + Math.abs(z1 - z2),
+				Math.abs(y1 - y2));
+	}
+
 	private final int[] res = new int[10];
 
 	protected int[] getNeighbours(int currentNode) {
@@ -420,7 +907,7 @@ public class PathFinderField implements Comparator<Integer> {
 						+ getFromDirectionX(nodeId) + ", fromY="
 						+ getFromDirectionY(nodeId) + ", fromZ="
 						+ getFromDirectionZ(nodeId) + ", data="
-						+ Integer.toHexString(field[nodeId]));
+						+ Integer.toHexString(field.get(nodeId)));
 	}
 
 	private void pqClear() {
@@ -435,9 +922,9 @@ public class PathFinderField implements Comparator<Integer> {
 		return pq.isEmpty() && pqMinDistance < 0;
 	}
 
-	private void pqUpdate(int n, int oldDistance, int distance) {
-		pqRemove(n, oldDistance);
-		pqAdd(n, distance);
+	private void pqUpdate(int n, int oldPriority, int priority) {
+		pqRemove(n, oldPriority);
+		pqAdd(n, priority);
 	}
 
 	private void pqRemove(int n, int oldDistance) {
@@ -479,9 +966,9 @@ public class PathFinderField implements Comparator<Integer> {
 	}
 
 	private void pqAdd(int node, int distance) {
-		if (getDistance(node) != distance) {
+		if (getPriority(node) != distance) {
 			throw new IllegalArgumentException("Got: " + distance
-					+ " but real distance is " + getDistance(node));
+					+ " but real priority is " + getPriority(node));
 		}
 		if (pqMinDistance < 0) {
 			pqMinDistance = distance;
@@ -540,11 +1027,11 @@ public class PathFinderField implements Comparator<Integer> {
 		int nextMin = -1;
 		int max = pqMinDistance + FAST_DISTANCE_ACCESS;
 		if (!pq.isEmpty()) {
-			max = Math.max(max, pq.poll());
+			max = Math.max(max, getPriority(pq.peek()) + 1);
 		}
 		for (int d = pqMinDistance; d < max; d++) {
 			pqMinDistance = d;
-			while (!pq.isEmpty() && getDistance(pq.peek()) == d) {
+			while (!pq.isEmpty() && getPriority(pq.peek()) == d) {
 				pqAdd(pq.poll(), d);
 			}
 
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The node data of a {@link PathFinderField}. Those are big, so they are
+ * pooled and reused by all path finders.
+ * <p>
+ * Every search uses a new generation. Entries that were written in an older
+ * generation are read as 0, so the array never needs to be cleared on a
+ * restart.
+ *
+ * @author Michael Zangl
+ */
+public class PathFinderFieldStorage {
+	/**
+	 * How many unused storages we keep.
+	 */
+	private static final int MAX_POOLED = 3;
+
+	private static final ArrayList<PathFinderFieldStorage> pool = new ArrayList<PathFinderFieldStorage>();
+	private static int allocatedCount;
+
+	private final int[] field;
+	/**
+	 * The generation in which each field entry was written.
+	 */
+	private final char[] generations;
+	private char generation;
+	/**
+	 * Scratch marks, one per entry. They are not reset with a new generation,
+	 * only when the storage is obtained: Whoever sets marks during a search
+	 * has to clear them again.
+	 */
+	private final BitSet marks;
+
+	private PathFinderFieldStorage(int size) {
+		field = new int[size];
+		generations = new char[size];
+		marks = new BitSet(size);
+	}
+
+	/**
+	 * Gets a storage from the pool or allocates a new one.
+	 *
+	 * @param size
+	 *            The number of nodes.
+	 * @return A storage that is empty.
+	 */
+	public static PathFinderFieldStorage obtain(int size) {
+		PathFinderFieldStorage storage = null;
+		synchronized (pool) {
+			for (int i = pool.size() - 1; i >= 0; i--) {
+				if (pool.get(i).size() == size) {
+					storage = pool.remove(i);
+					break;
+				}
+			}
+			if (storage == null) {
+				allocatedCount++;
+			}
+		}
+		if (storage == null) {
+			storage = new PathFinderFieldStorage(size);
+		}
+		storage.nextGeneration();
+		// Only touches the words that have marks set.
+		storage.marks.clear();
+		return storage;
+	}
+
+	/**
+	 * Returns a storage to the pool. It may not be used afterwards.
+	 *
+	 * @param storage
+	 *            The storage.
+	 */
+	public static void release(PathFinderFieldStorage storage) {
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED && !pool.contains(storage)) {
+				pool.add(storage);
+			}
+		}
+	}
+
+	/**
+	 * @return How many storages were allocated since the game was started.
+	 */
+	public static int getAllocatedCount() {
+		synchronized (pool) {
+			return allocatedCount;
+		}
+	}
+
+	/**
+	 * Marks all entries as 0 without touching them.
+	 */
+	public void nextGeneration() {
+		generation++;
+		if (generation == 0) {
+			// Wrapped around. This happens every 65535 searches.
+			Arrays.fill(generations, (char) 0);
+			generation = 1;
+		}
+	}
+
+	public int get(int index) {
+		return generations[index] == generation ? field[index] : 0;
+	}
+
+	public void set(int index, int value) {
+		field[index] = value;
+		generations[index] = generation;
+	}
+
+	/**
+	 * @return Scratch marks for the entries. All marks are cleared when the
+	 *         storage is obtained. Code that sets marks should clear them
+	 *         again when it is done, since a new generation keeps them.
+	 */
+	public BitSet getMarks() {
+		return marks;
+	}
+
+	public int size() {
+		return field.length;
+	}
+}
@@ -23,6 +23,7 @@ import net.famzangl.minecraft.minebot.ai.command.AICommandParameter;
 import net.famzangl.minecraft.minebot.ai.command.ParameterType;
 import net.famzangl.minecraft.minebot.ai.command.SafeStrategyRule;
 import net.famzangl.minecraft.minebot.ai.path.GoToPathfinder;
+import net.famzangl.minecraft.minebot.ai.path.LongDistancePathfinder;
 import net.famzangl.minecraft.minebot.ai.strategy.AIStrategy;
 import net.famzangl.minecraft.minebot.ai.strategy.PathFinderStrategy;
 import net.minecraft.util.BlockPos;
@@ -34,7 +35,13 @@ public class CommandPathfind {
 			AIHelper helper,
 			@AICommandParameter(type = ParameterType.FIXED, description = "", fixedName = "pathfind") String nameArg,
 			@AICommandParameter(type = ParameterType.POSITION, description = "Position to walk to") BlockPos position) {
-		return new PathFinderStrategy(new GoToPathfinder(position), "Go to "
-				+ position);
+		if (LongDistancePathfinder.isInSearchArea(helper.getPlayerPosition(),
+				position)) {
+			return new PathFinderStrategy(new GoToPathfinder(position),
+					"Go to " + position);
+		} else {
+			return new PathFinderStrategy(
+					new LongDistancePathfinder(position), "Go to " + position);
+		}
 	}
 }
@@ -1,19 +1,28 @@
 package net.famzangl.minecraft.minebot.ai.commands;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 import net.famzangl.minecraft.minebot.ai.AIHelper;
+import net.famzangl.minecraft.minebot.ai.PathFinderField;
+import net.famzangl.minecraft.minebot.ai.PathFinderFieldStorage;
 import net.famzangl.minecraft.minebot.ai.command.AICommand;
 import net.famzangl.minecraft.minebot.ai.command.AICommandInvocation;
 import net.famzangl.minecraft.minebot.ai.command.AICommandParameter;
 import net.famzangl.minecraft.minebot.ai.command.ParameterType;
+import net.famzangl.minecraft.minebot.ai.path.MovePathFinder;
+import net.famzangl.minecraft.minebot.ai.path.TaskReceiver;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockMetaSet;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSets;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
 import net.famzangl.minecraft.minebot.ai.strategy.AIStrategy;
 import net.famzangl.minecraft.minebot.ai.strategy.RunOnceStrategy;
+import net.famzangl.minecraft.minebot.ai.task.AITask;
 import net.famzangl.minecraft.minebot.ai.utils.BlockArea;
 import net.famzangl.minecraft.minebot.ai.utils.BlockArea.AreaVisitor;
 import net.famzangl.minecraft.minebot.ai.utils.BlockCuboid;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
 import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.init.Blocks;
 import net.minecraft.util.BlockPos;
@@ -64,6 +73,7 @@ public class CommandTestMinectaft {
 				accessNativeBlocksAroundPlayer(helper.getWorld(),
 						helper.getMinecraft().theWorld);
 				accessBlocksAroundPlayer(helper.getWorld());
+				accessBlocksInSearchArea(helper.getWorld());
 				accessNativeBlocksAroundPlayerLoop(helper.getWorld(),
 						helper.getMinecraft().theWorld);
 				accessNativeBlocksAroundPlayerLoopMutableBP(helper.getWorld(),
@@ -72,6 +82,13 @@ public class CommandTestMinectaft {
 				accessBlockSetAroundPlayer(helper.getWorld());
 				accessBlockMetaSetAroundPlayer(helper.getWorld());
 				accessBlockSetAroundPlayerMultiple(helper.getWorld());
+				allocatePathFinderFieldPerRestart();
+				reusePathFinderFieldPerRestart();
+				searchAroundPlayer(helper, false);
+				searchAroundPlayer(helper, true);
+				searchAroundPlayer(helper, false);
+				searchAroundPlayer(helper, true);
+				System.out.println(MinebotExecutor.getStatistics());
 			}
 		};
 	}
@@ -112,6 +129,36 @@ public class CommandTestMinectaft {
 		done("accessBlocksAroundPlayer", start);
 	}
 
+	/**
+	 * Accesses the blocks the path finder may access, row by row. Compare
+	 * this to {@link #accessBlocksAroundPlayer(WorldData)}: A search touches
+	 * far more chunks, so the chunk cache needs to hold all of them.
+	 * 
+	 * @param world
+	 */
+	private static void accessBlocksInSearchArea(WorldData world) {
+		BlockPos pos = world.getPlayerPosition();
+		int minX = pos.getX() - PathFinderField.SEARCH_RADIUS_X_Z;
+		int minY = pos.getY() - PathFinderField.SEARCH_RADIUS_Y;
+		int minZ = pos.getZ() - PathFinderField.SEARCH_RADIUS_X_Z;
+		int maxX = pos.getX() + PathFinderField.SEARCH_RADIUS_X_Z;
+		int maxY = pos.getY() + PathFinderField.SEARCH_RADIUS_Y;
+		int maxZ = pos.getZ() + PathFinderField.SEARCH_RADIUS_X_Z;
+		long start = start();
+		for (int i = 0; i < TEST_RUNS; i++) {
+			// Like a new game tick.
+			world.invalidateChunkCache();
+			for (int y = minY; y <= maxY; y++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					for (int x = minX; x <= maxX; x++) {
+						world.getBlockIdWithMeta(x, y, z);
+					}
+				}
+			}
+		}
+		done("accessBlocksInSearchArea", start);
+	}
+
 	private static void accessNativeBlocksAroundPlayer(WorldData world,
 			final WorldClient theWorld) {
 		BlockArea area = blocksAroundPlayer(world);
@@ -254,6 +301,92 @@ public class CommandTestMinectaft {
 	}
 
 
+	private static void allocatePathFinderFieldPerRestart() {
+		long start = start();
+		long startAllocated = allocatedBytes();
+		for (int i = 0; i < TEST_RUNS; i++) {
+			int[] field = new int[PathFinderField.FIELD_SIZE];
+			field[i] = i;
+		}
+		done("allocatePathFinderFieldPerRestart", start, startAllocated);
+	}
+
+	private static void reusePathFinderFieldPerRestart() {
+		long start = start();
+		long startAllocated = allocatedBytes();
+		for (int i = 0; i < TEST_RUNS; i++) {
+			PathFinderFieldStorage field = PathFinderFieldStorage
+					.obtain(PathFinderField.FIELD_SIZE);
+			field.set(i, i);
+			PathFinderFieldStorage.release(field);
+		}
+		done("reusePathFinderFieldPerRestart", start, startAllocated);
+	}
+
+	private static final class ExpansionCounter extends MovePathFinder {
+		private long expansions;
+
+		public ExpansionCounter(boolean brickLayout) {
+			super(brickLayout);
+		}
+
+		@Override
+		protected float rateDestination(int distance, int x, int y, int z) {
+			// Search the whole area.
+			return -1;
+		}
+
+		@Override
+		protected int[] getNeighbours(int currentNode) {
+			expansions++;
+			return super.getNeighbours(currentNode);
+		}
+
+		@Override
+		protected void noPathFound() {
+		}
+	}
+
+	private static void searchAroundPlayer(AIHelper helper, boolean brickLayout) {
+		ExpansionCounter counter = new ExpansionCounter(brickLayout);
+		TaskReceiver ignore = new TaskReceiver() {
+			@Override
+			public void addTask(AITask task) {
+			}
+		};
+		long start = start();
+		while (!counter.searchSomethingAround(helper.getPlayerPosition(),
+				helper, helper.getWorld(), ignore)) {
+		}
+		long time = System.currentTimeMillis() - start;
+		System.out.println("searchAroundPlayer("
+				+ (brickLayout ? "brick" : "linear") + "): " + time + "ms, "
+				+ counter.expansions + " expansions, "
+				+ counter.expansions * 1000 / Math.max(time, 1)
+				+ " expansions/s");
+	}
+
+	/**
+	 * @return The number of bytes allocated by this thread or -1 if the VM
+	 *         does not support it.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		} else {
+			return -1;
+		}
+	}
+
+	private static void done(String string, long start, long startAllocated) {
+		long end = System.currentTimeMillis();
+		long allocated = allocatedBytes() - startAllocated;
+		System.out.println(string + ": " + (end - start) + "ms, "
+				+ allocated / 1024 / TEST_RUNS + "KiB allocated per run");
+	}
+
 	private static void done(String string, long start) {
 		long end = System.currentTimeMillis();
 		System.out.println(string + ": " + (end - start) + "ms");
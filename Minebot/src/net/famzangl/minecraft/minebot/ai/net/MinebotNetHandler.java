@@ -36,6 +36,8 @@ import net.minecraft.network.play.client.C01PacketChatMessage;
 import net.minecraft.network.play.client.C14PacketTabComplete;
 import net.minecraft.network.play.server.S02PacketChat;
 import net.minecraft.network.play.server.S21PacketChunkData;
+import net.minecraft.network.play.server.S22PacketMultiBlockChange;
+import net.minecraft.network.play.server.S22PacketMultiBlockChange.BlockUpdateData;
 import net.minecraft.network.play.server.S23PacketBlockChange;
 import net.minecraft.network.play.server.S24PacketBlockAction;
 import net.minecraft.network.play.server.S26PacketMapChunkBulk;
@@ -103,6 +105,8 @@ public class MinebotNetHandler extends NetHandlerPlayClient implements
 
 	private final CopyOnWriteArrayList<ChunkListener> listeners = new CopyOnWriteArrayList<ChunkListener>();
 
+	private final CopyOnWriteArrayList<BlockChangeListener> blockListeners = new CopyOnWriteArrayList<BlockChangeListener>();
+
 	private String lastSendTabComplete;
 
 	private final ArrayList<PersistentChat> chatMessages = new ArrayList<PersistentChat>();
@@ -256,6 +260,14 @@ public class MinebotNetHandler extends NetHandlerPlayClient implements
 		super.handleBlockChange(packetIn);
 	}
 
+	@Override
+	public void handleMultiBlockChange(S22PacketMultiBlockChange packetIn) {
+		for (BlockUpdateData data : packetIn.func_179844_a()) {
+			blockChange(data.func_180090_a());
+		}
+		super.handleMultiBlockChange(packetIn);
+	}
+
 	@Override
 	public void handleBlockAction(S24PacketBlockAction packetIn) {
 		blockChange(packetIn.func_179825_a());
@@ -265,7 +277,15 @@ public class MinebotNetHandler extends NetHandlerPlayClient implements
 	private void blockChange(BlockPos pos) {
 		int chunkPosX = pos.getX() >> 4;
 		int chunkPosZ = pos.getZ() >> 4;
-		fireChunkChange(chunkPosX, chunkPosZ);
+		for (ChunkListener l : listeners) {
+			// Those are told about the block instead.
+			if (!blockListeners.contains(l)) {
+				l.chunkChanged(chunkPosX, chunkPosZ);
+			}
+		}
+		for (BlockChangeListener l : blockListeners) {
+			l.blockChanged(pos);
+		}
 	}
 
 	private void fireChunkChange(int chunkPosX, int chunkPosZ) {
@@ -284,6 +304,16 @@ public class MinebotNetHandler extends NetHandlerPlayClient implements
 		listeners.remove(l);
 	}
 
+	@Override
+	public void addBlockChangeListener(BlockChangeListener l) {
+		blockListeners.add(l);
+	}
+
+	@Override
+	public void removeBlockChangeListener(BlockChangeListener l) {
+		blockListeners.remove(l);
+	}
+
 	@Override
 	public void handleChat(S02PacketChat packetIn) {
 		if (mcIn.isCallingFromMinecraftThread()) {
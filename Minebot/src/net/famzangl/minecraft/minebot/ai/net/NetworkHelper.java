@@ -15,6 +15,10 @@ public interface NetworkHelper {
 
 	void removeChunkChangeListener(ChunkListener l);
 
+	void addBlockChangeListener(BlockChangeListener l);
+
+	void removeBlockChangeListener(BlockChangeListener l);
+
 	/**
 	 * Gets a list of chat messages received since game start.
 	 * 
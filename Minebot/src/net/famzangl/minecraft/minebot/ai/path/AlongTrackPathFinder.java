@@ -49,4 +49,36 @@ public class AlongTrackPathFinder extends MovePathFinder {
 		return Math.abs(x - cx + z - cz);
 	}
 
+	/**
+	 * Gets a lower bound for the walk distance from the given position to the
+	 * nearest position on a segment of the track.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param firstStep
+	 *            The step number the segment starts at.
+	 * @param lastStep
+	 *            The last step number of the segment or -1 if it does not
+	 *            end.
+	 * @return The distance.
+	 */
+	protected int estimateDistanceToTrack(int x, int y, int z, int firstStep,
+			int lastStep) {
+		int along, aside;
+		if (dx != 0) {
+			along = dx * (x - cx);
+			aside = Math.abs(z - cz);
+		} else {
+			along = dz * (z - cz);
+			aside = Math.abs(x - cx);
+		}
+		if (along < firstStep) {
+			aside += firstStep - along;
+		} else if (lastStep >= 0 && along > lastStep) {
+			aside += along - lastStep;
+		}
+		return Math.max(aside, Math.abs(y - cy));
+	}
+
 }
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.famzangl.minecraft.minebot.ai.AIHelper;
+import net.famzangl.minecraft.minebot.ai.PathFinderField;
+import net.famzangl.minecraft.minebot.ai.net.BlockChangeListener;
+import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
+import net.famzangl.minecraft.minebot.ai.path.world.WorldSnapshot;
+import net.famzangl.minecraft.minebot.ai.task.AITask;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
+import net.minecraft.util.BlockPos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+/**
+ * Runs a {@link MovePathFinder} on a snapshot of the world on the
+ * {@link MinebotExecutor}. The tasks the path finder creates are collected and can be fetched
+ * on the client thread as soon as {@link #isDone()} returns <code>true</code>.
+ * <p>
+ * Block changes in the searched area are collected. On the next
+ * {@link #updateWorld(WorldData)}, a new snapshot is taken and handed to the
+ * search together with the changes, so that the path finder can repair its
+ * field. Searches on an expected future world are canceled instead.
+ *
+ * @author Michael Zangl
+ */
+public class BackgroundPathSearch extends MinebotExecutor.Job implements
+		TaskReceiver, BlockChangeListener {
+	private static final Marker MARKER_PATH = MarkerManager.getMarker("path");
+	private static final Logger LOGGER = LogManager
+			.getLogger(BackgroundPathSearch.class);
+
+	/**
+	 * Additional blocks around the search area that are copied, since path
+	 * finders look at the blocks around each node.
+	 */
+	private static final int SNAPSHOT_MARGIN = 8;
+
+	/**
+	 * A new snapshot and the blocks that changed since the last one.
+	 */
+	private static class WorldRefresh {
+		private final WorldData world;
+		private final ArrayList<BlockPos> changed;
+
+		public WorldRefresh(WorldData world, ArrayList<BlockPos> changed) {
+			this.world = world;
+			this.changed = changed;
+		}
+	}
+
+	private final MovePathFinder pathFinder;
+	private final AIHelper helper;
+	/**
+	 * The world we search on. Only used by the search thread.
+	 */
+	private WorldData world;
+	/**
+	 * The last snapshot that was handed to the search. Only used by the
+	 * client thread.
+	 */
+	private WorldSnapshot latestSnapshot;
+	private final BlockPos start;
+	private final boolean presearch;
+	private final ArrayList<AITask> foundTasks = new ArrayList<AITask>();
+
+	/**
+	 * Blocks the server changed that were not handled yet.
+	 */
+	private final ConcurrentLinkedQueue<BlockPos> changedBlocks = new ConcurrentLinkedQueue<BlockPos>();
+	/**
+	 * The refresh the search thread should use before it continues.
+	 */
+	private final AtomicReference<WorldRefresh> pendingRefresh = new AtomicReference<WorldRefresh>();
+
+	private BackgroundPathSearch(MovePathFinder pathFinder, AIHelper helper,
+			WorldSnapshot world, boolean presearch) {
+		super("Path search " + pathFinder, MinebotExecutor.PRIORITY_HIGH);
+		this.pathFinder = pathFinder;
+		this.helper = helper;
+		this.world = world;
+		this.latestSnapshot = world;
+		this.start = world.getPlayerPosition();
+		this.presearch = presearch;
+	}
+
+	/**
+	 * Takes a snapshot of the world and starts searching on it. Needs to be
+	 * called on the client thread.
+	 *
+	 * @param pathFinder
+	 *            The path finder. It may not be used by anyone else until the
+	 *            search is done.
+	 * @param helper
+	 *            The helper.
+	 * @param world
+	 *            The world to search in. May be a world with delta.
+	 * @param presearch
+	 *            <code>true</code> if this searches on the expected world state
+	 *            after the current tasks are done.
+	 * @return The running search.
+	 */
+	public static BackgroundPathSearch start(MovePathFinder pathFinder,
+			AIHelper helper, WorldData world, boolean presearch) {
+		BackgroundPathSearch search = new BackgroundPathSearch(pathFinder,
+				helper, takeSnapshot(world, world.getPlayerPosition(),
+						pathFinder.getScannerPolicy()), presearch);
+		return MinebotExecutor.submit(search);
+	}
+
+	private static WorldSnapshot takeSnapshot(WorldData world,
+			BlockPos center, MoveScanner.ScannerPolicy scannerPolicy) {
+		long startTime = System.nanoTime();
+		WorldSnapshot snapshot = new WorldSnapshot(world, center,
+				PathFinderField.SEARCH_RADIUS_X_Z + SNAPSHOT_MARGIN,
+				PathFinderField.SEARCH_RADIUS_Y + SNAPSHOT_MARGIN,
+				scannerPolicy);
+		LOGGER.debug(MARKER_PATH, "World snapshot took "
+				+ (System.nanoTime() - startTime) / 1000 + "us");
+		return snapshot;
+	}
+
+	/**
+	 * Remembers a changed block. May be called by any thread.
+	 */
+	@Override
+	public void blockChanged(BlockPos pos) {
+		if (!isDone() && isInSearchArea(pos)) {
+			changedBlocks.add(pos);
+		}
+	}
+
+	private boolean isInSearchArea(BlockPos pos) {
+		return Math.abs(pos.getX() - start.getX()) <= PathFinderField.SEARCH_RADIUS_X_Z
+				+ SNAPSHOT_MARGIN
+				&& Math.abs(pos.getZ() - start.getZ()) <= PathFinderField.SEARCH_RADIUS_X_Z
+						+ SNAPSHOT_MARGIN
+				&& Math.abs(pos.getY() - start.getY()) <= PathFinderField.SEARCH_RADIUS_Y
+						+ SNAPSHOT_MARGIN;
+	}
+
+	/**
+	 * Hands the blocks that changed in the searched area to the search. Needs
+	 * to be called on the client thread.
+	 * 
+	 * @param world
+	 *            The current world to copy the changed sections from.
+	 */
+	public void updateWorld(WorldData world) {
+		if (changedBlocks.isEmpty() || isDone() || isCanceled()) {
+			return;
+		}
+		if (presearch) {
+			LOGGER.debug(MARKER_PATH,
+					"Blocks changed during a presearch. Canceling it.");
+			cancel();
+			return;
+		}
+		final ArrayList<BlockPos> changed = new ArrayList<BlockPos>();
+		for (BlockPos p; (p = changedBlocks.poll()) != null;) {
+			changed.add(p);
+		}
+		// Only the sections with changes are copied, the rest is shared.
+		latestSnapshot = new WorldSnapshot(latestSnapshot, world, changed);
+		final WorldRefresh old = pendingRefresh.getAndSet(null);
+		if (old != null) {
+			// The search did not take it yet.
+			changed.addAll(old.changed);
+		}
+		pendingRefresh.set(new WorldRefresh(latestSnapshot, changed));
+	}
+
+	@Override
+	protected void execute() {
+		try {
+			while (!isCanceled()) {
+				final WorldRefresh refresh = pendingRefresh.getAndSet(null);
+				if (refresh != null) {
+					LOGGER.debug(MARKER_PATH, "Repairing search after "
+							+ refresh.changed.size() + " block changes.");
+					world = refresh.world;
+					for (BlockPos p : refresh.changed) {
+						pathFinder.blockChanged(p);
+					}
+				}
+				if (pathFinder.searchSomethingAround(start, helper, world,
+						this)) {
+					break;
+				}
+			}
+			if (isCanceled()) {
+				pathFinder.abort();
+			}
+		} catch (Throwable t) {
+			LOGGER.error(MARKER_PATH, "Error in background path finding.", t);
+			pathFinder.abort();
+			foundTasks.clear();
+		}
+	}
+
+	@Override
+	public void addTask(AITask task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		foundTasks.add(task);
+	}
+
+	public boolean isPresearch() {
+		return presearch;
+	}
+
+	/**
+	 * @return The tasks that were found. Only valid after the search is done.
+	 */
+	public List<AITask> getFoundTasks() {
+		if (!isDone()) {
+			throw new IllegalStateException("Search is still running.");
+		}
+		return Collections.unmodifiableList(foundTasks);
+	}
+
+	@Override
+	public String toString() {
+		return "BackgroundPathSearch [pathFinder=" + pathFinder
+				+ ", presearch=" + presearch + ", canceled=" + isCanceled()
+				+ ", done=" + isDone() + "]";
+	}
+}
@@ -33,8 +33,19 @@ public class GoToPathfinder extends WalkingPathfinder {
 		return super.runSearch(playerPosition);
 	}
 
+	@Override
+	public boolean canSearchInBackground() {
+		return true;
+	}
+
 	@Override
 	protected float rateDestination(int distance, int x, int y, int z) {
 		return position.getX() == x && position.getY() == y && position.getZ() == z ? 1 : -1;
 	}
+
+	@Override
+	protected int estimateRemainingDistance(int x, int y, int z) {
+		return estimateWalkDistance(x, y, z, position.getX(),
+				position.getY(), position.getZ());
+	}
 }
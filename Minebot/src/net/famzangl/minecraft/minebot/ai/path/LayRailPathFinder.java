@@ -36,7 +36,7 @@ public class LayRailPathFinder extends AlongTrackPathFinder {
 	@Override
 	protected int getNeighbour(int currentNode, int cx, int cy, int cz) {
 		final int res = super.getNeighbour(currentNode, cx, cy, cz);
-		if (res > 0 && BlockSets.RAILS.isAt(world, cx, cy + 1, cz)) {
+		if (res >= 0 && BlockSets.RAILS.isAt(world, cx, cy + 1, cz)) {
 			return -1;
 		}
 		return res;
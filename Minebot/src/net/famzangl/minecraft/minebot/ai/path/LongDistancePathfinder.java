@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import net.famzangl.minecraft.minebot.ai.PathFinderField;
+import net.famzangl.minecraft.minebot.ai.path.world.SectionGraph;
+import net.famzangl.minecraft.minebot.ai.path.world.SectionGraph.RoutePlan;
+import net.famzangl.minecraft.minebot.ai.task.WaitTask;
+import net.minecraft.util.BlockPos;
+
+/**
+ * Walks to a position that may be far outside of the path finding area. A
+ * coarse route is planned on the {@link SectionGraph} in the background, then
+ * each part of it is walked using the normal path finder.
+ *
+ * @author Michael Zangl
+ */
+public class LongDistancePathfinder extends WalkingPathfinder {
+	/**
+	 * How far inside the path finding area the target of a part needs to be.
+	 */
+	private static final int AREA_MARGIN_X_Z = 16;
+	private static final int AREA_MARGIN_Y = 4;
+	/**
+	 * How near we need to get to a route position.
+	 */
+	private static final int ROUTE_TOLERANCE = 2;
+	/**
+	 * If we are that far from the route, we plan a new one.
+	 */
+	private static final int MAX_ROUTE_DISTANCE = 24;
+	/**
+	 * How often we skip a part of the route we cannot walk to.
+	 */
+	private static final int MAX_FAILED_PARTS = 3;
+
+	private final BlockPos position;
+	private final LinkedList<BlockPos> route = new LinkedList<BlockPos>();
+	/**
+	 * The route we are waiting for or <code>null</code>.
+	 */
+	private RoutePlan routePlan;
+	private BlockPos partTarget;
+	private boolean partIsFinal;
+	private int failedParts;
+
+	public LongDistancePathfinder(BlockPos position) {
+		this.position = position;
+	}
+
+	/**
+	 * Checks if the normal path finder can search from one position to the
+	 * other.
+	 *
+	 * @param from
+	 *            The start position.
+	 * @param to
+	 *            The destination.
+	 * @return <code>true</code> if to is well inside the search area.
+	 */
+	public static boolean isInSearchArea(BlockPos from, BlockPos to) {
+		return Math.abs(from.getX() - to.getX()) < PathFinderField.SEARCH_RADIUS_X_Z
+				- AREA_MARGIN_X_Z
+				&& Math.abs(from.getZ() - to.getZ()) < PathFinderField.SEARCH_RADIUS_X_Z
+						- AREA_MARGIN_X_Z
+				&& Math.abs(from.getY() - to.getY()) < PathFinderField.SEARCH_RADIUS_Y
+						- AREA_MARGIN_Y;
+	}
+
+	@Override
+	protected boolean runSearch(BlockPos playerPosition) {
+		if (playerPosition.equals(position)) {
+			return true;
+		}
+		if (!isSearchRunning()) {
+			if (!selectPartTarget(playerPosition)) {
+				noPathFound();
+				return true;
+			}
+			if (partTarget == null) {
+				// Still planning the route.
+				return false;
+			}
+		}
+		return super.runSearch(playerPosition);
+	}
+
+	/**
+	 * Selects the position the next search should go to. If a new route
+	 * needs to be planned, the target is <code>null</code> until the planning
+	 * is done.
+	 *
+	 * @return <code>false</code> if there is no way to the destination.
+	 */
+	private boolean selectPartTarget(BlockPos playerPosition) {
+		partTarget = null;
+		if (isInSearchArea(playerPosition, position)) {
+			partTarget = position;
+			partIsFinal = true;
+			return true;
+		}
+
+		int nearest = getNearestOnRoute(playerPosition);
+		if (nearest < 0 || isAtRouteEnd(playerPosition, nearest)) {
+			if (routePlan == null) {
+				route.clear();
+				routePlan = SectionGraph.getInstance(helper).startPlanning(
+						world.getCurrentState(), playerPosition, position);
+				return true;
+			} else if (!routePlan.isDone()) {
+				return true;
+			}
+			final List<BlockPos> newRoute = routePlan.getRoute();
+			routePlan = null;
+			route.clear();
+			route.addAll(newRoute);
+			nearest = getNearestOnRoute(playerPosition);
+			if (nearest < 0 || isAtRouteEnd(playerPosition, nearest)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < nearest; i++) {
+			route.removeFirst();
+		}
+
+		partTarget = route.getFirst();
+		for (final BlockPos p : route) {
+			if (!isInSearchArea(playerPosition, p)) {
+				break;
+			}
+			partTarget = p;
+		}
+		partIsFinal = false;
+		return true;
+	}
+
+	/**
+	 * The route only covers the planned area. If we reached its end, we need
+	 * to plan the next one.
+	 */
+	private boolean isAtRouteEnd(BlockPos playerPosition, int nearest) {
+		final BlockPos p = route.get(nearest);
+		return nearest == route.size() - 1
+				&& estimateWalkDistance(playerPosition.getX(),
+						playerPosition.getY(), playerPosition.getZ(), p.getX(),
+						p.getY(), p.getZ()) <= ROUTE_TOLERANCE;
+	}
+
+	/**
+	 * @return The index of the route position we are nearest to or -1 if we
+	 *         are too far away from the route.
+	 */
+	private int getNearestOnRoute(BlockPos playerPosition) {
+		int nearest = -1;
+		int nearestDistance = MAX_ROUTE_DISTANCE;
+		for (int i = 0; i < route.size(); i++) {
+			final BlockPos p = route.get(i);
+			final int distance = estimateWalkDistance(playerPosition.getX(),
+					playerPosition.getY(), playerPosition.getZ(), p.getX(),
+					p.getY(), p.getZ());
+			if (distance <= nearestDistance) {
+				nearest = i;
+				nearestDistance = distance;
+			}
+		}
+		return nearest;
+	}
+
+	@Override
+	protected float rateDestination(int distance, int x, int y, int z) {
+		if (partIsFinal) {
+			return position.getX() == x && position.getY() == y
+					&& position.getZ() == z ? 1 : -1;
+		} else {
+			return getDistanceToPartTarget(x, y, z) <= ROUTE_TOLERANCE ? distance
+					: -1;
+		}
+	}
+
+	@Override
+	protected int estimateRemainingDistance(int x, int y, int z) {
+		if (partIsFinal) {
+			return getDistanceToPartTarget(x, y, z);
+		} else {
+			return Math.max(0, getDistanceToPartTarget(x, y, z)
+					- ROUTE_TOLERANCE);
+		}
+	}
+
+	private int getDistanceToPartTarget(int x, int y, int z) {
+		return estimateWalkDistance(x, y, z, partTarget.getX(),
+				partTarget.getY(), partTarget.getZ());
+	}
+
+	@Override
+	protected void foundPath(LinkedList<BlockPos> path) {
+		failedParts = 0;
+		super.foundPath(path);
+	}
+
+	@Override
+	protected void noPathFound() {
+		super.noPathFound();
+		if (!partIsFinal && partTarget != null
+				&& failedParts++ < MAX_FAILED_PARTS) {
+			// Try an other position of the route next time.
+			route.remove(partTarget);
+			addTask(new WaitTask(1));
+		}
+	}
+
+	@Override
+	public void abort() {
+		if (routePlan != null) {
+			routePlan.cancel();
+			routePlan = null;
+		}
+		super.abort();
+	}
+
+	@Override
+	public String toString() {
+		return "LongDistancePathfinder [position=" + position
+				+ ", partTarget=" + partTarget + ", route=" + route.size()
+				+ "]";
+	}
+}
@@ -30,6 +30,12 @@ public class MineNerbyPathFinder extends MineBySettingsPathFinder {
 		super(preferedDirection, 0);
 	}
 
+	@Override
+	public boolean canSearchInBackground() {
+		// We need the current server state for finding visible ores.
+		return false;
+	}
+
 	@Override
 	protected void onPreRunSearch(BlockPos playerPosition) {
 		playerX = playerPosition.getX();
@@ -120,6 +120,11 @@ public abstract class MinePathfinder extends MovePathFinder {
 		return super.runSearch(playerPosition);
 	}
 
+	@Override
+	public boolean canSearchInBackground() {
+		return true;
+	}
+
 	protected void onPreRunSearch(BlockPos playerPosition) {
 	}
 
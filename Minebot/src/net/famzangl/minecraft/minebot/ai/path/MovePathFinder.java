@@ -16,12 +16,16 @@
  *******************************************************************************/
 package net.famzangl.minecraft.minebot.ai.path;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import net.famzangl.minecraft.minebot.ai.AIHelper;
 import net.famzangl.minecraft.minebot.ai.BlockItemFilter;
 import net.famzangl.minecraft.minebot.ai.PathFinderField;
+import net.famzangl.minecraft.minebot.ai.net.BlockChangeListener;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
+import net.famzangl.minecraft.minebot.ai.path.world.BlockSetPlanes;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSets;
 import net.famzangl.minecraft.minebot.ai.path.world.Pos;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
@@ -44,11 +48,16 @@ import net.minecraft.util.EnumFacing;
  * <p>
  * This pathfinder uses several fields to check if a block may be walked
  * through.
+ * <p>
+ * If it is registered as {@link BlockChangeListener}, block changes that
+ * happen while a search is running only reset the part of the search that
+ * depends on the changed blocks.
  * 
  * @author Michael Zangl
  * 
  */
-public class MovePathFinder extends PathFinderField {
+public class MovePathFinder extends PathFinderField implements
+		BlockChangeListener {
 	/**
 	 * Blocks that are destructable faster.
 	 */
@@ -63,6 +72,12 @@ public class MovePathFinder extends PathFinderField {
 			Blocks.bedrock, Blocks.cactus, Blocks.obsidian,
 			Blocks.piston_extension, Blocks.piston_head);
 
+	/**
+	 * How much danger of hostile mobs makes a step cost one more. With this, a
+	 * skeleton makes the step on its position cost 7 more.
+	 */
+	static final int DANGER_PER_COST = 4;
+
 	/**
 	 * The AI helper
 	 */
@@ -108,6 +123,24 @@ public class MovePathFinder extends PathFinderField {
 
 	protected PathfindingSetting setting;
 
+	/**
+	 * Cached versions of the block sets above for {@link #world}. They are
+	 * fetched whenever the search is continued.
+	 */
+	private BlockSetPlanes safeSidePlanes;
+	private BlockSetPlanes footAllowedPlanes;
+	private BlockSetPlanes headAllowedPlanes;
+	private BlockSetPlanes allowedGroundPlanes;
+	private BlockSetPlanes allowedGroundForUpwardsPlanes;
+	private BlockSetPlanes safeCeilingPlanes;
+	private BlockSetPlanes headCanWalkPlanes;
+	/**
+	 * The precomputed flags for horizontal moves. <code>null</code> if the
+	 * world does not support them.
+	 */
+	private MoveScanner moveScanner;
+	private final MoveScanner.ScannerPolicy scannerPolicy;
+
 	// /**
 	// * Current forbidden block settings. Just FYI, never used by this
 	// * pathfinder.
@@ -117,9 +150,41 @@ public class MovePathFinder extends PathFinderField {
 
 	private volatile BlockPos currentTarget;
 
+	/**
+	 * Blocks the server changed since the last search call.
+	 */
+	private final ConcurrentLinkedQueue<BlockPos> changedBlocks = new ConcurrentLinkedQueue<BlockPos>();
+	/**
+	 * Only collect changes while there is a search to repair.
+	 */
+	private volatile boolean searchInProgress;
+
 	public MovePathFinder() {
-		super();
-		settings = MinebotSettings.getSettings();
+		this(true);
+	}
+
+	/**
+	 * Creates a new path finder.
+	 * 
+	 * @param brickLayout
+	 *            The node layout to use.
+	 * @see PathFinderField#PathFinderField(boolean)
+	 */
+	protected MovePathFinder(boolean brickLayout) {
+		this(brickLayout, MinebotSettings.getSettings());
+	}
+
+	/**
+	 * Creates a new path finder that does not read the settings file.
+	 * 
+	 * @param brickLayout
+	 *            The node layout to use.
+	 * @param settings
+	 *            The settings to use.
+	 */
+	MovePathFinder(boolean brickLayout, MinebotSettingsRoot settings) {
+		super(brickLayout);
+		this.settings = settings;
 		pathSettings = loadSettings(settings);
 
 		upwardsBuildBlocks = pathSettings.getUpwardsBuildBlocks();
@@ -129,6 +194,7 @@ public class MovePathFinder extends PathFinderField {
 				.getAllowedGroundWhenUpwards();
 		footAllowedBlocks = pathSettings.getFootWalkThrough();
 		headAllowedBlocks = pathSettings.getHeadWalkThrough();
+		scannerPolicy = createScannerPolicy();
 
 		// getBlocks("upwards_place_block",
 		// defaultUpwardsBlocks);
@@ -145,11 +211,43 @@ public class MovePathFinder extends PathFinderField {
 		return settingsRoot.getPathfinding().getDestructivePathfinder();
 	}
 
+	/**
+	 * Creates the policy for the background scan of positions that are safe
+	 * to go. It needs to do the same checks as
+	 * {@link #isSafeToTravel(int, int, int, int)} does for horizontal moves.
+	 * 
+	 * @return The policy or <code>null</code> if the scanner should not be
+	 *         used.
+	 */
+	protected MoveScanner.ScannerPolicy createScannerPolicy() {
+		return new MoveScanner.ScannerPolicy(headAllowedBlocks,
+				footAllowedBlocks, allowedGroundBlocks);
+	}
+
+	/**
+	 * @return The policy of the background scan or <code>null</code>.
+	 */
+	MoveScanner.ScannerPolicy getScannerPolicy() {
+		return scannerPolicy;
+	}
+
 	@Override
 	protected final boolean searchSomethingAround(int cx, int cy, int cz) {
 		throw new UnsupportedOperationException("Direct call not supported.");
 	}
 
+	/**
+	 * Checks if this path finder may search in a background thread. This is
+	 * only allowed if the search itself only reads the {@link #world} it was
+	 * given and no other game state.
+	 * 
+	 * @return <code>true</code> if the search can be done on a world snapshot
+	 *         in a background thread.
+	 */
+	public boolean canSearchInBackground() {
+		return false;
+	}
+
 	protected void addTask(AITask task) {
 		receiver.addTask(task);
 	}
@@ -160,7 +258,43 @@ public class MovePathFinder extends PathFinderField {
 		this.helper = helper;
 		this.world = world;
 		this.receiver = receiver;
-		return runSearch(playerPosition);
+		loadPlanes();
+		final ArrayList<BlockPos> changed = new ArrayList<BlockPos>();
+		for (BlockPos p; (p = changedBlocks.poll()) != null;) {
+			changed.add(p);
+		}
+		blocksChanged(changed);
+		searchInProgress = true;
+		final boolean finished = runSearch(playerPosition);
+		searchInProgress = !finished;
+		return finished;
+	}
+
+	private void loadPlanes() {
+		safeSidePlanes = world.getPlanes(BlockSets.SAFE_SIDE);
+		footAllowedPlanes = world.getPlanes(footAllowedBlocks);
+		headAllowedPlanes = world.getPlanes(headAllowedBlocks);
+		allowedGroundPlanes = world.getPlanes(allowedGroundBlocks);
+		allowedGroundForUpwardsPlanes = world
+				.getPlanes(allowedGroundForUpwardsBlocks);
+		safeCeilingPlanes = world.getPlanes(BlockSets.SAFE_CEILING);
+		headCanWalkPlanes = world.getPlanes(BlockSets.HEAD_CAN_WALK_TRHOUGH);
+		moveScanner = scannerPolicy == null ? null : world
+				.getMoveScanner(scannerPolicy);
+	}
+
+	@Override
+	public void blockChanged(BlockPos pos) {
+		if (searchInProgress) {
+			changedBlocks.add(pos);
+		}
+	}
+
+	@Override
+	public void abort() {
+		searchInProgress = false;
+		changedBlocks.clear();
+		super.abort();
 	}
 
 	/**
@@ -176,20 +310,38 @@ public class MovePathFinder extends PathFinderField {
 	@Override
 	protected int getNeighbour(int currentNode, int cx, int cy, int cz) {
 		final int res = super.getNeighbour(currentNode, cx, cy, cz);
-		if (res > 0 && !isSafeToTravel(currentNode, cx, cy, cz)) {
+		if (res >= 0 && !isSafeToTravel(currentNode, cx, cy, cz)) {
 			return -1;
 		}
 		return res;
 	}
 
 	protected boolean isSafeToTravel(int currentNode, int cx, int cy, int cz) {
-		return BlockSets.safeSideAround(world, cx, cy + 1, cz)
+		if (moveScanner != null && getY(currentNode) == cy
+				&& !hasDeltaAround(cx, cz)) {
+			final int safe = moveScanner.isSafeToGo(cx, cy, cz);
+			if (safe != MoveScanner.UNKNOWN) {
+				return safe == MoveScanner.SAFE;
+			}
+		}
+		return safeSidePlanes.isAtAllSides(cx, cy + 1, cz)
 				&& isAllowedPosition(cx, cy, cz)
-				&& BlockSets.safeSideAround(world, cx, cy, cz)
+				&& safeSidePlanes.isAtAllSides(cx, cy, cz)
 				&& checkHeadBlock(currentNode, cx, cy, cz)
 				&& checkGroundBlock(currentNode, cx, cy, cz);
 	}
 
+	/**
+	 * Checks if our world changed one of the chunks the move flags for that
+	 * position are computed from.
+	 */
+	private boolean hasDeltaAround(int cx, int cz) {
+		return world.hasDelta(cx - 1 >> 4, cz - 1 >> 4)
+				|| world.hasDelta(cx + 1 >> 4, cz - 1 >> 4)
+				|| world.hasDelta(cx - 1 >> 4, cz + 1 >> 4)
+				|| world.hasDelta(cx + 1 >> 4, cz + 1 >> 4);
+	}
+
 	/**
 	 * Are we allowed to travel there, only looking at the blocks that we need.
 	 * 
@@ -199,30 +351,29 @@ public class MovePathFinder extends PathFinderField {
 	 * @return
 	 */
 	private boolean isAllowedPosition(int cx, int cy, int cz) {
-		return footAllowedBlocks.isAt(world, cx, cy, cz)
-				&& headAllowedBlocks.isAt(world, cx, cy + 1, cz);
+		return footAllowedPlanes.isAt(cx, cy, cz)
+				&& headAllowedPlanes.isAt(cx, cy + 1, cz);
 	}
 
 	protected boolean checkGroundBlock(int currentNode, int cx, int cy, int cz) {
 		if (getY(currentNode) < cy) {
-			return allowedGroundForUpwardsBlocks.isAt(world, cx, cy - 1, cz);
+			return allowedGroundForUpwardsPlanes.isAt(cx, cy - 1, cz);
 		} else {
-			return allowedGroundBlocks.isAt(world, cx, cy - 1, cz);
+			return allowedGroundPlanes.isAt(cx, cy - 1, cz);
 		}
 	}
 
 	private boolean checkHeadBlock(int currentNode, int cx, int cy, int cz) {
 		if (getY(currentNode) > cy) {
 			if (getX(currentNode) != cx || getZ(currentNode) != cz) {
-				return BlockSets.SAFE_CEILING.isAt(world, cx, cy + 3, cz)
-						&& BlockSets.HEAD_CAN_WALK_TRHOUGH.isAt(world, cx,
-								cy + 2, cz);
+				return safeCeilingPlanes.isAt(cx, cy + 3, cz)
+						&& headCanWalkPlanes.isAt(cx, cy + 2, cz);
 			} else if (BlockSets.FALLING.isAt(world, cx, cy + 2, cz)) {
 				// moving down, so ignoring sand, gravel.
 				return true;
 			}
 		}
-		return BlockSets.SAFE_CEILING.isAt(world, cx, cy + 2, cz);
+		return safeCeilingPlanes.isAt(cx, cy + 2, cz);
 	}
 
 	@Override
@@ -356,6 +507,9 @@ public class MovePathFinder extends PathFinderField {
 				distance += 2;
 			}
 		}
+		if (moveScanner != null) {
+			distance += moveScanner.getDanger(toX, toY, toZ) / DANGER_PER_COST;
+		}
 		return distance;
 	}
 
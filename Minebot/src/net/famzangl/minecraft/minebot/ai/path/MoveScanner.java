@@ -16,307 +16,354 @@
  *******************************************************************************/
 package net.famzangl.minecraft.minebot.ai.path;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-import net.famzangl.minecraft.minebot.ai.AIHelper;
+
 import net.famzangl.minecraft.minebot.ai.PathFinderField;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSets;
+import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
+import net.minecraft.block.Block;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.monster.EntityCreeper;
+import net.minecraft.entity.monster.EntityMob;
 import net.minecraft.entity.monster.EntitySkeleton;
 import net.minecraft.entity.monster.EntitySpider;
 import net.minecraft.entity.monster.EntityZombie;
-import net.minecraft.util.ClassInheritanceMultiMap;
-import net.minecraft.world.chunk.Chunk;
-import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraft.init.Blocks;
+import net.minecraft.util.AxisAlignedBB;
+import net.minecraft.util.BlockPos;
 
 /**
- * Scanns the area around a given position for blocks. The scanner is
- * chunk-oriented.
+ * Scans the area around the player and computes for which blocks it is safe
+ * to go there. The scanner is section-oriented (16x16x16 blocks) and keeps a
+ * grid of {@link #CHUNK_SIZE_X_Z} x {@link #CHUNK_SIZE_Y} x
+ * {@link #CHUNK_SIZE_X_Z} sections.
  * <p>
  * Scanning order:
  * <p>
- * With {@link ScanChunkTask}: Scan the chunk (16x16x16) from Minecraft. (This
- * might need to be in sync with a game cycle. ??) This includes block state and
- * other stuff. <br>
- * Mark it for propagation in all directions.
+ * With {@link ScanChunkTask}: Convert a copy of the section to block flags.
+ * The copy is taken on the minecraft thread by {@link #update(BlockPos)}.
+ * <p>
+ * With {@link PropagateSidesOfChunkTask}: As soon as the section and its four
+ * horizontal neighbours are scanned, mark the blocks that have safe sides.
+ * <p>
+ * With {@link PropagateSafeToGoTask}: As soon as the sides of this section and
+ * the one above are done and the sections above and below are scanned, mark
+ * the blocks that are safe to go to.
+ * <p>
+ * All tasks run on the {@link MinebotExecutor}. A task that needs the result
+ * of an other task waits on its {@link DependWaitEvent} and is scheduled
+ * again when it is reached. The results of a stage are never changed. If a
+ * chunk changes, the stages that depend on it are replaced by new ones.
+ * <p>
+ * The flags can be queried by the minecraft thread without blocking using
+ * {@link #isSafeToGo(int, int, int)}.
+ * <p>
+ * Additionally, a danger field is kept for hostile mobs near the player. Each
+ * section gets its own {@link ComputeDangerTask} that only needs the mobs in
+ * reach of that section. The mob positions are checked on every
+ * {@link #update(BlockPos)}, and only the sections around mobs that moved are
+ * computed again. See {@link #getDanger(int, int, int)}.
  * <p>
- * With PropagateChunkTask: Check for incomming propagations. If there are
- * pending scans in neighbours, re-schedule as soon as they are complete (each
- * neighbour has a pending queue for this). Propagate blocks from each of the 6
- * directions. Propagate entities from each of the 6 directions. Then propagate
- * entities as long as there are changes (from all 6 directions in any order).
+ * Searches on a world snapshot use a {@link #createView()} of the flags that
+ * were computed when the snapshot was taken.
  * 
  * @author michael
  *
  */
 public class MoveScanner {
+	/**
+	 * One stage of computation of a section. The result is set before the
+	 * event is reached and never changed afterwards.
+	 * 
+	 * @author Michael Zangl
+	 *
+	 * @param <T>
+	 *            The result type.
+	 */
+	private static class Stage<T> {
+		public final DependWaitEvent done = new DependWaitEvent();
+		private T result;
+
+		public Stage() {
+		}
+
+		/**
+		 * Creates a stage that is already done.
+		 */
+		public Stage(T result) {
+			this.result = result;
+			done.enterState();
+		}
+
+		public void finish(T result) {
+			this.result = result;
+			done.enterState();
+		}
+
+		/**
+		 * Only call this after {@link #done} was reached.
+		 */
+		public T getResult() {
+			return result;
+		}
+	}
+
 	/**
 	 * A 16 x 16 x 16 scanned cube.
 	 * 
 	 * @author michael
 	 *
 	 */
-	public static class ScannedChunk implements Comparable<ScannedChunk> {
+	public static class ScannedChunk {
 		/**
-		 * When basic block scanning finished. This is just reading block and
-		 * entity postions from the chunk.
+		 * Basic block scanning: the flags for each block.
 		 */
-		public final DependWaitEvent blockScanningDone = new DependWaitEvent();
+		private Stage<byte[]> blockScanning;
 		/**
-		 * The #BLOCK_HAS_GOOD_SIDES_TEMP flag was set.
+		 * The blocks that have four safe sides.
 		 */
-		public final DependWaitEvent sideTempScanningDone = new DependWaitEvent();
+		private Stage<long[]> sideTempScanning;
 		/**
-		 * The BLOCK_IS_SAFE_TO_GO flag was set.
+		 * The blocks that are safe to go.
 		 */
-		public final DependWaitEvent safeToGoScanningDone = new DependWaitEvent();
-		public final ReadWriteLock blockLock = new ReentrantReadWriteLock();
-
-		private final int blockOffset;
+		private Stage<long[]> safeToGoScanning;
 		/**
-		 * Our local block flags.
+		 * The result of {@link #safeToGoScanning} for lock free access, or
+		 * <code>null</code> if it is not computed yet.
 		 */
-		private final short[] blocks;
-		private final byte[] dangerZone;
-		private static final int DEFAULT_POSITION_FLAGS = 0;
-
+		private volatile long[] safeToGo;
+		/**
+		 * The danger field of the mobs near this section.
+		 */
+		private Stage<byte[]> dangerScanning;
 		/**
-		 * What we want to propagate to our neighbours. This can be: <li>The
-		 * head-Flag
+		 * The last computed danger field for lock free access, or
+		 * <code>null</code> if there is no danger.
 		 */
-		private final int[] propagationFlags = new int[] { 0, 0, 0, 0, 0, 0 };
+		private volatile byte[] danger;
+
 		private final int chunkX;
 		private final int chunkY;
 		private final int chunkZ;
 
-		public ScannedChunk(int chunkX, int chunkY, int chunkZ, short[] blocks,
-				byte[] dangerZone, int blockOffset) {
+		public ScannedChunk(int chunkX, int chunkY, int chunkZ) {
 			this.chunkX = chunkX;
 			this.chunkY = chunkY;
 			this.chunkZ = chunkZ;
-			this.blocks = blocks;
-			this.dangerZone = dangerZone;
-			this.blockOffset = blockOffset;
 		}
 
 		/**
-		 * Does a scan of this chunk. Calling policy: You (only) need to hold a
-		 * write lock of this chunk.
+		 * Does a scan of this chunk.
 		 * 
-		 * @param chunk
-		 * @param chunkY
+		 * @param section
+		 *            The block ids of the section or <code>null</code> for
+		 *            air.
 		 * @param policy
+		 *            The policy
+		 * @return The flags for each block.
 		 */
-		public void scanBlocks(Chunk chunk, int chunkY, ScannerPolicy policy) {
-			ExtendedBlockStorage storage = chunk.getBlockStorageArray()[chunkY];
-			char[] array = storage.getData();
-			for (int y = 0; y < 16; y++) {
-				for (int z = 0; z < 16; z++) {
-					int oResult = local(0, y, z);
-					int oFrom = (y << 8 | z << 4);
-					for (int x = 0; x < 16; x ++) {
-						int data = array[oFrom + x];
-						
-						blocks[oResult + x] = (short) (policy.getPositionFlags(data) | DEFAULT_POSITION_FLAGS);
-					}
-				}
+		public static byte[] scanBlocks(char[] section, ScannerPolicy policy) {
+			if (section == null) {
+				return policy.airSection;
 			}
+			final byte[] blocks = new byte[16 * 16 * 16];
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = policy.getPositionFlags(section[i]);
+			}
+			return blocks;
+		}
 
-			@SuppressWarnings("unchecked")
-			ClassInheritanceMultiMap entities = chunk.getEntityLists()[chunkY];
-			for (Object o : entities) {
-				Entity e = (Entity) o;
-				int distance = policy.getDangerDistanceFor(e);
-				if (distance > 0) {
-					int lx = ((int) Math.floor(e.posX + .5)) & 0xf;
-					int ly = ((int) Math.floor(e.posX + .5)) & 0xf;
-					int lz = ((int) Math.floor(e.posX + .5)) & 0xf;
-					int local = local(lx, ly, lz);
-					if (dangerZone[local] < distance) {
-						dangerZone[local] = (byte) distance;
-					}
+		/**
+		 * Marks the blocks that have safe blocks on all four sides.
+		 * 
+		 * @param blocks
+		 *            Our flags.
+		 * @param east
+		 *            The flags of the section in +x direction.
+		 * @param west
+		 *            The flags of the section in -x direction.
+		 * @param south
+		 *            The flags of the section in +z direction.
+		 * @param north
+		 *            The flags of the section in -z direction.
+		 * @return The blocks with safe sides.
+		 */
+		public static long[] computeHasSafeSides(byte[] blocks, byte[] east,
+				byte[] west, byte[] south, byte[] north) {
+			final long[] sides = new long[16 * 16 * 16 / 64];
+			for (int i = 0; i < blocks.length; i++) {
+				final int x = i & 15;
+				final int z = i >> 4 & 15;
+				final boolean safeSide = side(x < 15 ? blocks[i + 1]
+						: east[i - 15])
+						&& side(x > 0 ? blocks[i - 1] : west[i + 15])
+						&& side(z < 15 ? blocks[i + 16] : south[i - 240])
+						&& side(z > 0 ? blocks[i - 16] : north[i + 240]);
+				if (safeSide) {
+					sides[i >> 6] |= 1l << i;
 				}
 			}
-			blockScanningDone.enterState();
+			return sides;
 		}
 
 		/**
-		 * Requires read lock of fromDirection-chunk and write lock of this one.
+		 * Marks the blocks that are safe to go.
 		 * 
-		 * @param fromDirection
+		 * @param blocks
+		 *            Our flags.
+		 * @param sides
+		 *            Our blocks with safe sides.
+		 * @param above
+		 *            The flags of the section above.
+		 * @param sidesAbove
+		 *            The blocks with safe sides of the section above.
+		 * @param below
+		 *            The flags of the section below.
+		 * @return The blocks that are safe to go.
 		 */
-		// public void propagateBlockChanges(EnumFacing fromDirection,
-		// short flagsToMerge, short flagToRevoke) {
-		// for (int y = 0; y < 16; y++) {
-		// if (local(0, y + fromDirection.offsetY, 0) < 0
-		// || local(0, y + fromDirection.offsetY, 0) >= blocks.length) {
-		// continue;
-		// }
-		// for (int z = 0; z < 16; z++) {
-		// for (int x = 0; x < 16; x++) {
-		// int from = local(x + fromDirection.offsetX, z
-		// + fromDirection.offsetZ, z
-		// + fromDirection.offsetZ);
-		// int to = local(x, y, z);
-		// if ((blocks[from] & flagsToMerge) != 0) {
-		// blocks[to] |= BLOCK_IS_NOT_SAFE_TO_GO;
-		// }
-		// }
-		// }
-		// }
-		// }
+		public static long[] computeIsSafeToGo(byte[] blocks, long[] sides,
+				byte[] above, long[] sidesAbove, byte[] below) {
+			final long[] safeToGo = new long[16 * 16 * 16 / 64];
+			for (int i = 0; i < blocks.length; i++) {
+				final int y = i >> 8;
+				// one and two blocks above us.
+				final int i1 = i + 256 & 4095;
+				final int i2 = i + 512 & 4095;
+				final boolean safe = isSet(sides, i)
+						&& isSet(y < 15 ? sides : sidesAbove, i1)
+						&& safeFoot(blocks[i])
+						&& safeHead(y < 15 ? blocks[i1] : above[i1])
+						&& safeGround(y > 0 ? blocks[i - 256] : below[i + 3840])
+						&& safeCeiling(y < 14 ? blocks[i2] : above[i2]);
+				if (safe) {
+					safeToGo[i >> 6] |= 1l << i;
+				}
+			}
+			return safeToGo;
+		}
 
 		/**
-		 * Requires read lock for adjacent chunks.
+		 * Computes the danger field of a section. The danger at a block is the
+		 * highest {@link DangerSource#distance} of a mob minus the manhattan
+		 * distance to it.
+		 * <p>
+		 * A mob outside the section is moved to the closest block inside of
+		 * it, the distance to that block is subtracted. Manhattan distances
+		 * along that path add up, so a distance transform inside the section
+		 * gives the exact result: The forward pass propagates the danger in
+		 * +x, +z and +y direction, the backward pass in the other directions.
+		 * 
+		 * @param chunkX
+		 *            The section position.
+		 * @param chunkY
+		 *            The section position.
+		 * @param chunkZ
+		 *            The section position.
+		 * @param sources
+		 *            The mobs that may reach this section.
+		 * @return The danger for each block.
 		 */
-		public void computeHasSafeSides() {
-			for (int y = 0; y < 16; y++) {
-				// if (y == 16 && chunkY == 16) {
-				// // the top row is just not accessible.
-				// continue;
-				// }
-				for (int z = 0; z < 16; z++) {
-					for (int x = 0; x < 16; x++) {
-						boolean safeSide = side(blocks[local(x + 1, y, z)])
-								&& side(blocks[local(x - 1, y, z)])
-								&& side(blocks[local(x, y, z + 1)])
-								&& side(blocks[local(x, y, z - 1)]);
-						if (safeSide) {
-							blocks[local(x, y, z)] |= BLOCK_HAS_GOOD_SIDES_TEMP;
-						} // TODO: Delete on second run.
-					}
+		public static byte[] computeDanger(int chunkX, int chunkY,
+				int chunkZ, List<DangerSource> sources) {
+			final byte[] danger = new byte[16 * 16 * 16];
+			for (DangerSource s : sources) {
+				final int x = s.x - (chunkX << 4);
+				final int y = s.y - (chunkY << 4);
+				final int z = s.z - (chunkZ << 4);
+				final int lx = Math.max(0, Math.min(15, x));
+				final int ly = Math.max(0, Math.min(15, y));
+				final int lz = Math.max(0, Math.min(15, z));
+				final int value = s.distance - Math.abs(x - lx)
+						- Math.abs(y - ly) - Math.abs(z - lz);
+				final int i = ly << 8 | lz << 4 | lx;
+				if (value > danger[i]) {
+					danger[i] = (byte) value;
 				}
 			}
 
-			sideTempScanningDone.enterState();
-		}
-
-		public void computeIsSafeToGo() {
-			for (int y = 0; y < 16; y++) {
-				if (y >= 15 && chunkY >= 15 || chunkY == 0 && y == 0) {
-					// the top row is just not accessible.
-					continue;
+			for (int i = 0; i < danger.length; i++) {
+				int value = danger[i];
+				if ((i & 0x00f) != 0) {
+					value = Math.max(value, danger[i - 1] - 1);
 				}
-				for (int z = 0; z < 16; z++) {
-					for (int x = 0; x < 16; x++) {
-						boolean safeToGo = safeSidesAndFoot(blocks[local(x, y,
-								z)])
-								&& safeSidesAndHead(blocks[local(x, y + 1, z)])
-								&& safeGround(blocks[local(x, y - 1, z)])
-								&& safeCeiling(blocks[local(x, y + 2, z)]);
-						if (safeToGo) {
-							blocks[local(x, y, z)] |= BLOCK_IS_SAFE_TO_GO;
-						} // TODO: Delete on second run.
-					}
+				if ((i & 0x0f0) != 0) {
+					value = Math.max(value, danger[i - 16] - 1);
+				}
+				if ((i & 0xf00) != 0) {
+					value = Math.max(value, danger[i - 256] - 1);
 				}
+				danger[i] = (byte) value;
 			}
-
-			safeToGoScanningDone.enterState();
-		}
-
-		private boolean side(short flagSet) {
-			return (flagSet & BLOCK_IS_SAFE_SIDE) == BLOCK_IS_SAFE_SIDE;
-		}
-
-		private boolean safeSidesAndHead(short flagSet) {
-			return (flagSet & (BLOCK_IS_SAFE_SIDE | BLOCK_IS_SAFE_HEAD)) == (BLOCK_IS_SAFE_SIDE | BLOCK_IS_SAFE_HEAD);
+			for (int i = danger.length - 1; i >= 0; i--) {
+				int value = danger[i];
+				if ((i & 0x00f) != 0x00f) {
+					value = Math.max(value, danger[i + 1] - 1);
+				}
+				if ((i & 0x0f0) != 0x0f0) {
+					value = Math.max(value, danger[i + 16] - 1);
+				}
+				if ((i & 0xf00) != 0xf00) {
+					value = Math.max(value, danger[i + 256] - 1);
+				}
+				danger[i] = (byte) value;
+			}
+			return danger;
 		}
 
-		private boolean safeSidesAndFoot(short flagSet) {
-			return (flagSet & (BLOCK_IS_SAFE_SIDE | BLOCK_IS_SAFE_FOOT)) == (BLOCK_IS_SAFE_SIDE | BLOCK_IS_SAFE_FOOT);
+		private static boolean isSet(long[] plane, int i) {
+			return (plane[i >> 6] & 1l << i) != 0;
 		}
 
-		private boolean safeGround(short flagSet) {
-			return (flagSet & BLOCK_IS_SAFE_GROUND) != 0;
+		private static boolean side(byte flagSet) {
+			return (flagSet & BLOCK_IS_SAFE_SIDE) != 0;
 		}
 
-		private boolean safeCeiling(short flagSet) {
+		private static boolean safeHead(byte flagSet) {
 			return (flagSet & BLOCK_IS_SAFE_HEAD) != 0;
 		}
 
-		public int getBlockData(int lx, int ly, int lz) {
-			return this.blocks[local(lx, ly, lz)] & 255;
-
+		private static boolean safeFoot(byte flagSet) {
+			return (flagSet & BLOCK_IS_SAFE_FOOT) != 0;
 		}
 
-		private int local(int lx, int ly, int lz) {
-			return ly * STRIDE_Y + lz * STRIDE_Z + lx * STRIDE_X + blockOffset;
+		private static boolean safeGround(byte flagSet) {
+			return (flagSet & BLOCK_IS_SAFE_GROUND) != 0;
 		}
 
-		/**
-		 * Locks one chunk for writing and the rest for reading. Might reorder
-		 * the read lock array.
-		 * 
-		 * @param writeLock
-		 * @param readLock
-		 */
-		public static void lock(ScannedChunk writeLock,
-				ScannedChunk... readLock) {
-			Arrays.sort(readLock);
-			boolean writeLocked = false;
-			for (int i = 0; i < readLock.length; i++) {
-				if (!writeLocked && writeLock.compareTo(readLock[i]) < 0) {
-					writeLock.blockLock.writeLock().lock();
-					writeLocked = true;
-				}
-				readLock[i].blockLock.readLock().lock();
-			}
-			if (!writeLocked) {
-				writeLock.blockLock.writeLock().lock();
-			}
+		private static boolean safeCeiling(byte flagSet) {
+			return (flagSet & BLOCK_IS_SAFE_CEILING) != 0;
 		}
 
-		@Override
-		public int compareTo(ScannedChunk o) {
-			if (chunkY == o.chunkY) {
-				if (chunkZ == o.chunkZ) {
-					return chunkX - o.chunkX;
-				} else {
-					return chunkZ - o.chunkZ;
-				}
-			} else {
-				return chunkY - o.chunkY;
-			}
+		private boolean isAt(int chunkX, int chunkY, int chunkZ) {
+			return this.chunkX == chunkX && this.chunkY == chunkY
+					&& this.chunkZ == chunkZ;
 		}
 
-		public static void unlock(ScannedChunk writeLock,
-				ScannedChunk[] readLock) {
-			for (int i = 0; i < readLock.length; i++) {
-				readLock[i].blockLock.readLock().unlock();
-			}
-			writeLock.blockLock.writeLock().unlock();
+		@Override
+		public String toString() {
+			return "ScannedChunk [chunkX=" + chunkX + ", chunkY=" + chunkY
+					+ ", chunkZ=" + chunkZ + "]";
 		}
 	}
 
 	/**
-	 * This is an dependend state for any task. It allows tasks to wait for the
-	 * state and at the same time atomically lock the state so that the state
-	 * may only be exited as soon as the task finished work.
+	 * An event tasks can wait for. Tasks that wait for the event are
+	 * scheduled as soon as it is reached. It is never left again.
 	 * 
 	 * @author michael
 	 *
 	 */
 	public static class DependWaitEvent {
 
-		private final boolean stateReached = false;
+		private boolean stateReached = false;
 		/**
-		 * Task list has two meanings:
-		 * <p>
-		 * If stateReached == false it is a list of tasks to notify when state
-		 * reached.
-		 * <p>
-		 * if stateReached == true it is a list of tasks inside us.
+		 * Tasks to schedule when the state is reached.
 		 */
 		private final LinkedList<DependingTask> taskList = new LinkedList<DependingTask>();
 
@@ -325,77 +372,41 @@ public class MoveScanner {
 		/**
 		 * 
 		 * @param task
-		 * @return <code>true</code> if the lock is acquired, false if this task
-		 *         was set on the wait queue to be notified.
+		 * @return <code>true</code> if the state is already reached, false if
+		 *         this task was set on the wait queue to be scheduled.
 		 */
 		public boolean enterWithTask(DependingTask task) {
 			synchronized (mutex) {
-				taskList.add(task);
 				if (stateReached) {
 					return true;
 				} else {
+					taskList.add(task);
 					return false;
 				}
 			}
 		}
 
-		/**
-		 * Releases the lock held by this task. Ignored if it has no lock.
-		 * 
-		 * @param task
-		 */
-		public void exitWithTask(DependingTask task) {
-			synchronized (mutex) {
-				if (stateReached) {
-					taskList.remove(task);
-					mutex.notifyAll();
-				}
-			}
-		}
-
 		/**
 		 * Notifies that the state was entered.
 		 */
 		public void enterState() {
+			final ArrayList<DependingTask> toSchedule;
 			synchronized (mutex) {
 				if (stateReached) {
 					throw new IllegalStateException();
 				}
-				while (!taskList.isEmpty()) {
-					DependingTask task = taskList.remove();
-					task.dependencyReached();
-				}
-				mutex.notifyAll();
+				stateReached = true;
+				toSchedule = new ArrayList<DependingTask>(taskList);
+				taskList.clear();
 			}
-		}
-
-		/**
-		 * Exits this state. Blocks until all tasks requireing this state are
-		 * done.
-		 */
-		public void exitState() {
-			synchronized (mutex) {
-				if (!stateReached) {
-					throw new IllegalStateException();
-				}
-				while (!taskList.isEmpty()) {
-					try {
-						mutex.wait();
-					} catch (InterruptedException e) {
-					}
-				}
+			for (DependingTask task : toSchedule) {
+				task.dependencyReached();
 			}
-
 		}
 
-		public void waitForEvent() {
+		public boolean isReached() {
 			synchronized (mutex) {
-				while (!stateReached) {
-					try {
-						mutex.wait();
-					} catch (InterruptedException e) {
-					}
-				}
+				return stateReached;
 			}
 		}
 	}
@@ -407,57 +418,52 @@ public class MoveScanner {
 	 *
 	 */
 	public static abstract class DependingTask implements Runnable {
-		private ThreadPoolExecutor threadPool;
-
+		/**
+		 * Gets the events this task needs to wait for.
+		 * 
+		 * @return The events or <code>null</code> if the task can never be run
+		 *         and should be dropped.
+		 */
 		public List<DependWaitEvent> waitingOnEvents() {
-			return Collections.emptyList();
+			return new ArrayList<DependWaitEvent>();
 		}
 
 		@Override
 		public final synchronized void run() {
+			if (isObsolete()) {
+				return;
+			}
 			List<DependWaitEvent> depends = waitingOnEvents();
-			try {
-				for (DependWaitEvent e : depends) {
-					if (!e.enterWithTask(this)) {
-						// We are added to wait queue.
-						return;
-					}
-				}
-				doRun();
-			} finally {
-				for (DependWaitEvent e : depends) {
-					e.exitWithTask(this);
+			if (depends == null) {
+				return;
+			}
+			for (DependWaitEvent e : depends) {
+				if (!e.enterWithTask(this)) {
+					// We are added to wait queue.
+					return;
 				}
 			}
+			doRun();
 		}
 
-		public abstract void doRun();
+		/**
+		 * @return <code>true</code> if the result of this task is not needed
+		 *         any more.
+		 */
+		protected abstract boolean isObsolete();
 
-		public void setThreadPoolToUse(ThreadPoolExecutor threadPool) {
-			this.threadPool = threadPool;
-		}
+		public abstract void doRun();
 
+		/**
+		 * Schedules this task on the executor.
+		 */
 		public void dependencyReached() {
-			threadPool.execute(this);
-		}
-	}
-
-	public static class DependingTaskScheduler {
-		private final ThreadPoolExecutor threadPool;
-
-		public DependingTaskScheduler() {
-			threadPool = new ThreadPoolExecutor(4, 20, 60, TimeUnit.SECONDS,
-					new LinkedBlockingQueue<Runnable>());
-		}
-
-		public void addTask(DependingTask task) {
-			task.setThreadPoolToUse(threadPool);
-			threadPool.execute(task);
-		}
-
-		@Override
-		protected void finalize() throws Throwable {
-			threadPool.shutdown();
+			MinebotExecutor.submit(new MinebotExecutor.Job("Move scanner") {
+				@Override
+				protected void execute() {
+					DependingTask.this.run();
+				}
+			});
 		}
 	}
 
@@ -467,34 +473,34 @@ public class MoveScanner {
 	 * @author michael
 	 *
 	 */
-	public static class ScanChunkTask extends DependingTask {
+	public class ScanChunkTask extends DependingTask {
 
-		private final ScannerPolicy policy;
 		private final ScannedChunk chunk;
-		private final Chunk mcChunk;
+		private final Stage<byte[]> stage;
+		private final char[] section;
 
-		public ScanChunkTask(ScannedChunk chunk, ScannerPolicy policy,
-				Chunk mcChunk) {
+		public ScanChunkTask(ScannedChunk chunk, char[] section) {
 			this.chunk = chunk;
-			this.policy = policy;
-			this.mcChunk = mcChunk;
+			this.stage = chunk.blockScanning;
+			this.section = section;
+		}
+
+		@Override
+		protected boolean isObsolete() {
+			return isStageObsolete(chunk, stage);
 		}
 
 		@Override
 		public void doRun() {
-			Lock writeLock = chunk.blockLock.writeLock();
-			writeLock.lock();
-			try {
-				chunk.scanBlocks(mcChunk, chunk.chunkY, policy);
-			} finally {
-				writeLock.unlock();
-			}
+			stage.finish(ScannedChunk.scanBlocks(section, policy));
 		}
 	}
 
 	public class PropagateSidesOfChunkTask extends DependingTask {
 
 		private final ScannedChunk chunk;
+		private final Stage<long[]> stage;
+		private final ArrayList<Stage<byte[]>> blocks = new ArrayList<Stage<byte[]>>();
 
 		/**
 		 * 
@@ -502,31 +508,48 @@ public class MoveScanner {
 		 */
 		public PropagateSidesOfChunkTask(ScannedChunk chunk) {
 			this.chunk = chunk;
+			this.stage = chunk.sideTempScanning;
 		}
 
 		@Override
-		public void doRun() {
-			ScannedChunk[] readLocks = new ScannedChunk[] {
-					getChunk(chunk.chunkX + 1, chunk.chunkY, chunk.chunkZ),
-					getChunk(chunk.chunkX - 1, chunk.chunkY, chunk.chunkZ),
-					getChunk(chunk.chunkX, chunk.chunkY, chunk.chunkZ + 1),
-					getChunk(chunk.chunkX, chunk.chunkY, chunk.chunkZ - 1) };
-
-			try {
-				// accquire negative lock first.
-
-				ScannedChunk.lock(chunk, readLocks);
-				chunk.computeHasSafeSides();
-			} finally {
+		protected boolean isObsolete() {
+			return isStageObsolete(chunk, stage);
+		}
 
-				ScannedChunk.unlock(chunk, readLocks);
+		@Override
+		public List<DependWaitEvent> waitingOnEvents() {
+			blocks.clear();
+			for (int[] d : new int[][] { { 0, 0 }, { 1, 0 }, { -1, 0 },
+					{ 0, 1 }, { 0, -1 } }) {
+				final Stage<byte[]> s = getBlockStage(chunk.chunkX + d[0],
+						chunk.chunkY, chunk.chunkZ + d[1]);
+				if (s == null) {
+					// At the border of the scanned area.
+					return null;
+				}
+				blocks.add(s);
 			}
+			return getEvents(blocks);
+		}
+
+		@Override
+		public void doRun() {
+			stage.finish(ScannedChunk.computeHasSafeSides(blocks.get(0)
+					.getResult(), blocks.get(1).getResult(), blocks.get(2)
+					.getResult(), blocks.get(3).getResult(), blocks.get(4)
+					.getResult()));
 		}
 	}
 
 	public class PropagateSafeToGoTask extends DependingTask {
 
 		private final ScannedChunk chunk;
+		private final Stage<long[]> stage;
+		private Stage<byte[]> blocks;
+		private Stage<long[]> sides;
+		private Stage<byte[]> above;
+		private Stage<long[]> sidesAbove;
+		private Stage<byte[]> below;
 
 		/**
 		 * 
@@ -534,56 +557,201 @@ public class MoveScanner {
 		 */
 		public PropagateSafeToGoTask(ScannedChunk chunk) {
 			this.chunk = chunk;
+			this.stage = chunk.safeToGoScanning;
+		}
+
+		@Override
+		protected boolean isObsolete() {
+			return isStageObsolete(chunk, stage);
+		}
+
+		@Override
+		public List<DependWaitEvent> waitingOnEvents() {
+			final int x = chunk.chunkX;
+			final int y = chunk.chunkY;
+			final int z = chunk.chunkZ;
+			synchronized (chunks) {
+				blocks = getBlockStage(x, y, z);
+				sides = getSidesStage(x, y, z);
+				above = getBlockStage(x, y + 1, z);
+				sidesAbove = getSidesStage(x, y + 1, z);
+				below = getBlockStage(x, y - 1, z);
+			}
+			if (blocks == null || sides == null || above == null
+					|| sidesAbove == null || below == null) {
+				return null;
+			}
+			return getEvents(blocks, sides, above, sidesAbove, below);
 		}
 
 		@Override
 		public void doRun() {
-			ScannedChunk up = getChunk(chunk.chunkX, chunk.chunkY + 1,
-					chunk.chunkZ);
-			ScannedChunk down = getChunk(chunk.chunkX, chunk.chunkY - 1,
-					chunk.chunkZ);
-			ScannedChunk[] readLocks;
-			if (chunk.chunkY == 0) {
-				readLocks = new ScannedChunk[] { up };
-			} else if (chunk.chunkY >= 15) {
-				readLocks = new ScannedChunk[] { down };
-			} else {
-				readLocks = new ScannedChunk[] { up, down };
+			final long[] safeToGo = ScannedChunk.computeIsSafeToGo(
+					blocks.getResult(), sides.getResult(), above.getResult(),
+					sidesAbove.getResult(), below.getResult());
+			stage.finish(safeToGo);
+			synchronized (chunks) {
+				if (chunk.safeToGoScanning == stage) {
+					chunk.safeToGo = safeToGo;
+				}
 			}
+		}
+	}
 
-			try {
-				// accquire negative lock first.
+	/**
+	 * Computes the danger field of a section.
+	 * 
+	 * @author Michael Zangl
+	 */
+	public class ComputeDangerTask extends DependingTask {
 
-				ScannedChunk.lock(chunk, readLocks);
-				chunk.computeIsSafeToGo();
-			} finally {
+		private final ScannedChunk chunk;
+		private final Stage<byte[]> stage;
+		private final List<DangerSource> sources;
 
-				ScannedChunk.unlock(chunk, readLocks);
+		public ComputeDangerTask(ScannedChunk chunk, List<DangerSource> sources) {
+			this.chunk = chunk;
+			this.stage = chunk.dangerScanning;
+			this.sources = sources;
+		}
+
+		@Override
+		protected boolean isObsolete() {
+			return isStageObsolete(chunk, stage);
+		}
+
+		@Override
+		public void doRun() {
+			final byte[] danger = ScannedChunk.computeDanger(chunk.chunkX,
+					chunk.chunkY, chunk.chunkZ, sources);
+			stage.finish(danger);
+			synchronized (chunks) {
+				if (chunk.dangerScanning == stage) {
+					chunk.danger = danger;
+				}
 			}
 		}
 	}
 
 	/**
-	 * This tells a scanner what blocks to scan for.
+	 * A mob that makes the area around it dangerous.
+	 * 
+	 * @author Michael Zangl
+	 */
+	public static class DangerSource {
+		private final int x;
+		private final int y;
+		private final int z;
+		/**
+		 * The danger at the position of the mob. It goes down by one for
+		 * every block away from it.
+		 */
+		private final int distance;
+
+		public DangerSource(BlockPos pos, int distance) {
+			this.x = pos.getX();
+			this.y = pos.getY();
+			this.z = pos.getZ();
+			this.distance = distance;
+		}
+
+		/**
+		 * Checks if the danger of this mob reaches into a section.
+		 */
+		private boolean reaches(int chunkX, int chunkY, int chunkZ) {
+			return x + distance > chunkX << 4
+					&& x - distance < (chunkX << 4) + 15
+					&& y + distance > chunkY << 4
+					&& y - distance < (chunkY << 4) + 15
+					&& z + distance > chunkZ << 4
+					&& z - distance < (chunkZ << 4) + 15;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + distance;
+			result = prime * result + x;
+			result = prime * result + y;
+			result = prime * result + z;
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			DangerSource other = (DangerSource) obj;
+			return distance == other.distance && x == other.x
+					&& y == other.y && z == other.z;
+		}
+
+		@Override
+		public String toString() {
+			return "DangerSource [x=" + x + ", y=" + y + ", z=" + z
+					+ ", distance=" + distance + "]";
+		}
+	}
+
+	/**
+	 * This tells a scanner what blocks to scan for. Two policies are equal if
+	 * they use the same block sets.
 	 * 
 	 * @author michael
 	 *
 	 */
-	public class ScannerPolicy {
+	public static class ScannerPolicy {
 
 		private final BlockSet safeCeiling = BlockSets.SAFE_CEILING;
-		private final BlockSet safeHead = BlockSets.HEAD_CAN_WALK_TRHOUGH;
-		private final BlockSet safeFoot = BlockSets.FEET_CAN_WALK_THROUGH;
-		private final BlockSet safeFloor = BlockSets.SAFE_GROUND;
+		private final BlockSet safeHead;
+		private final BlockSet safeFoot;
+		private final BlockSet safeFloor;
 		private final BlockSet safeSide = BlockSets.SAFE_SIDE;
 
 		/**
-		 * Gets all flags (except safe_to_go) for the given block.
+		 * The flags of a section that only contains air.
+		 */
+		private final byte[] airSection = new byte[16 * 16 * 16];
+		/**
+		 * The flags of a section below the world.
+		 */
+		private final byte[] barrierSection = new byte[16 * 16 * 16];
+		/**
+		 * Sides of the section above the world. It is never safe to go there.
+		 */
+		private final long[] noSides = new long[16 * 16 * 16 / 64];
+
+		/**
+		 * Creates a new policy.
+		 * 
+		 * @param safeHead
+		 *            The blocks the head may walk through.
+		 * @param safeFoot
+		 *            The blocks the feet may walk through.
+		 * @param safeFloor
+		 *            The blocks we may stand on.
+		 */
+		public ScannerPolicy(BlockSet safeHead, BlockSet safeFoot,
+				BlockSet safeFloor) {
+			this.safeHead = safeHead;
+			this.safeFoot = safeFoot;
+			this.safeFloor = safeFloor;
+			Arrays.fill(airSection, getPositionFlags(AIR_ID));
+			Arrays.fill(barrierSection, getPositionFlags(BARRIER_ID));
+		}
+
+		/**
+		 * Gets all flags for the given block.
 		 * 
-		 * @param blockIndex
-		 * @return A short (packed int an int).
+		 * @param blockWithMeta
+		 * @return The flags.
 		 */
-		int getPositionFlags(int blockWithMeta) {
+		byte getPositionFlags(int blockWithMeta) {
 			int flag = 0;
 			if (safeCeiling.containsWithMeta(blockWithMeta)) {
 				flag |= BLOCK_IS_SAFE_CEILING;
@@ -600,9 +768,17 @@ public class MoveScanner {
 			if (safeSide.containsWithMeta(blockWithMeta)) {
 				flag |= BLOCK_IS_SAFE_SIDE;
 			}
-			return flag;
+			return (byte) flag;
 		}
 
+		/**
+		 * Gets how dangerous a mob is.
+		 * 
+		 * @param e
+		 *            The mob.
+		 * @return The danger at the position of the mob, 0 if it is not
+		 *         dangerous.
+		 */
 		public int getDangerDistanceFor(Entity e) {
 			if (e instanceof EntitySpider) {
 				return 20;
@@ -616,95 +792,520 @@ public class MoveScanner {
 				return 0;
 			}
 		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + safeFloor.hashCode();
+			result = prime * result + safeFoot.hashCode();
+			result = prime * result + safeHead.hashCode();
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			ScannerPolicy other = (ScannerPolicy) obj;
+			return safeFloor.equals(other.safeFloor)
+					&& safeFoot.equals(other.safeFoot)
+					&& safeHead.equals(other.safeHead);
+		}
 	}
 
 	/**
-	 * How many chunks this scanner scans. Should be more than
-	 * {@link PathFinderField#SIZE_X_Z}. The real available size is smaller by 1
-	 * chunk in each direction.
+	 * The size of the section grid. We scan {@link #CHUNK_SIZE_X_Z} - 1
+	 * chunks around the player, which should be more than
+	 * {@link PathFinderField#SEARCH_RADIUS_X_Z} * 2 / 16. The real available
+	 * size is smaller by 1 chunk in each direction.
 	 */
 	private final static int CHUNK_SIZE_X_Z = 22;
 	private final static int CHUNK_SIZE_Y = 16;
-	private final static ScannedChunk EMPTY_SCANNED_CHUNK = null;
-
-	public static final int BLOCK_IS_SAFE_TO_GO = 0x100;
-	public static final int BLOCK_IS_SAFE_SIDE = 0x200;
-	public static final int BLOCK_IS_SAFE_GROUND = 0x400;
-	public static final int BLOCK_IS_SAFE_CEILING = 0x800;
-	public static final int BLOCK_IS_SAFE_FOOT = 0x1000;
-	public static final int BLOCK_IS_SAFE_HEAD = 0x2000;
-	// Airlike blocks that might be walked/shot through by entities.
-	public static final int BLOCK_IS_AIRLIKE = 0x4000;
-	// A temporary flag used to indicate that the head part (sides + ceiling +
-	// head block) is safe.
-	public static final int BLOCK_HAS_GOOD_SIDES_TEMP = 0x1000;
-
-	private final int baseChunkX = 0;
-	private final int baseChunkZ = 0;
-	public static final int STRIDE_X = 1;
-	public static final int STRIDE_Y = CHUNK_SIZE_X_Z * 16 * CHUNK_SIZE_Y * 16;
-	public static final int STRIDE_Z = CHUNK_SIZE_X_Z * 16;
-
-	private final DependingTaskScheduler scheduler = new DependingTaskScheduler();
+	/**
+	 * How many sections we copy in one {@link #update(BlockPos)} call.
+	 */
+	private final static int MAX_SCANS_PER_UPDATE = 128;
+
+	private static final int AIR_ID = 0;
+	private static final int BARRIER_ID = Block
+			.getIdFromBlock(Blocks.barrier) << 4;
+
+	public static final int BLOCK_IS_SAFE_SIDE = 0x01;
+	public static final int BLOCK_IS_SAFE_GROUND = 0x02;
+	public static final int BLOCK_IS_SAFE_CEILING = 0x04;
+	public static final int BLOCK_IS_SAFE_FOOT = 0x08;
+	public static final int BLOCK_IS_SAFE_HEAD = 0x10;
 
 	/**
-	 * The cunk array.
+	 * Results of {@link #isSafeToGo(int, int, int)}
+	 */
+	public static final int UNKNOWN = -1;
+	public static final int UNSAFE = 0;
+	public static final int SAFE = 1;
+
+	/**
+	 * The section grid. Sections are stored at their position modulo the grid
+	 * size. Only the minecraft thread changes this array, all other threads
+	 * need to synchronize on it.
 	 */
 	private final ScannedChunk[] chunks = new ScannedChunk[CHUNK_SIZE_X_Z
 			* CHUNK_SIZE_X_Z * CHUNK_SIZE_Y];
+
 	/**
-	 * An array of block information. It is ordered by y/z/x. You can use
-	 * STRIDE_Y, STRIDE_Z and STRIDE_X to get plus one in each direction.
-	 * Locking is done by the {@link ScannedChunk} objects.
+	 * The mobs that were found on the last {@link #update(BlockPos)}.
 	 */
-	private final short[] blocks = new short[chunks.length * 16 * 16 * 16];
-	private final byte[] dangerZone = new byte[chunks.length * 16 * 16 * 16];
+	private List<DangerSource> dangerSources = new ArrayList<DangerSource>();
+
+	private final Stage<byte[]> airStage;
+	private final Stage<byte[]> barrierStage;
+	private final Stage<long[]> noSidesStage;
 
-	private final ScannerPolicy policy = new ScannerPolicy();
-	private final AIHelper helper;
+	private final WorldData world;
+	private final ScannerPolicy policy;
 
-	public MoveScanner(AIHelper helper) {
-		this.helper = helper;
+	/**
+	 * Creates a new scanner.
+	 * 
+	 * @param world
+	 *            The live world to scan or <code>null</code> for a view.
+	 * @param policy
+	 *            What to scan for.
+	 */
+	public MoveScanner(WorldData world, ScannerPolicy policy) {
+		this.world = world;
+		this.policy = policy;
+		airStage = new Stage<byte[]>(policy.airSection);
+		barrierStage = new Stage<byte[]>(policy.barrierSection);
+		noSidesStage = new Stage<long[]>(policy.noSides);
+	}
+
+	/**
+	 * Scans the sections around the given position that were not scanned yet.
+	 * Needs to be called by the minecraft thread, since the sections are
+	 * copied from the world.
+	 * 
+	 * @param center
+	 *            The position to scan around.
+	 */
+	public void update(BlockPos center) {
+		checkNotView();
+		scanAround(center);
+		updateDanger(center);
+	}
+
+	/**
+	 * Creates a read-only view of the flags and danger that were computed so
+	 * far. The computed arrays are never changed, so the view stays the same
+	 * while this scanner goes on and can be read by any thread. Needs to be
+	 * called by the minecraft thread.
+	 * 
+	 * @return The view. It cannot be updated.
+	 */
+	public MoveScanner createView() {
+		checkNotView();
+		final MoveScanner view = new MoveScanner(null, policy);
+		for (int i = 0; i < chunks.length; i++) {
+			final ScannedChunk c = chunks[i];
+			if (c != null) {
+				final ScannedChunk copy = new ScannedChunk(c.chunkX,
+						c.chunkY, c.chunkZ);
+				copy.safeToGo = c.safeToGo;
+				copy.danger = c.danger;
+				view.chunks[i] = copy;
+			}
+		}
+		return view;
 	}
 
-	public void centerAround(int x, int z) {
-		int newBaseChunkX = x >> 4;
-		int newBaseChunkZ = z >> 4;
-		if (newBaseChunkX != baseChunkX || newBaseChunkZ != baseChunkZ) {
-			// TODO: safe old stuff.
-			Arrays.fill(chunks, null);
+	private void checkNotView() {
+		if (world == null) {
+			throw new IllegalStateException("A view cannot be updated.");
 		}
 	}
 
-	public ScannedChunk getChunk(int chunkX, int chunkY, int chunkZ) {
-		if (chunkX < baseChunkX + 1
-				|| chunkX >= baseChunkX + CHUNK_SIZE_X_Z - 1
-				|| chunkZ < baseChunkZ + 1
-				|| chunkZ >= baseChunkZ + CHUNK_SIZE_X_Z - 1 || chunkY < 0
-				|| chunkY >= CHUNK_SIZE_Y) {
-			return EMPTY_SCANNED_CHUNK;
+	void scanAround(BlockPos center) {
+		final int centerX = center.getX() >> 4;
+		final int centerZ = center.getZ() >> 4;
+		final int minY = Math.max(0,
+				(center.getY() - PathFinderField.SEARCH_RADIUS_Y >> 4) - 1);
+		final int maxY = Math.min(CHUNK_SIZE_Y - 1, (center.getY()
+				+ PathFinderField.SEARCH_RADIUS_Y + 2 >> 4) + 1);
+		int scans = 0;
+		// Scan from the inside out.
+		for (int r = 0; r < CHUNK_SIZE_X_Z / 2; r++) {
+			for (int dx = -r; dx <= r; dx++) {
+				for (int dz = -r; dz <= r; dz += Math.abs(dx) == r ? 1
+						: 2 * r) {
+					for (int y = minY; y <= maxY; y++) {
+						if (scans >= MAX_SCANS_PER_UPDATE) {
+							return;
+						}
+						final int x = centerX + dx;
+						final int z = centerZ + dz;
+						final ScannedChunk c = chunks[chunkIndex(x, y, z)];
+						if (c == null || !c.isAt(x, y, z)) {
+							rescan(x, y, z);
+							scans++;
+						}
+					}
+				}
+			}
 		}
+	}
+
+	private void rescan(int chunkX, int chunkY, int chunkZ) {
+		final ScannedChunk chunk = new ScannedChunk(chunkX, chunkY, chunkZ);
+		chunk.blockScanning = new Stage<byte[]>();
+		final char[] section = world.getSectionCopy(chunkX, chunkZ, chunkY);
+		final ArrayList<DependingTask> tasks = new ArrayList<DependingTask>();
 		synchronized (chunks) {
-			int i = chunkIndex(chunkX, chunkY, chunkZ);
-			if (chunks[i] == null) {
-				chunks[i] = new ScannedChunk(chunkX, chunkY, chunkZ, blocks,
-						dangerZone, chunkY * STRIDE_Y * 16
-								+ (chunkZ % CHUNK_SIZE_X_Z) * STRIDE_Z * 16
-								+ (chunkX % CHUNK_SIZE_X_Z) * STRIDE_X * 16);
-				Chunk mcChunk = helper.getMinecraft().theWorld
-						.getChunkFromChunkCoords(chunkX, chunkZ);
-				scheduler
-						.addTask(new ScanChunkTask(chunks[i], policy, mcChunk));
-				scheduler.addTask(new PropagateSidesOfChunkTask(chunks[i]));
-				scheduler.addTask(new PropagateSafeToGoTask(chunks[i]));
-			}
-			chunks[i].safeToGoScanningDone.waitForEvent();
-			return chunks[i];
-		}
-	}
-
-	private int chunkIndex(int chunkX, int chunkY, int chunkZ) {
-		return chunkY * CHUNK_SIZE_X_Z * CHUNK_SIZE_X_Z + chunkZ
-				% CHUNK_SIZE_X_Z * CHUNK_SIZE_X_Z + chunkX % CHUNK_SIZE_X_Z;
+			chunks[chunkIndex(chunkX, chunkY, chunkZ)] = chunk;
+			tasks.add(new ScanChunkTask(chunk, section));
+			blocksReplaced(chunkX, chunkY, chunkZ, tasks);
+			replaceDanger(chunk, tasks);
+		}
+		for (DependingTask task : tasks) {
+			task.dependencyReached();
+		}
+	}
+
+	/**
+	 * Searches the hostile mobs around the player and recomputes the danger of
+	 * the sections around the mobs that appeared, moved or disappeared.
+	 */
+	private void updateDanger(BlockPos center) {
+		final int minX = (center.getX() >> 4) - CHUNK_SIZE_X_Z / 2 << 4;
+		final int minZ = (center.getZ() >> 4) - CHUNK_SIZE_X_Z / 2 << 4;
+		final List<EntityMob> mobs = world.getBackingWorld()
+				.getEntitiesWithinAABB(
+						EntityMob.class,
+						new AxisAlignedBB(minX, 0, minZ, minX + CHUNK_SIZE_X_Z
+								* 16, CHUNK_SIZE_Y * 16, minZ
+								+ CHUNK_SIZE_X_Z * 16));
+		final ArrayList<DangerSource> sources = new ArrayList<DangerSource>();
+		for (EntityMob mob : mobs) {
+			final int distance = policy.getDangerDistanceFor(mob);
+			if (distance > 0) {
+				sources.add(new DangerSource(mob.getPosition(), distance));
+			}
+		}
+		setDangerSources(sources);
+	}
+
+	/**
+	 * Sets the mobs that are near the player.
+	 * 
+	 * @param sources
+	 *            The mobs.
+	 */
+	void setDangerSources(List<DangerSource> sources) {
+		final HashSet<DangerSource> changed = new HashSet<DangerSource>(
+				sources);
+		changed.removeAll(dangerSources);
+		for (DangerSource old : dangerSources) {
+			if (!sources.contains(old)) {
+				changed.add(old);
+			}
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+		dangerSources = sources;
+
+		final HashSet<ScannedChunk> replaced = new HashSet<ScannedChunk>();
+		final ArrayList<DependingTask> tasks = new ArrayList<DependingTask>();
+		synchronized (chunks) {
+			for (DangerSource s : changed) {
+				final int maxY = Math.min(CHUNK_SIZE_Y - 1,
+						s.y + s.distance >> 4);
+				for (int y = Math.max(0, s.y - s.distance >> 4); y <= maxY; y++) {
+					for (int x = s.x - s.distance >> 4; x <= s.x + s.distance >> 4; x++) {
+						for (int z = s.z - s.distance >> 4; z <= s.z
+								+ s.distance >> 4; z++) {
+							final ScannedChunk c = getChunk(x, y, z);
+							if (c != null && replaced.add(c)) {
+								replaceDanger(c, tasks);
+							}
+						}
+					}
+				}
+			}
+		}
+		for (DependingTask task : tasks) {
+			task.dependencyReached();
+		}
+	}
+
+	/**
+	 * Starts computing the danger of a section again. The old danger stays
+	 * visible until the new one is done.
+	 */
+	private void replaceDanger(ScannedChunk c, List<DependingTask> tasks) {
+		final ArrayList<DangerSource> near = new ArrayList<DangerSource>();
+		for (DangerSource s : dangerSources) {
+			if (s.reaches(c.chunkX, c.chunkY, c.chunkZ)) {
+				near.add(s);
+			}
+		}
+		if (near.isEmpty()) {
+			c.dangerScanning = null;
+			c.danger = null;
+		} else {
+			c.dangerScanning = new Stage<byte[]>();
+			tasks.add(new ComputeDangerTask(c, near));
+		}
+	}
+
+	/**
+	 * Drops all sections of a chunk and everything that was computed from
+	 * them. They are scanned again on the next {@link #update(BlockPos)}. This
+	 * is used when the server sent the whole chunk, use
+	 * {@link #blockChanged(BlockPos)} for single blocks. May only be called
+	 * by the minecraft thread.
+	 * 
+	 * @param chunkX
+	 * @param chunkZ
+	 */
+	public void chunkChanged(int chunkX, int chunkZ) {
+		checkNotView();
+		// The new tasks cannot run before the chunk is scanned again, which
+		// replaces them anyway.
+		final ArrayList<DependingTask> tasks = new ArrayList<DependingTask>();
+		synchronized (chunks) {
+			for (int y = 0; y < CHUNK_SIZE_Y; y++) {
+				final int index = chunkIndex(chunkX, y, chunkZ);
+				if (chunks[index] != null
+						&& chunks[index].isAt(chunkX, y, chunkZ)) {
+					chunks[index] = null;
+					blocksReplaced(chunkX, y, chunkZ, tasks);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans the section of a block the server changed again. Only the stages
+	 * that may depend on that block are replaced: The sides of the neighbour
+	 * sections if the block is at their border and the section above or below
+	 * if the block is at the top or bottom. Everything else stays visible. May
+	 * only be called by the minecraft thread.
+	 * 
+	 * @param pos
+	 *            The block that changed.
+	 */
+	public void blockChanged(BlockPos pos) {
+		checkNotView();
+		final int chunkX = pos.getX() >> 4;
+		final int chunkY = pos.getY() >> 4;
+		final int chunkZ = pos.getZ() >> 4;
+		final ScannedChunk chunk = getChunk(chunkX, chunkY, chunkZ);
+		if (chunk == null) {
+			// Scanned as soon as the player gets near it.
+			return;
+		}
+		final int x = pos.getX() & 15;
+		final int y = pos.getY() & 15;
+		final int z = pos.getZ() & 15;
+		final char[] section = world.getSectionCopy(chunkX, chunkZ, chunkY);
+		final ArrayList<DependingTask> tasks = new ArrayList<DependingTask>();
+		synchronized (chunks) {
+			chunk.blockScanning = new Stage<byte[]>();
+			tasks.add(new ScanChunkTask(chunk, section));
+			replaceSides(chunk, y, tasks);
+			if (x == 15) {
+				replaceSides(getChunk(chunkX + 1, chunkY, chunkZ), y, tasks);
+			} else if (x == 0) {
+				replaceSides(getChunk(chunkX - 1, chunkY, chunkZ), y, tasks);
+			}
+			if (z == 15) {
+				replaceSides(getChunk(chunkX, chunkY, chunkZ + 1), y, tasks);
+			} else if (z == 0) {
+				replaceSides(getChunk(chunkX, chunkY, chunkZ - 1), y, tasks);
+			}
+			if (y == 15) {
+				// We are the ground of the section above.
+				replaceSafeToGo(getChunk(chunkX, chunkY + 1, chunkZ), tasks);
+			}
+		}
+		for (DependingTask task : tasks) {
+			task.dependencyReached();
+		}
+	}
+
+	/**
+	 * Replaces the sides of a section and the safe-to-go flags computed from
+	 * them after a block changed.
+	 * 
+	 * @param c
+	 *            The section, may be <code>null</code>.
+	 * @param blockY
+	 *            The y coordinate of the block inside its section.
+	 */
+	private void replaceSides(ScannedChunk c, int blockY,
+			List<DependingTask> tasks) {
+		if (c != null) {
+			c.sideTempScanning = new Stage<long[]>();
+			tasks.add(new PropagateSidesOfChunkTask(c));
+			replaceSafeToGo(c, tasks);
+			if (blockY <= 1) {
+				// Head and ceiling of the topmost blocks of the section below.
+				replaceSafeToGo(getChunk(c.chunkX, c.chunkY - 1, c.chunkZ),
+						tasks);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the stages that were computed from the blocks of a section.
+	 */
+	private void blocksReplaced(int chunkX, int chunkY, int chunkZ,
+			List<DependingTask> tasks) {
+		for (int[] d : new int[][] { { 0, 0 }, { 1, 0 }, { -1, 0 }, { 0, 1 },
+				{ 0, -1 } }) {
+			final ScannedChunk c = getChunk(chunkX + d[0], chunkY, chunkZ
+					+ d[1]);
+			if (c != null) {
+				c.sideTempScanning = new Stage<long[]>();
+				tasks.add(new PropagateSidesOfChunkTask(c));
+				replaceSafeToGo(c, tasks);
+				replaceSafeToGo(getChunk(c.chunkX, chunkY - 1, c.chunkZ), tasks);
+			}
+		}
+		replaceSafeToGo(getChunk(chunkX, chunkY + 1, chunkZ), tasks);
+	}
+
+	private void replaceSafeToGo(ScannedChunk c, List<DependingTask> tasks) {
+		if (c != null) {
+			c.safeToGoScanning = new Stage<long[]>();
+			c.safeToGo = null;
+			tasks.add(new PropagateSafeToGoTask(c));
+		}
+	}
+
+	/**
+	 * Checks if the stage a task computes was replaced.
+	 */
+	private boolean isStageObsolete(ScannedChunk chunk, Stage<?> stage) {
+		synchronized (chunks) {
+			return getChunk(chunk.chunkX, chunk.chunkY, chunk.chunkZ) != chunk
+					|| chunk.blockScanning != stage
+					&& chunk.sideTempScanning != stage
+					&& chunk.safeToGoScanning != stage
+					&& chunk.dangerScanning != stage;
+		}
+	}
+
+	private ScannedChunk getChunk(int chunkX, int chunkY, int chunkZ) {
+		if (chunkY < 0 || chunkY >= CHUNK_SIZE_Y) {
+			return null;
+		}
+		synchronized (chunks) {
+			final ScannedChunk c = chunks[chunkIndex(chunkX, chunkY, chunkZ)];
+			return c != null && c.isAt(chunkX, chunkY, chunkZ) ? c : null;
+		}
+	}
+
+	private Stage<byte[]> getBlockStage(int chunkX, int chunkY, int chunkZ) {
+		if (chunkY < 0) {
+			return barrierStage;
+		} else if (chunkY >= CHUNK_SIZE_Y) {
+			return airStage;
+		}
+		final ScannedChunk c = getChunk(chunkX, chunkY, chunkZ);
+		return c == null ? null : c.blockScanning;
+	}
+
+	private Stage<long[]> getSidesStage(int chunkX, int chunkY, int chunkZ) {
+		if (chunkY >= CHUNK_SIZE_Y) {
+			return noSidesStage;
+		}
+		final ScannedChunk c = getChunk(chunkX, chunkY, chunkZ);
+		return c == null ? null : c.sideTempScanning;
+	}
+
+	private static List<DependWaitEvent> getEvents(Stage<?>... stages) {
+		return getEvents(Arrays.asList(stages));
+	}
+
+	private static List<DependWaitEvent> getEvents(
+			List<? extends Stage<?>> stages) {
+		final ArrayList<DependWaitEvent> events = new ArrayList<DependWaitEvent>();
+		for (Stage<?> s : stages) {
+			events.add(s.done);
+		}
+		return events;
+	}
+
+	/**
+	 * Checks if it is safe to go to the given position. This is the same as
+	 * {@link MovePathFinder#isSafeToTravel(int, int, int, int)} for a
+	 * horizontal move. May only be called by the minecraft thread, a view may
+	 * be used by any thread.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return {@link #SAFE}, {@link #UNSAFE} or {@link #UNKNOWN} if that
+	 *         position was not computed yet.
+	 */
+	public int isSafeToGo(int x, int y, int z) {
+		if (y < 0 || y >= CHUNK_SIZE_Y * 16) {
+			return UNKNOWN;
+		}
+		final ScannedChunk c = chunks[chunkIndex(x >> 4, y >> 4, z >> 4)];
+		if (c == null || c.chunkX != x >> 4 || c.chunkZ != z >> 4) {
+			return UNKNOWN;
+		}
+		final long[] safeToGo = c.safeToGo;
+		if (safeToGo == null) {
+			return UNKNOWN;
+		}
+		final int index = (y & 15) << 8 | (z & 15) << 4 | x & 15;
+		return (safeToGo[index >> 6] & 1l << index) != 0 ? SAFE : UNSAFE;
+	}
+
+	/**
+	 * Gets the danger of hostile mobs at a position. May only be called by the
+	 * minecraft thread, a view may be used by any thread.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The danger, 0 if there is no mob near that position or it was
+	 *         not computed yet. A mob that is {@link DangerSource#distance}
+	 *         dangerous adds that much danger at its position and one less
+	 *         for each block away from it.
+	 */
+	public int getDanger(int x, int y, int z) {
+		if (y < 0 || y >= CHUNK_SIZE_Y * 16) {
+			return 0;
+		}
+		final ScannedChunk c = chunks[chunkIndex(x >> 4, y >> 4, z >> 4)];
+		if (c == null || c.chunkX != x >> 4 || c.chunkZ != z >> 4) {
+			return 0;
+		}
+		final byte[] danger = c.danger;
+		if (danger == null) {
+			return 0;
+		}
+		return danger[(y & 15) << 8 | (z & 15) << 4 | x & 15];
+	}
+
+	private static int chunkIndex(int chunkX, int chunkY, int chunkZ) {
+		final int x = (chunkX % CHUNK_SIZE_X_Z + CHUNK_SIZE_X_Z)
+				% CHUNK_SIZE_X_Z;
+		final int z = (chunkZ % CHUNK_SIZE_X_Z + CHUNK_SIZE_X_Z)
+				% CHUNK_SIZE_X_Z;
+		return (chunkY * CHUNK_SIZE_X_Z + z) * CHUNK_SIZE_X_Z + x;
+	}
+
+	@Override
+	public String toString() {
+		return "MoveScanner [policy=" + policy + "]";
 	}
 }
@@ -149,6 +149,12 @@ public class TunnelPathFinder extends AlongTrackPathFinder {
 
 	private final boolean addBranches;
 
+	/**
+	 * The first step of the track that is neither done nor queued when the
+	 * search started. The steps before it are no destinations.
+	 */
+	private int firstOpenStep;
+
 	private int currentStepNumber = 0;
 	private final Object currentStepNumberMutex = new Object();
 
@@ -170,6 +176,26 @@ public class TunnelPathFinder extends AlongTrackPathFinder {
 		}
 	}
 
+	@Override
+	protected void searchStarted() {
+		super.searchStarted();
+		final BitSet handled = (BitSet) finishedTunnels.clone();
+		handled.or(inQueueTunnels);
+		firstOpenStep = handled.nextClearBit(0);
+		if (length >= 0) {
+			firstOpenStep = Math.min(firstOpenStep, length);
+		}
+	}
+
+	/**
+	 * Estimates the distance to the part of the track that was not tunneled
+	 * yet.
+	 */
+	@Override
+	protected int estimateRemainingDistance(int x, int y, int z) {
+		return estimateDistanceToTrack(x, y, z, firstOpenStep, length);
+	}
+
 	/**
 	 * Test if we should dig a tunnel to that position.
 	 * 
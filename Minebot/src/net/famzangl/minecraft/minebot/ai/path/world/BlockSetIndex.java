@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
+import net.minecraft.util.BlockPos;
+
+/**
+ * Remembers where the blocks of a {@link BlockSet} are. This is used to find
+ * rare blocks like chests or furnaces without scanning the world again.
+ * <p>
+ * The index of the live world is filled in the background: Sections that
+ * are searched before they were indexed are copied and scanned by a job on
+ * the {@link MinebotExecutor}. Whenever a chunk changes, the sections of it
+ * that were indexed are queued again the same way. Indexes of other worlds scan each section
+ * the first time it is searched. The world drops the sections of a chunk
+ * when it changes, see {@link WorldData#getIndex(BlockSet)}.
+ *
+ * @author Michael Zangl
+ */
+public class BlockSetIndex {
+	private static final int SECTIONS = 16;
+	/**
+	 * If we got more than this many chunks, we start again.
+	 */
+	private static final int MAX_CACHED_CHUNKS = 4096;
+	/**
+	 * A section in which no block of the set was found.
+	 */
+	private static final char[] NO_BLOCKS = new char[0];
+
+	/**
+	 * The block positions found in the sections of one chunk. Sections may be
+	 * set by a background job, a section is <code>null</code> if it was not
+	 * scanned yet.
+	 */
+	private static class IndexedChunk {
+		private final AtomicReferenceArray<char[]> sections = new AtomicReferenceArray<char[]>(
+				SECTIONS);
+		/**
+		 * The sections a job was queued for. Only used by the thread that
+		 * owns the world.
+		 */
+		private final boolean[] queued = new boolean[SECTIONS];
+	}
+
+	/**
+	 * Scans section copies in the background.
+	 */
+	private class IndexJob extends MinebotExecutor.Job {
+		private final ArrayList<IndexedChunk> chunks = new ArrayList<IndexedChunk>();
+		private final ArrayList<char[]> sections = new ArrayList<char[]>();
+		private final ArrayList<Integer> sectionYs = new ArrayList<Integer>();
+
+		public IndexJob() {
+			super("Index " + set);
+		}
+
+		private void add(IndexedChunk chunk, int sectionY, char[] ids) {
+			chunks.add(chunk);
+			sectionYs.add(sectionY);
+			sections.add(ids);
+		}
+
+		@Override
+		protected void execute() {
+			for (int i = 0; i < chunks.size() && !isCanceled(); i++) {
+				chunks.get(i).sections.set(sectionYs.get(i),
+						scanSection(sections.get(i)));
+			}
+		}
+	}
+
+	private final WorldData world;
+	private final BlockSet set;
+	/**
+	 * The index of the world our world is a delta of.
+	 */
+	private final BlockSetIndex parentIndex;
+	/**
+	 * If set, sections are only scanned by background jobs.
+	 */
+	private final boolean indexInBackground;
+
+	private final Hashtable<Long, IndexedChunk> chunks = new Hashtable<Long, IndexedChunk>();
+	/**
+	 * The sections that should be scanned next. Only used by the thread that
+	 * owns the world.
+	 */
+	private IndexJob pendingJob;
+
+	BlockSetIndex(WorldData world, BlockSet set, BlockSetIndex parentIndex,
+			boolean indexInBackground) {
+		this.world = world;
+		this.set = set;
+		this.parentIndex = parentIndex;
+		this.indexInBackground = indexInBackground;
+	}
+
+	/**
+	 * Finds all blocks of the set in a box.
+	 *
+	 * @param min
+	 *            The min corner of the box.
+	 * @param max
+	 *            The max corner of the box.
+	 * @return The block positions, ordered by chunk and then by section.
+	 *         <code>null</code> if not all sections of the box were indexed
+	 *         yet. The missing ones are indexed in the background then.
+	 */
+	public List<BlockPos> findBlocks(BlockPos min, BlockPos max) {
+		final ArrayList<BlockPos> found = new ArrayList<BlockPos>();
+		boolean complete = true;
+		final int minY = Math.max(0, min.getY());
+		final int maxY = Math.min(SECTIONS * 16 - 1, max.getY());
+		for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+			for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+				for (int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+					final char[] blocks = getSection(chunkX, chunkZ, sectionY,
+							true);
+					if (blocks == null) {
+						complete = false;
+					}
+					if (!complete) {
+						// Only queue the missing sections.
+						continue;
+					}
+					for (char index : blocks) {
+						final int x = chunkX << 4 | index & 15;
+						final int y = sectionY << 4 | index >> 8;
+						final int z = chunkZ << 4 | index >> 4 & 15;
+						if (x >= min.getX() && x <= max.getX() && y >= minY
+								&& y <= maxY && z >= min.getZ()
+								&& z <= max.getZ()) {
+							found.add(new BlockPos(x, y, z));
+						}
+					}
+				}
+			}
+		}
+		submitPendingJob();
+		return complete ? found : null;
+	}
+
+	private IndexedChunk getChunk(long key) {
+		IndexedChunk chunk = chunks.get(key);
+		if (chunk == null) {
+			if (chunks.size() >= MAX_CACHED_CHUNKS) {
+				chunks.clear();
+			}
+			chunk = new IndexedChunk();
+			chunks.put(key, chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Gets the positions of the blocks in a section.
+	 * 
+	 * @param queue
+	 *            If the section should be queued for indexing when it was
+	 *            not indexed yet.
+	 * @return The positions or <code>null</code> if the section is not
+	 *         indexed yet.
+	 */
+	private char[] getSection(int chunkX, int chunkZ, int sectionY,
+			boolean queue) {
+		final IndexedChunk chunk = getChunk(world.cachePosition(chunkX,
+				chunkZ));
+		char[] section = chunk.sections.get(sectionY);
+		if (section != null) {
+			return section;
+		} else if (indexInBackground) {
+			if (queue && !chunk.queued[sectionY]) {
+				queueSection(chunk, chunkX, chunkZ, sectionY);
+			}
+			return null;
+		} else {
+			section = scanSection(chunkX, chunkZ, sectionY);
+			if (section != null) {
+				chunk.sections.set(sectionY, section);
+			}
+			return section;
+		}
+	}
+
+	private void queueSection(IndexedChunk chunk, int chunkX, int chunkZ,
+			int sectionY) {
+		if (pendingJob == null) {
+			pendingJob = new IndexJob();
+		}
+		pendingJob.add(chunk, sectionY,
+				world.getSectionCopy(chunkX, chunkZ, sectionY));
+		chunk.queued[sectionY] = true;
+	}
+
+	private void submitPendingJob() {
+		if (pendingJob != null) {
+			MinebotExecutor.submit(pendingJob);
+			pendingJob = null;
+		}
+	}
+
+	private char[] scanSection(int chunkX, int chunkZ, int sectionY) {
+		if (parentIndex != null && !world.hasDelta(chunkX, chunkZ)) {
+			synchronized (parentIndex.world) {
+				// null if the parent did not index it yet.
+				return parentIndex.getSection(chunkX, chunkZ, sectionY, false);
+			}
+		}
+		return scanSection(world.getSectionCopy(chunkX, chunkZ, sectionY));
+	}
+
+	private char[] scanSection(char[] ids) {
+		if (ids == null) {
+			return set.containsWithMeta(WorldData.AIR_ID) ? allBlocks()
+					: NO_BLOCKS;
+		}
+		char[] found = NO_BLOCKS;
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (set.containsWithMeta(ids[i])) {
+				if (count >= found.length) {
+					found = Arrays.copyOf(found,
+							Math.max(8, found.length * 2));
+				}
+				found[count++] = (char) i;
+			}
+		}
+		return count == found.length ? found : Arrays.copyOf(found, count);
+	}
+
+	private static char[] allBlocks() {
+		final char[] all = new char[16 * 16 * 16];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = (char) i;
+		}
+		return all;
+	}
+
+	/**
+	 * Drops the index of a chunk.
+	 *
+	 * @param key
+	 *            The chunk position as returned by
+	 *            {@link WorldData#cachePosition(int, int)}.
+	 */
+	void invalidateChunk(long key) {
+		chunks.remove(key);
+	}
+
+	/**
+	 * Indexes the sections of chunks the server changed again in the
+	 * background, if they were indexed or queued before. All other sections
+	 * are queued when they are searched.
+	 * 
+	 * @param keys
+	 *            The chunk positions as returned by
+	 *            {@link WorldData#cachePosition(int, int)}.
+	 */
+	void chunksChanged(List<Long> keys) {
+		for (long key : keys) {
+			final IndexedChunk old = chunks.remove(key);
+			if (!indexInBackground || old == null) {
+				continue;
+			}
+			final IndexedChunk chunk = getChunk(key);
+			for (int sectionY = 0; sectionY < SECTIONS; sectionY++) {
+				if (old.queued[sectionY]) {
+					queueSection(chunk, (int) (key >> 32), (int) key,
+							sectionY);
+				}
+			}
+		}
+		submitPendingJob();
+	}
+
+	@Override
+	public String toString() {
+		return "BlockSetIndex [set=" + set + ", chunks=" + chunks.size() + "]";
+	}
+}
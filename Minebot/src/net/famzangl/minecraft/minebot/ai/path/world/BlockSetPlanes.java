@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path.world;
+
+import java.util.Hashtable;
+
+import net.famzangl.minecraft.minebot.ai.path.world.WorldData.ChunkAccessor;
+
+/**
+ * Caches where the blocks of one {@link BlockSet} are in a {@link WorldData}.
+ * For every 16x16x16 section, one bit per block is stored. The bits use the
+ * same order as the minecraft block storage, so 16 blocks in x-direction are
+ * in the same 16 bits of a long.
+ * <p>
+ * Planes are built when they are first used. The world invalidates them when
+ * a chunk changes, see {@link WorldData#getPlanes(BlockSet)}.
+ *
+ * @author Michael Zangl
+ */
+public class BlockSetPlanes {
+	private static final int SECTIONS = 16;
+	/**
+	 * If we got more than this many chunks, we start again.
+	 */
+	private static final int MAX_CACHED_CHUNKS = 1024;
+	private static final long NO_CHUNK = Long.MIN_VALUE;
+
+	private final WorldData world;
+	private final BlockSet set;
+
+	/**
+	 * The planes for each chunk. A section plane is <code>null</code> if it
+	 * was not built yet.
+	 */
+	private final Hashtable<Long, long[][]> chunks = new Hashtable<Long, long[][]>();
+
+	private long lastChunkKey = NO_CHUNK;
+	private long[][] lastChunk;
+
+	BlockSetPlanes(WorldData world, BlockSet set) {
+		this.world = world;
+		this.set = set;
+	}
+
+	/**
+	 * Checks if a block of the set is at the given position. Same as
+	 * {@link BlockSet#isAt(WorldData, int, int, int)}.
+	 *
+	 * @param x
+	 *            The position in the world.
+	 * @param y
+	 *            The position in the world.
+	 * @param z
+	 *            The position in the world.
+	 * @return <code>true</code> if the block is in the set.
+	 */
+	public boolean isAt(int x, int y, int z) {
+		if (y < 0 || y >= SECTIONS * 16) {
+			return set.isAt(world, x, y, z);
+		}
+		final int index = (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+		return (getPlane(x, y, z)[index >> 6] & 1l << index) != 0;
+	}
+
+	/**
+	 * Checks if the four blocks next to the position are all in the set. Same
+	 * as {@link BlockSets#safeSideAround(WorldData, int, int, int)} for the
+	 * {@link BlockSets#SAFE_SIDE} set.
+	 *
+	 * @param x
+	 *            The position in the world.
+	 * @param y
+	 *            The position in the world.
+	 * @param z
+	 *            The position in the world.
+	 * @return <code>true</code> if all four sides are in the set.
+	 */
+	public boolean isAtAllSides(int x, int y, int z) {
+		final int lx = x & 15;
+		final int lz = z & 15;
+		if (lx == 0 || lx == 15 || lz == 0 || lz == 15 || y < 0
+				|| y >= SECTIONS * 16) {
+			// Not all in one section.
+			return isAt(x + 1, y, z) && isAt(x - 1, y, z)
+					&& isAt(x, y, z + 1) && isAt(x, y, z - 1);
+		}
+		final long[] plane = getPlane(x, y, z);
+		final int row = (y & 15) << 8 | lz << 4;
+		// x - 1 and x + 1 are in the same row
+		final long sides = plane[row >> 6] >>> (row & 63 | lx - 1);
+		final int front = row + 16 | lx;
+		final int back = row - 16 | lx;
+		return (sides & 5) == 5 && (plane[front >> 6] & 1l << front) != 0
+				&& (plane[back >> 6] & 1l << back) != 0;
+	}
+
+	private long[] getPlane(int x, int y, int z) {
+		final int chunkX = x >> 4;
+		final int chunkZ = z >> 4;
+		final long key = world.cachePosition(chunkX, chunkZ);
+		long[][] chunk;
+		if (key == lastChunkKey) {
+			chunk = lastChunk;
+		} else {
+			chunk = chunks.get(key);
+			if (chunk == null) {
+				if (chunks.size() >= MAX_CACHED_CHUNKS) {
+					chunks.clear();
+				}
+				chunk = new long[SECTIONS][];
+				chunks.put(key, chunk);
+			}
+			lastChunkKey = key;
+			lastChunk = chunk;
+		}
+		final int sectionY = y >> 4;
+		long[] plane = chunk[sectionY];
+		if (plane == null) {
+			plane = buildPlane(x, sectionY, z);
+			chunk[sectionY] = plane;
+		}
+		return plane;
+	}
+
+	private long[] buildPlane(int x, int sectionY, int z) {
+		final long[] plane = new long[16 * 16 * 16 / 64];
+		final ChunkAccessor accessor = world.getChunkAccessor(x, z);
+		if (accessor == null) {
+			if (set.containsWithMeta(WorldData.BARRIER_ID)) {
+				fillPlane(plane);
+			}
+			return plane;
+		}
+		// Only read, so no copy is needed.
+		final char[] ids = accessor.getSectionData(sectionY);
+		if (ids == null) {
+			if (set.containsWithMeta(WorldData.AIR_ID)) {
+				fillPlane(plane);
+			}
+			return plane;
+		}
+		for (int i = 0; i < ids.length; i++) {
+			if (set.containsWithMeta(ids[i])) {
+				plane[i >> 6] |= 1l << i;
+			}
+		}
+		return plane;
+	}
+
+	private static void fillPlane(long[] plane) {
+		for (int i = 0; i < plane.length; i++) {
+			plane[i] = -1l;
+		}
+	}
+
+	/**
+	 * Updates a single block in the planes that were already built.
+	 *
+	 * @param x
+	 *            The position in the world.
+	 * @param y
+	 *            The position in the world.
+	 * @param z
+	 *            The position in the world.
+	 * @param blockWithMeta
+	 *            The new block id with meta.
+	 */
+	void blockChanged(int x, int y, int z, int blockWithMeta) {
+		if (y < 0 || y >= SECTIONS * 16) {
+			return;
+		}
+		final long[][] chunk = chunks.get(world.cachePosition(x >> 4, z >> 4));
+		if (chunk == null || chunk[y >> 4] == null) {
+			return;
+		}
+		final long[] plane = chunk[y >> 4];
+		final int index = (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+		if (set.containsWithMeta(blockWithMeta)) {
+			plane[index >> 6] |= 1l << index;
+		} else {
+			plane[index >> 6] &= ~(1l << index);
+		}
+	}
+
+	/**
+	 * Drops the planes of a chunk.
+	 *
+	 * @param key
+	 *            The chunk position as returned by
+	 *            {@link WorldData#cachePosition(int, int)}.
+	 */
+	void invalidateChunk(long key) {
+		chunks.remove(key);
+		if (key == lastChunkKey) {
+			lastChunkKey = NO_CHUNK;
+			lastChunk = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BlockSetPlanes [set=" + set + ", chunks=" + chunks.size()
+				+ "]";
+	}
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path.world;
+
+import java.util.Arrays;
+
+/**
+ * The replaced blocks of one 16x16x16 section. As long as only a few blocks
+ * are replaced, they are stored in a small open addressed hash map. If more
+ * blocks are replaced, a full array of the section is used.
+ *
+ * @author Michael Zangl
+ */
+class SectionDelta {
+	public static final char NOT_REPLACED = 0xffff;
+
+	private static final int SECTION_SIZE = 16 * 16 * 16;
+	private static final int INITIAL_BITS = 4;
+	/**
+	 * If we replaced more than this, we use a dense array. A sparse map of
+	 * that size needs half the memory of the dense array.
+	 */
+	private static final int MAX_SPARSE = 512;
+
+	/**
+	 * The dense replacements or <code>null</code> if the sparse map is used.
+	 */
+	private char[] dense;
+
+	/**
+	 * The section index for each slot. {@link #NOT_REPLACED} for empty slots.
+	 */
+	private char[] sparseKeys;
+	private char[] sparseValues;
+	private int sparseBits;
+	private int sparseSize;
+
+	public SectionDelta() {
+		initSparse(INITIAL_BITS);
+	}
+
+	private void initSparse(int bits) {
+		sparseBits = bits;
+		sparseKeys = new char[1 << bits];
+		sparseValues = new char[1 << bits];
+		Arrays.fill(sparseKeys, NOT_REPLACED);
+		sparseSize = 0;
+	}
+
+	private int hash(int index) {
+		return index * 0x9e3779b1 >>> 32 - sparseBits;
+	}
+
+	/**
+	 * Gets a replacement.
+	 *
+	 * @param index
+	 *            The index in the section, as used by minecraft.
+	 * @return The block with meta or {@link #NOT_REPLACED}
+	 */
+	public int get(int index) {
+		final char[] d = dense;
+		if (d != null) {
+			return d[index];
+		}
+		final int mask = sparseKeys.length - 1;
+		for (int slot = hash(index);; slot = slot + 1 & mask) {
+			final char key = sparseKeys[slot];
+			if (key == index) {
+				return sparseValues[slot];
+			} else if (key == NOT_REPLACED) {
+				return NOT_REPLACED;
+			}
+		}
+	}
+
+	/**
+	 * Replaces a block.
+	 *
+	 * @param index
+	 *            The index in the section.
+	 * @param blockWithMeta
+	 *            The new block.
+	 */
+	public void put(int index, char blockWithMeta) {
+		if (dense != null) {
+			dense[index] = blockWithMeta;
+			return;
+		}
+		final int mask = sparseKeys.length - 1;
+		int slot = hash(index);
+		while (sparseKeys[slot] != NOT_REPLACED && sparseKeys[slot] != index) {
+			slot = slot + 1 & mask;
+		}
+		if (sparseKeys[slot] == NOT_REPLACED) {
+			if (sparseSize >= MAX_SPARSE) {
+				toDense();
+				dense[index] = blockWithMeta;
+				return;
+			} else if ((sparseSize + 1) * 2 > sparseKeys.length) {
+				growSparse();
+				put(index, blockWithMeta);
+				return;
+			}
+			sparseKeys[slot] = (char) index;
+			sparseSize++;
+		}
+		sparseValues[slot] = blockWithMeta;
+	}
+
+	private void growSparse() {
+		final char[] oldKeys = sparseKeys;
+		final char[] oldValues = sparseValues;
+		initSparse(sparseBits + 1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != NOT_REPLACED) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private void toDense() {
+		dense = new char[SECTION_SIZE];
+		Arrays.fill(dense, NOT_REPLACED);
+		for (int i = 0; i < sparseKeys.length; i++) {
+			if (sparseKeys[i] != NOT_REPLACED) {
+				dense[sparseKeys[i]] = sparseValues[i];
+			}
+		}
+		sparseKeys = null;
+		sparseValues = null;
+	}
+
+	/**
+	 * Writes all replacements into a section array.
+	 *
+	 * @param section
+	 *            The block ids of the section.
+	 */
+	public void applyTo(char[] section) {
+		if (dense != null) {
+			for (int i = 0; i < SECTION_SIZE; i++) {
+				if (dense[i] != NOT_REPLACED) {
+					section[i] = dense[i];
+				}
+			}
+		} else {
+			for (int i = 0; i < sparseKeys.length; i++) {
+				if (sparseKeys[i] != NOT_REPLACED) {
+					section[sparseKeys[i]] = sparseValues[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds all replacements of an other delta to this one.
+	 *
+	 * @param other
+	 *            The other delta.
+	 */
+	public void putAll(SectionDelta other) {
+		if (other.dense != null) {
+			for (int i = 0; i < SECTION_SIZE; i++) {
+				if (other.dense[i] != NOT_REPLACED) {
+					put(i, other.dense[i]);
+				}
+			}
+		} else {
+			for (int i = 0; i < other.sparseKeys.length; i++) {
+				if (other.sparseKeys[i] != NOT_REPLACED) {
+					put(other.sparseKeys[i], other.sparseValues[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,628 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.famzangl.minecraft.minebot.ai.AIHelper;
+import net.famzangl.minecraft.minebot.ai.net.ChunkListener;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
+import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraft.util.BlockPos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+/**
+ * A coarse graph of the world that allows planning routes that are longer
+ * than a path finder can search.
+ * <p>
+ * Each 16x16x16 section is split into regions: All positions a player can
+ * stand on that are connected by walking inside that section. Regions are
+ * connected with the regions of the neighbouring sections where the player can
+ * walk from one section to the other. Sections are only analyzed when a route
+ * needs them, and they are dropped when the chunk changes.
+ * <p>
+ * Routes are planned on a {@link WorldSnapshot} in a background job, see
+ * {@link #startPlanning(WorldData, BlockPos, BlockPos)}.
+ *
+ * @author Michael Zangl
+ */
+public class SectionGraph implements ChunkListener {
+	private static final Marker MARKER_GRAPH = MarkerManager
+			.getMarker("section_graph");
+	private static final Logger LOGGER = LogManager
+			.getLogger(SectionGraph.class);
+
+	/**
+	 * How many regions the route planning may look at.
+	 */
+	private static final int MAX_EXPANDED_REGIONS = 4000;
+	/**
+	 * If we analyzed more chunks, we drop the ones that were not used for the
+	 * longest time after planning.
+	 */
+	private static final int MAX_CACHED_CHUNKS = 1024;
+	/**
+	 * The box around the player that is captured for planning.
+	 */
+	private static final int PLAN_RADIUS_X_Z = 112;
+	private static final int PLAN_RADIUS_Y = 48;
+	/**
+	 * We store region indexes in a byte.
+	 */
+	private static final int MAX_REGIONS = 255;
+	private static final byte NO_REGION = (byte) 255;
+
+	private static final int[][] STEPS = { { 1, 0 }, { -1, 0 }, { 0, 1 },
+			{ 0, -1 } };
+
+	private static SectionGraph instance;
+
+	/**
+	 * A set of positions in a section that are connected.
+	 *
+	 * @author Michael Zangl
+	 */
+	public static class Region {
+		private final Section section;
+		private final int index;
+		private BlockPos center;
+		/**
+		 * Positions in other sections we can walk to.
+		 */
+		private final ArrayList<BlockPos> exits = new ArrayList<BlockPos>();
+
+		private Region(Section section, int index) {
+			this.section = section;
+			this.index = index;
+		}
+
+		/**
+		 * @return A position of this region near its center.
+		 */
+		public BlockPos getCenter() {
+			return center;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((section.minX * 31 + section.minY) * 31 + section.minZ)
+					* 31 + index;
+		}
+
+		/**
+		 * Regions are equal if they have the same index in the same section
+		 * position, even if the section was analyzed again.
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			final Region other = (Region) obj;
+			return index == other.index && section.minX == other.section.minX
+					&& section.minY == other.section.minY
+					&& section.minZ == other.section.minZ;
+		}
+
+		@Override
+		public String toString() {
+			return "Region [section=" + section + ", center=" + center
+					+ ", exits=" + exits.size() + "]";
+		}
+	}
+
+	private static class Section {
+		private final int minX, minY, minZ;
+		/**
+		 * <code>false</code> if the snapshot did not contain all blocks around
+		 * the section. Those sections are dropped after planning.
+		 */
+		private final boolean complete;
+		/**
+		 * The region of each block. <code>null</code> if there is none.
+		 */
+		private byte[] regionIndex;
+		private final ArrayList<Region> regions = new ArrayList<Region>();
+
+		public Section(int sectionX, int sectionY, int sectionZ,
+				boolean complete) {
+			minX = sectionX << 4;
+			minY = sectionY << 4;
+			minZ = sectionZ << 4;
+			this.complete = complete;
+		}
+
+		public Region getRegion(int x, int y, int z) {
+			if (regionIndex == null) {
+				return null;
+			}
+			final int region = regionIndex[index(x - minX, y - minY, z - minZ)] & 0xff;
+			return region == (NO_REGION & 0xff) ? null : regions.get(region);
+		}
+
+		@Override
+		public String toString() {
+			return "Section [" + (minX >> 4) + ", " + (minY >> 4) + ", "
+					+ (minZ >> 4) + "]";
+		}
+	}
+
+	private static class QueueEntry implements Comparable<QueueEntry> {
+		private final Region region;
+		private final int distance;
+		private final int priority;
+
+		public QueueEntry(Region region, int distance, int priority) {
+			this.region = region;
+			this.distance = distance;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(QueueEntry o) {
+			return priority - o.priority;
+		}
+	}
+
+	/**
+	 * A route that is planned in the background.
+	 *
+	 * @author Michael Zangl
+	 */
+	public class RoutePlan extends MinebotExecutor.Job {
+		private final WorldSnapshot world;
+		private final BlockPos from;
+		private final BlockPos to;
+		private volatile List<BlockPos> route = new ArrayList<BlockPos>();
+
+		private RoutePlan(WorldSnapshot world, BlockPos from, BlockPos to) {
+			super("Route plan to " + to);
+			this.world = world;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void execute() {
+			route = planRoute(world, from, to);
+		}
+
+		/**
+		 * @return The planned route, see
+		 *         {@link SectionGraph#planRoute(WorldSnapshot, BlockPos, BlockPos)}
+		 *         . Only valid as soon as {@link #isDone()} returns
+		 *         <code>true</code>.
+		 */
+		public List<BlockPos> getRoute() {
+			return route;
+		}
+	}
+
+	/**
+	 * The analyzed sections by chunk, the least recently used first. Only
+	 * accessed while planning.
+	 */
+	private final LinkedHashMap<Long, Section[]> chunks = new LinkedHashMap<Long, Section[]>(
+			16, .75f, true);
+	/**
+	 * Chunks that changed. Filled by the network thread.
+	 */
+	private final ConcurrentLinkedQueue<Long> changedChunks = new ConcurrentLinkedQueue<Long>();
+	private final WorldClient backingWorld;
+
+	private SectionGraph(WorldClient backingWorld) {
+		this.backingWorld = backingWorld;
+	}
+
+	/**
+	 * Gets the graph for the current world.
+	 *
+	 * @param helper
+	 *            The helper.
+	 * @return The graph.
+	 */
+	public static synchronized SectionGraph getInstance(AIHelper helper) {
+		final WorldClient world = helper.getWorld().getBackingWorld();
+		if (instance == null || instance.backingWorld != world) {
+			if (helper.getNetworkHelper() != null) {
+				if (instance != null) {
+					helper.getNetworkHelper().removeChunkChangeListener(
+							instance);
+				}
+				instance = new SectionGraph(world);
+				helper.getNetworkHelper().addChunkChangeListener(instance);
+			} else {
+				instance = new SectionGraph(world);
+			}
+		}
+		return instance;
+	}
+
+	@Override
+	public void chunkChanged(int chunkX, int chunkZ) {
+		changedChunks.add(chunkKey(chunkX, chunkZ));
+	}
+
+	private static long chunkKey(int chunkX, int chunkZ) {
+		return (long) chunkX << 32 | (chunkZ & 0xffffffffl);
+	}
+
+	private static int index(int x, int y, int z) {
+		return y << 8 | z << 4 | x;
+	}
+
+	/**
+	 * Drops all chunks that changed and their neighbours, since the exits of
+	 * the neighbours depend on the changed chunk.
+	 */
+	private void removeChangedChunks() {
+		for (Long key; (key = changedChunks.poll()) != null;) {
+			final int chunkX = (int) (key >> 32);
+			final int chunkZ = (int) (long) key;
+			chunks.remove(key);
+			chunks.remove(chunkKey(chunkX + 1, chunkZ));
+			chunks.remove(chunkKey(chunkX - 1, chunkZ));
+			chunks.remove(chunkKey(chunkX, chunkZ + 1));
+			chunks.remove(chunkKey(chunkX, chunkZ - 1));
+		}
+	}
+
+	/**
+	 * Drops the sections that may not be used for the next route and the
+	 * chunks that were not used for the longest time. Never called during
+	 * planning, so that the regions stay the same for the whole search.
+	 */
+	private void cleanUp() {
+		final Iterator<Entry<Long, Section[]>> it = chunks.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			final Section[] sections = it.next().getValue();
+			for (int i = 0; i < sections.length; i++) {
+				if (sections[i] != null && !sections[i].complete) {
+					sections[i] = null;
+				}
+			}
+		}
+		final Iterator<Long> lru = chunks.keySet().iterator();
+		for (int i = chunks.size(); i > MAX_CACHED_CHUNKS && lru.hasNext(); i--) {
+			lru.next();
+			lru.remove();
+		}
+	}
+
+	private Section getSection(WorldSnapshot world, int sectionX,
+			int sectionY, int sectionZ) {
+		final long key = chunkKey(sectionX, sectionZ);
+		Section[] sections = chunks.get(key);
+		if (sections == null) {
+			sections = new Section[16];
+			chunks.put(key, sections);
+		}
+		if (sections[sectionY] == null) {
+			sections[sectionY] = buildSection(world, sectionX, sectionY,
+					sectionZ);
+		}
+		return sections[sectionY];
+	}
+
+	/**
+	 * Gets the region the given block belongs to.
+	 *
+	 * @param world
+	 *            The world.
+	 * @param pos
+	 *            The position the player would stand at.
+	 * @return The region or <code>null</code> if the player cannot stand
+	 *         there.
+	 */
+	private Region getRegion(WorldSnapshot world, BlockPos pos) {
+		if (pos.getY() < 0 || pos.getY() > 255) {
+			return null;
+		}
+		return getSection(world, pos.getX() >> 4, pos.getY() >> 4,
+				pos.getZ() >> 4).getRegion(pos.getX(), pos.getY(), pos.getZ());
+	}
+
+	/**
+	 * Checks if the snapshot contains all blocks a section depends on: The
+	 * section itself and the border to the neighbouring sections.
+	 */
+	private static boolean isComplete(WorldSnapshot world, int sectionX,
+			int sectionY, int sectionZ) {
+		for (int x = sectionX - 1; x <= sectionX + 1; x++) {
+			for (int z = sectionZ - 1; z <= sectionZ + 1; z++) {
+				for (int y = sectionY - 1; y <= sectionY + 1; y++) {
+					if (!world.isCaptured(x, z, y)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private Section buildSection(WorldSnapshot world, int sectionX,
+			int sectionY, int sectionZ) {
+		final Section section = new Section(sectionX, sectionY, sectionZ,
+				isComplete(world, sectionX, sectionY, sectionZ));
+		final boolean[] standable = new boolean[4096];
+		boolean anyStandable = false;
+		for (int y = 0; y < 16; y++) {
+			for (int z = 0; z < 16; z++) {
+				for (int x = 0; x < 16; x++) {
+					if (isStandable(world, section.minX + x, section.minY + y,
+							section.minZ + z)) {
+						standable[index(x, y, z)] = true;
+						anyStandable = true;
+					}
+				}
+			}
+		}
+		if (!anyStandable) {
+			return section;
+		}
+
+		section.regionIndex = new byte[4096];
+		Arrays.fill(section.regionIndex, NO_REGION);
+		final int[] queue = new int[4096];
+		for (int start = 0; start < 4096
+				&& section.regions.size() < MAX_REGIONS; start++) {
+			if (!standable[start] || section.regionIndex[start] != NO_REGION) {
+				continue;
+			}
+			final Region region = new Region(section, section.regions.size());
+			final byte regionIndex = (byte) region.index;
+			section.regions.add(region);
+			section.regionIndex[start] = regionIndex;
+			queue[0] = start;
+			int queueEnd = 1;
+			long sumX = 0, sumY = 0, sumZ = 0;
+			for (int i = 0; i < queueEnd; i++) {
+				final int current = queue[i];
+				final int x = current & 15;
+				final int z = current >> 4 & 15;
+				final int y = current >> 8;
+				sumX += x;
+				sumY += y;
+				sumZ += z;
+				for (final int[] step : STEPS) {
+					for (int dy = -1; dy <= 1; dy++) {
+						final int nx = x + step[0];
+						final int ny = y + dy;
+						final int nz = z + step[1];
+						final int wx = section.minX + nx;
+						final int wy = section.minY + ny;
+						final int wz = section.minZ + nz;
+						if (nx < 0 || nx > 15 || ny < 0 || ny > 15 || nz < 0
+								|| nz > 15) {
+							if (isStandable(world, wx, wy, wz)
+									&& canStep(world, section.minX + x,
+											section.minY + y, section.minZ
+													+ z, wx, wy, wz)) {
+								region.exits.add(new BlockPos(wx, wy, wz));
+							}
+						} else {
+							final int n = index(nx, ny, nz);
+							if (standable[n]
+									&& section.regionIndex[n] == NO_REGION
+									&& canStep(world, section.minX + x,
+											section.minY + y, section.minZ
+													+ z, wx, wy, wz)) {
+								section.regionIndex[n] = regionIndex;
+								queue[queueEnd++] = n;
+							}
+						}
+					}
+				}
+			}
+			region.center = findCenter(section, queue, queueEnd, sumX
+					/ (float) queueEnd, sumY / (float) queueEnd, sumZ
+					/ (float) queueEnd);
+		}
+		return section;
+	}
+
+	private BlockPos findCenter(Section section, int[] blocks, int count,
+			float centerX, float centerY, float centerZ) {
+		int best = blocks[0];
+		float bestDistance = Float.POSITIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			final float dx = (blocks[i] & 15) - centerX;
+			final float dy = (blocks[i] >> 8) - centerY;
+			final float dz = (blocks[i] >> 4 & 15) - centerZ;
+			final float distance = dx * dx + dy * dy + dz * dz;
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = blocks[i];
+			}
+		}
+		return new BlockPos(section.minX + (best & 15), section.minY
+				+ (best >> 8), section.minZ + (best >> 4 & 15));
+	}
+
+	private static boolean isStandable(WorldData world, int x, int y, int z) {
+		return BlockSets.FEET_CAN_WALK_THROUGH.isAt(world, x, y, z)
+				&& BlockSets.HEAD_CAN_WALK_TRHOUGH.isAt(world, x, y + 1, z)
+				&& BlockSets.SAFE_GROUND.isAt(world, x, y - 1, z);
+	}
+
+	/**
+	 * Checks if there is enough space to step between two standable positions
+	 * next to each other.
+	 */
+	private static boolean canStep(WorldData world, int x, int y, int z,
+			int toX, int toY, int toZ) {
+		if (toY > y) {
+			return BlockSets.HEAD_CAN_WALK_TRHOUGH.isAt(world, x, y + 2, z);
+		} else if (toY < y) {
+			return BlockSets.HEAD_CAN_WALK_TRHOUGH.isAt(world, toX, toY + 2,
+					toZ);
+		} else {
+			return true;
+		}
+	}
+
+	private static int estimateDistance(BlockPos from, BlockPos to) {
+		return Math.max(
+				Math.abs(from.getX() - to.getX())
+						+ Math.abs(from.getZ() - to.getZ()),
+				Math.abs(from.getY() - to.getY()));
+	}
+
+	private HashSet<Region> getNeighbours(WorldSnapshot world, Region region) {
+		final HashSet<Region> neighbours = new HashSet<Region>();
+		for (final BlockPos exit : region.exits) {
+			final Region neighbour = getRegion(world, exit);
+			if (neighbour != null) {
+				neighbours.add(neighbour);
+			}
+		}
+		return neighbours;
+	}
+
+	/**
+	 * Finds the region we should start at. This is the region the player is
+	 * in or the nearest region in the same section.
+	 */
+	private Region getStartRegion(WorldSnapshot world, BlockPos from) {
+		final Region region = getRegion(world, from);
+		if (region != null || from.getY() < 0 || from.getY() > 255) {
+			return region;
+		}
+		Region best = null;
+		for (final Region r : getSection(world, from.getX() >> 4,
+				from.getY() >> 4, from.getZ() >> 4).regions) {
+			if (best == null
+					|| estimateDistance(r.center, from) < estimateDistance(
+							best.center, from)) {
+				best = r;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Takes a snapshot of the world around the start position and plans a
+	 * route on it in the background. Needs to be called on the client thread.
+	 *
+	 * @param world
+	 *            The world. This should be the current world state.
+	 * @param from
+	 *            The start position.
+	 * @param to
+	 *            The destination.
+	 * @return The job that plans the route.
+	 */
+	public RoutePlan startPlanning(WorldData world, BlockPos from, BlockPos to) {
+		final WorldSnapshot snapshot = new WorldSnapshot(world, from,
+				PLAN_RADIUS_X_Z, PLAN_RADIUS_Y);
+		return MinebotExecutor.submit(new RoutePlan(snapshot, from, to));
+	}
+
+	/**
+	 * Plans a coarse route through the world. If the destination cannot be
+	 * reached in the snapshot, the route leads to the region nearest to it.
+	 *
+	 * @param world
+	 *            The snapshot to plan on.
+	 * @param from
+	 *            The start position.
+	 * @param to
+	 *            The destination.
+	 * @return The centers of the regions to walk through, excluding the start
+	 *         region. Empty if no route was found.
+	 */
+	public synchronized List<BlockPos> planRoute(WorldSnapshot world,
+			BlockPos from, BlockPos to) {
+		removeChangedChunks();
+		try {
+			return searchRoute(world, from, to);
+		} finally {
+			cleanUp();
+		}
+	}
+
+	private List<BlockPos> searchRoute(WorldSnapshot world, BlockPos from,
+			BlockPos to) {
+		final LinkedList<BlockPos> route = new LinkedList<BlockPos>();
+		final Region start = getStartRegion(world, from);
+		if (start == null) {
+			LOGGER.debug(MARKER_GRAPH, "Not standing in any region: " + from);
+			return route;
+		}
+		final Region goal = getRegion(world, to);
+
+		final HashMap<Region, Integer> distances = new HashMap<Region, Integer>();
+		final HashMap<Region, Region> cameFrom = new HashMap<Region, Region>();
+		final PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>();
+		distances.put(start, 0);
+		queue.add(new QueueEntry(start, 0, estimateDistance(start.center, to)));
+		Region best = start;
+		int expanded = 0;
+		while (!queue.isEmpty() && expanded < MAX_EXPANDED_REGIONS) {
+			final QueueEntry entry = queue.poll();
+			if (entry.distance > distances.get(entry.region)) {
+				continue;
+			}
+			expanded++;
+			if (entry.region.equals(goal)) {
+				best = goal;
+				break;
+			}
+			if (estimateDistance(entry.region.center, to) < estimateDistance(
+					best.center, to)) {
+				best = entry.region;
+			}
+			for (final Region neighbour : getNeighbours(world, entry.region)) {
+				final int distance = entry.distance
+						+ estimateDistance(entry.region.center,
+								neighbour.center);
+				final Integer oldDistance = distances.get(neighbour);
+				if (oldDistance == null || distance < oldDistance) {
+					distances.put(neighbour, distance);
+					cameFrom.put(neighbour, entry.region);
+					queue.add(new QueueEntry(neighbour, distance, distance
+							+ estimateDistance(neighbour.center, to)));
+				}
+			}
+		}
+		LOGGER.debug(MARKER_GRAPH, "Planned route to " + to + " ending at "
+				+ best + " after " + expanded + " regions.");
+
+		for (Region r = best; !r.equals(start); r = cameFrom.get(r)) {
+			route.addFirst(r.center);
+		}
+		return route;
+	}
+}
@@ -1,10 +1,20 @@
 package net.famzangl.minecraft.minebot.ai.path.world;
 
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.famzangl.minecraft.minebot.ai.net.BlockChangeListener;
+import net.famzangl.minecraft.minebot.ai.net.ChunkListener;
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner;
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner.ScannerPolicy;
 import net.famzangl.minecraft.minebot.ai.command.BlockWithData;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockTorch;
 import net.minecraft.block.BlockWallSign;
 import net.minecraft.block.state.IBlockState;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.init.Blocks;
@@ -20,15 +30,27 @@ import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
  * 
  * @author Michael Zangl
  */
-public class WorldData {
-	private static final int BARRIER_ID = Block.getIdFromBlock(Blocks.barrier) << 4;
-	private static final int AIR_ID = 0;
-	private static final int CACHE_ENTRIES = 10;
+public class WorldData implements ChunkListener, BlockChangeListener {
+	protected static final int BARRIER_ID = Block.getIdFromBlock(Blocks.barrier) << 4;
+	protected static final int AIR_ID = 0;
+	/**
+	 * The chunk cache is a square of at least 16x16 and at most 64x64 chunks.
+	 */
+	private static final int MIN_CACHE_BITS = 4;
+	private static final int MAX_CACHE_BITS = 6;
 	/**
 	 * A cache pos that may never occur naturally.
 	 */
-	private static final int CACHE_INVALID = 0x10000000;
+	private static final long CACHE_INVALID = 0x10000000;
 	private static final double FLOOR_HEIGHT = .55;
+	/**
+	 * How many section copies we keep for snapshots.
+	 */
+	private static final int MAX_SHARED_SECTIONS = 2048;
+	/**
+	 * Marks a shared section that only contains air.
+	 */
+	private static final char[] AIR_SECTION = new char[0];
 
 	public static abstract class ChunkAccessor {
 		protected ExtendedBlockStorage[] blockStorage;
@@ -49,6 +71,39 @@ public class WorldData {
 
 			return blockId;
 		}
+
+		/**
+		 * Gets the raw block ids of one 16x16x16 section of this chunk
+		 * without copying them. The array must not be modified. For the live
+		 * world, it is the array minecraft uses, so it may only be read by
+		 * the minecraft thread.
+		 * 
+		 * @param sectionY
+		 *            The section index (y >> 4).
+		 * @return The block ids or <code>null</code> if that section only
+		 *         contains air.
+		 */
+		public char[] getSectionData(int sectionY) {
+			if (sectionY < 0 || sectionY >= blockStorage.length) {
+				return null;
+			}
+			final ExtendedBlockStorage extendedblockstorage = blockStorage[sectionY];
+			return extendedblockstorage == null ? null : extendedblockstorage
+					.getData();
+		}
+
+		/**
+		 * Copies the raw block ids of one 16x16x16 section of this chunk.
+		 * 
+		 * @param sectionY
+		 *            The section index (y >> 4).
+		 * @return A copy of the block ids or <code>null</code> if that section
+		 *         only contains air.
+		 */
+		public char[] copySection(int sectionY) {
+			final char[] data = getSectionData(sectionY);
+			return data == null ? null : data.clone();
+		}
 	}
 
 	public static class ChunkAccessorUnmodified extends ChunkAccessor {
@@ -58,18 +113,100 @@ public class WorldData {
 		}
 	}
 
-	private long[] cachedPos = new long[CACHE_ENTRIES];
-	private ChunkAccessor[] cached = new ChunkAccessor[CACHE_ENTRIES];
+	/**
+	 * A direct mapped chunk cache. Only the live world has one, derived
+	 * worlds only remember the last chunk they used. Invalidating only clears
+	 * the slots that were filled since the last invalidation, so no outdated
+	 * accessor is kept alive.
+	 */
+	private final int cacheBits;
+	private final long[] cachedPos;
+	private final ChunkAccessor[] cached;
+	private final int[] usedSlots;
+	private int usedSlotCount;
 
-	private int chunkCacheReplaceCounter = 0;
+	private long lastCachedPos = CACHE_INVALID;
+	private ChunkAccessor lastCached;
+
+	/**
+	 * The membership planes of the block sets that were requested.
+	 */
+	private final Hashtable<BlockSet, BlockSetPlanes> planes = new Hashtable<BlockSet, BlockSetPlanes>();
+	/**
+	 * The block indexes that were requested.
+	 */
+	private final Hashtable<BlockSet, BlockSetIndex> indexes = new Hashtable<BlockSet, BlockSetIndex>();
+	/**
+	 * The move scanners that were requested.
+	 */
+	private final Hashtable<ScannerPolicy, MoveScanner> moveScanners = new Hashtable<ScannerPolicy, MoveScanner>();
+	/**
+	 * Chunks the server changed. Their planes and indexes are dropped on the
+	 * next cache invalidation.
+	 */
+	private final ConcurrentLinkedQueue<Long> changedChunks = new ConcurrentLinkedQueue<Long>();
+	/**
+	 * Single blocks the server changed. Their chunks are handled like
+	 * {@link #changedChunks}, but move scanners only scan their sections
+	 * again.
+	 */
+	private final ConcurrentLinkedQueue<BlockPos> changedBlocks = new ConcurrentLinkedQueue<BlockPos>();
+
+	/**
+	 * Copies of the sections that were used for snapshots. They are never
+	 * modified, so all snapshots can share them.
+	 */
+	private final Hashtable<Long, char[][]> sharedSections = new Hashtable<Long, char[][]>();
+	private int sharedSectionCount;
 
 	protected final WorldClient theWorld;
 	private EntityPlayerSP thePlayerToGetPositionFrom;
 
+	/**
+	 * Creates the live world.
+	 * 
+	 * @param theWorld
+	 *            The world to read.
+	 * @param thePlayerToGetPositionFrom
+	 *            The player.
+	 */
 	public WorldData(WorldClient theWorld,
 			EntityPlayerSP thePlayerToGetPositionFrom) {
 		this.theWorld = theWorld;
 		this.thePlayerToGetPositionFrom = thePlayerToGetPositionFrom;
+		cacheBits = getCacheBits(Minecraft
+				.getMinecraft().gameSettings.renderDistanceChunks);
+		cachedPos = new long[1 << 2 * cacheBits];
+		cached = new ChunkAccessor[cachedPos.length];
+		usedSlots = new int[cachedPos.length];
+	}
+
+	/**
+	 * Creates a world that is derived from an other world. It has no chunk
+	 * cache of its own.
+	 * 
+	 * @param theWorld
+	 *            The minecraft world of the source.
+	 */
+	protected WorldData(WorldClient theWorld) {
+		this.theWorld = theWorld;
+		cacheBits = 0;
+		cachedPos = null;
+		cached = null;
+		usedSlots = null;
+	}
+
+	/**
+	 * Gets the cache size needed so that all loaded chunks fit.
+	 * 
+	 * @param renderDistance
+	 *            The render distance in chunks.
+	 * @return log2 of the side length of the cache.
+	 */
+	private static int getCacheBits(int renderDistance) {
+		final int loadedChunks = 2 * renderDistance + 1;
+		final int bits = 32 - Integer.numberOfLeadingZeros(loadedChunks - 1);
+		return Math.max(MIN_CACHE_BITS, Math.min(MAX_CACHE_BITS, bits));
 	}
 
 	/**
@@ -95,27 +232,35 @@ public class WorldData {
 		return a == null ? BARRIER_ID : a.getBlockIdWithMeta(x, y, z);
 	}
 
-	private ChunkAccessor getChunkAccessor(int x, int z) {
+	protected ChunkAccessor getChunkAccessor(int x, int z) {
 		int chunkX = x >> 4;
 		int chunkZ = z >> 4;
-		ChunkAccessor chunk = null;
 		long posForCache = cachePosition(chunkX, chunkZ);
+		if (posForCache == lastCachedPos) {
+			return lastCached;
+		}
 
-		for (int i = 0; i < CACHE_ENTRIES; i++) {
-			if (cachedPos[i] == posForCache) {
-				return cached[i];
+		ChunkAccessor chunk;
+		if (cached == null) {
+			chunk = generateChunkAccessor(chunkX, chunkZ);
+		} else {
+			final int mask = (1 << cacheBits) - 1;
+			final int index = (chunkX & mask) | (chunkZ & mask) << cacheBits;
+			chunk = cached[index];
+			if (chunk == null || cachedPos[index] != posForCache) {
+				chunk = generateChunkAccessor(chunkX, chunkZ);
+				if (chunk != null) {
+					if (cached[index] == null) {
+						usedSlots[usedSlotCount++] = index;
+					}
+					cachedPos[index] = posForCache;
+					cached[index] = chunk;
+				}
 			}
 		}
 
-		chunk = generateChunkAccessor(chunkX, chunkZ);
-
-		cachedPos[chunkCacheReplaceCounter] = posForCache;
-		cached[chunkCacheReplaceCounter] = chunk;
-
-		chunkCacheReplaceCounter++;
-		if (chunkCacheReplaceCounter >= CACHE_ENTRIES) {
-			chunkCacheReplaceCounter = 0;
-		}
+		lastCachedPos = posForCache;
+		lastCached = chunk;
 		return chunk;
 	}
 
@@ -136,10 +281,266 @@ public class WorldData {
 	}
 
 	public void invalidateChunkCache() {
-		for (int i = 0; i < CACHE_ENTRIES; i++) {
-			// chunk coord would be invalid.
-			cachedPos[i] = CACHE_INVALID;
+		lastCachedPos = CACHE_INVALID;
+		lastCached = null;
+		for (int i = 0; i < usedSlotCount; i++) {
+			cached[usedSlots[i]] = null;
+		}
+		usedSlotCount = 0;
+		processChangedChunks();
+	}
+
+	private void processChangedChunks() {
+		if (changedChunks.isEmpty() && changedBlocks.isEmpty()) {
+			return;
+		}
+		final ArrayList<Long> chunks = new ArrayList<Long>();
+		for (Long key; (key = changedChunks.poll()) != null;) {
+			chunks.add(key);
+		}
+		final ArrayList<BlockPos> blocks = new ArrayList<BlockPos>();
+		for (BlockPos pos; (pos = changedBlocks.poll()) != null;) {
+			blocks.add(pos);
+		}
+		final LinkedHashSet<Long> changed = new LinkedHashSet<Long>(chunks);
+		for (BlockPos pos : blocks) {
+			changed.add(cachePosition(pos.getX() >> 4, pos.getZ() >> 4));
+		}
+		for (long key : changed) {
+			invalidatePlanes(key);
+			final char[][] sections = sharedSections.remove(key);
+			if (sections != null) {
+				for (char[] section : sections) {
+					if (section != null) {
+						sharedSectionCount--;
+					}
+				}
+			}
 		}
+		// After the shared sections were dropped, since they are used again.
+		for (MoveScanner scanner : moveScanners.values()) {
+			for (long key : chunks) {
+				scanner.chunkChanged((int) (key >> 32), (int) key);
+			}
+			for (BlockPos pos : blocks) {
+				scanner.blockChanged(pos);
+			}
+		}
+		for (BlockSetIndex index : indexes.values()) {
+			index.chunksChanged(new ArrayList<Long>(changed));
+		}
+	}
+
+	/**
+	 * Gets a copy of the block ids of one section. The copy may be shared with
+	 * other callers, so it must not be modified. On the live world, this may
+	 * only be called by the minecraft thread.
+	 * 
+	 * @param chunkX
+	 *            The chunk position.
+	 * @param chunkZ
+	 *            The chunk position.
+	 * @param sectionY
+	 *            The section index (y >> 4).
+	 * @return The block ids or <code>null</code> if that section only contains
+	 *         air.
+	 */
+	public char[] getSectionCopy(int chunkX, int chunkZ, int sectionY) {
+		if (sectionY < 0 || sectionY >= 16) {
+			return null;
+		}
+		processChangedChunks();
+		final long key = cachePosition(chunkX, chunkZ);
+		char[][] sections = sharedSections.get(key);
+		if (sections == null) {
+			if (sharedSectionCount >= MAX_SHARED_SECTIONS) {
+				sharedSections.clear();
+				sharedSectionCount = 0;
+			}
+			sections = new char[16][];
+			sharedSections.put(key, sections);
+		}
+		char[] section = sections[sectionY];
+		if (section == null) {
+			final ChunkAccessor accessor = getChunkAccessor(chunkX << 4,
+					chunkZ << 4);
+			section = accessor == null ? null : accessor
+					.copySection(sectionY);
+			if (section == null) {
+				section = AIR_SECTION;
+			}
+			sections[sectionY] = section;
+			sharedSectionCount++;
+		}
+		return section == AIR_SECTION ? null : section;
+	}
+
+	/**
+	 * Gets an index of the positions of the blocks in the given set. The
+	 * index is kept up to date the same way the planes are (see
+	 * {@link #getPlanes(BlockSet)}), so it can be kept for the whole game. On
+	 * the live world, it is filled in the background, but it may only be used
+	 * by the minecraft thread.
+	 * 
+	 * @param set
+	 *            The set to index.
+	 * @return The index.
+	 */
+	public BlockSetIndex getIndex(BlockSet set) {
+		processChangedChunks();
+		BlockSetIndex index = indexes.get(set);
+		if (index == null) {
+			index = createIndex(set);
+			indexes.put(set, index);
+		}
+		return index;
+	}
+
+	protected BlockSetIndex createIndex(BlockSet set) {
+		return new BlockSetIndex(this, set, null, true);
+	}
+
+	/**
+	 * Gets a scanner that computes which blocks are safe to go in the
+	 * background. The scanner is kept up to date like the planes are and
+	 * continues scanning around the player each time this is called. It may
+	 * only be used by the minecraft thread.
+	 * 
+	 * @param policy
+	 *            The blocks to scan for.
+	 * @return The scanner or <code>null</code> if this world cannot be
+	 *         scanned in the background.
+	 */
+	public MoveScanner getMoveScanner(ScannerPolicy policy) {
+		processChangedChunks();
+		MoveScanner scanner = moveScanners.get(policy);
+		if (scanner == null) {
+			scanner = new MoveScanner(this, policy);
+			moveScanners.put(policy, scanner);
+		}
+		scanner.update(getPlayerPosition());
+		return scanner;
+	}
+
+	/**
+	 * Checks if this world changed blocks of a chunk compared to the world it
+	 * is based on.
+	 * 
+	 * @param chunkX
+	 * @param chunkZ
+	 * @return <code>true</code> if there are changes.
+	 */
+	public boolean hasDelta(int chunkX, int chunkZ) {
+		return false;
+	}
+
+	/**
+	 * Drops all block indexes of a chunk.
+	 * 
+	 * @param chunkX
+	 * @param chunkZ
+	 */
+	protected void invalidateIndexes(int chunkX, int chunkZ) {
+		invalidateIndexes(cachePosition(chunkX, chunkZ));
+	}
+
+	private void invalidateIndexes(long key) {
+		for (BlockSetIndex index : indexes.values()) {
+			index.invalidateChunk(key);
+		}
+	}
+
+	/**
+	 * Drops the cached accessor of a single chunk.
+	 * 
+	 * @param chunkX
+	 * @param chunkZ
+	 */
+	protected void invalidateChunkCache(int chunkX, int chunkZ) {
+		final long posForCache = cachePosition(chunkX, chunkZ);
+		if (posForCache == lastCachedPos) {
+			lastCachedPos = CACHE_INVALID;
+			lastCached = null;
+		}
+		if (cached == null) {
+			return;
+		}
+		final int mask = (1 << cacheBits) - 1;
+		final int index = (chunkX & mask) | (chunkZ & mask) << cacheBits;
+		if (cachedPos[index] == posForCache) {
+			// The slot stays used, the next invalidation clears it.
+			cachedPos[index] = CACHE_INVALID;
+		}
+	}
+
+	/**
+	 * Gets the membership planes for a block set. Those are faster than
+	 * {@link BlockSet#isAt(WorldData, int, int, int)} if many blocks are
+	 * checked. They are only updated when a chunk change was received by
+	 * {@link #chunkChanged(int, int)} and {@link #invalidateChunkCache()} was
+	 * called afterwards, so only use them for path finding.
+	 * 
+	 * @param set
+	 *            The set.
+	 * @return The planes for that set.
+	 */
+	public BlockSetPlanes getPlanes(BlockSet set) {
+		BlockSetPlanes p = planes.get(set);
+		if (p == null) {
+			p = new BlockSetPlanes(this, set);
+			planes.put(set, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Updates one block in all membership planes that were built.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param blockWithMeta
+	 *            The new block.
+	 */
+	protected void updatePlanes(int x, int y, int z, int blockWithMeta) {
+		for (BlockSetPlanes p : planes.values()) {
+			p.blockChanged(x, y, z, blockWithMeta);
+		}
+	}
+
+	/**
+	 * Drops all membership planes of a chunk.
+	 * 
+	 * @param chunkX
+	 * @param chunkZ
+	 */
+	protected void invalidatePlanes(int chunkX, int chunkZ) {
+		invalidatePlanes(cachePosition(chunkX, chunkZ));
+	}
+
+	private void invalidatePlanes(long key) {
+		for (BlockSetPlanes p : planes.values()) {
+			p.invalidateChunk(key);
+		}
+	}
+
+	/**
+	 * Called by the network thread. The change is also reported on the
+	 * minecraft thread right before it is applied, so planes are never built
+	 * from the old chunk after the last report.
+	 */
+	@Override
+	public void chunkChanged(int chunkX, int chunkZ) {
+		changedChunks.add(cachePosition(chunkX, chunkZ));
+	}
+
+	/**
+	 * Called by the network thread, like {@link #chunkChanged(int, int)}.
+	 * Only the section of the block needs to be scanned again.
+	 */
+	@Override
+	public void blockChanged(BlockPos pos) {
+		changedBlocks.add(pos);
 	}
 
 	public WorldClient getBackingWorld() {
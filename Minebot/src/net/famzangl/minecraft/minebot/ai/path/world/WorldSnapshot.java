@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path.world;
+
+import java.util.Collection;
+
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner;
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner.ScannerPolicy;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.Vec3;
+
+/**
+ * An immutable copy of a box of the world. It is created on the client thread
+ * and can then be read by any other thread. All blocks outside of the captured
+ * box are reported as barrier blocks.
+ * <p>
+ * If the world the snapshot is taken from has a delta, that delta is part of
+ * the snapshot. The snapshot is its own current state.
+ * <p>
+ * Taking a snapshot is cheap if the sections were used by a snapshot before.
+ * The section copies are shared until the server changes the chunk, see
+ * {@link WorldData#getSectionCopy(int, int, int)}. Blocks can be read by
+ * several threads at the same time.
+ * <p>
+ * A snapshot can also capture a view of the {@link MoveScanner} of the live
+ * world. The chunks the delta of the source changed are reported by
+ * {@link #hasDelta(int, int)}, so that the flags are not used there.
+ *
+ * @author Michael Zangl
+ */
+public class WorldSnapshot extends WorldData {
+
+	private static class SnapshotChunk extends ChunkAccessor {
+		private final char[][] sections;
+		private final int minSection;
+
+		public SnapshotChunk(char[][] sections, int minSection) {
+			this.sections = sections;
+			this.minSection = minSection;
+		}
+
+		@Override
+		public int getBlockIdWithMeta(int x, int y, int z) {
+			final int section = (y >> 4) - minSection;
+			if (section < 0 || section >= sections.length) {
+				return BARRIER_ID;
+			}
+			final char[] data = sections[section];
+			return data == null ? AIR_ID
+					: data[(y & 15) << 8 | (z & 15) << 4 | x & 15];
+		}
+
+		@Override
+		public char[] getSectionData(int sectionY) {
+			final int section = sectionY - minSection;
+			if (section < 0 || section >= sections.length) {
+				return null;
+			}
+			return sections[section];
+		}
+	}
+
+	private final SnapshotChunk[] chunks;
+	/**
+	 * The chunks the source world had a delta for or that were copied again
+	 * after the move scanner view was taken.
+	 */
+	private final boolean[] deltas;
+	private final ScannerPolicy scannerPolicy;
+	/**
+	 * A view of the scanner of the source world or <code>null</code>.
+	 */
+	private final MoveScanner moveScanner;
+	private final int minSection;
+	private final int maxSection;
+	private final int minChunkX;
+	private final int minChunkZ;
+	private final int chunksX;
+	private final int chunksZ;
+	private final BlockPos playerPosition;
+
+	/**
+	 * Copies the given box out of the world.
+	 *
+	 * @param source
+	 *            The world to copy.
+	 * @param center
+	 *            The center of the box.
+	 * @param radiusXZ
+	 *            The number of blocks to capture in x and z direction.
+	 * @param radiusY
+	 *            The number of blocks to capture in y direction.
+	 */
+	public WorldSnapshot(WorldData source, BlockPos center, int radiusXZ,
+			int radiusY) {
+		this(source, center, radiusXZ, radiusY, null);
+	}
+
+	/**
+	 * Copies the given box out of the world and captures what the move
+	 * scanner computed so far.
+	 *
+	 * @param source
+	 *            The world to copy.
+	 * @param center
+	 *            The center of the box.
+	 * @param radiusXZ
+	 *            The number of blocks to capture in x and z direction.
+	 * @param radiusY
+	 *            The number of blocks to capture in y direction.
+	 * @param scannerPolicy
+	 *            The policy of the scanner to capture or <code>null</code>.
+	 */
+	public WorldSnapshot(WorldData source, BlockPos center, int radiusXZ,
+			int radiusY, ScannerPolicy scannerPolicy) {
+		super(source.theWorld);
+		this.playerPosition = source.getPlayerPosition();
+		minChunkX = center.getX() - radiusXZ >> 4;
+		minChunkZ = center.getZ() - radiusXZ >> 4;
+		chunksX = (center.getX() + radiusXZ >> 4) - minChunkX + 1;
+		chunksZ = (center.getZ() + radiusXZ >> 4) - minChunkZ + 1;
+		minSection = Math.max(0, center.getY() - radiusY) >> 4;
+		maxSection = Math.min(255, center.getY() + radiusY) >> 4;
+
+		chunks = new SnapshotChunk[chunksX * chunksZ];
+		deltas = new boolean[chunks.length];
+		for (int cx = 0; cx < chunksX; cx++) {
+			for (int cz = 0; cz < chunksZ; cz++) {
+				deltas[cx * chunksZ + cz] = source.hasDelta(minChunkX + cx,
+						minChunkZ + cz);
+				final ChunkAccessor accessor = source.getChunkAccessor(
+						(minChunkX + cx) << 4, (minChunkZ + cz) << 4);
+				if (accessor == null) {
+					continue;
+				}
+				final char[][] sections = new char[maxSection - minSection + 1][];
+				for (int s = 0; s < sections.length; s++) {
+					sections[s] = source.getSectionCopy(minChunkX + cx,
+							minChunkZ + cz, minSection + s);
+				}
+				chunks[cx * chunksZ + cz] = new SnapshotChunk(sections,
+						minSection);
+			}
+		}
+
+		this.scannerPolicy = scannerPolicy;
+		final MoveScanner scanner = scannerPolicy == null ? null : source
+				.getMoveScanner(scannerPolicy);
+		moveScanner = scanner == null ? null : scanner.createView();
+	}
+
+	/**
+	 * Creates a snapshot that is an older one with the blocks that changed
+	 * since then. Only the sections that contain a changed block are copied
+	 * again, the others are shared with the old snapshot.
+	 *
+	 * @param old
+	 *            The old snapshot. It is not changed.
+	 * @param source
+	 *            The world to copy the changed sections from.
+	 * @param changed
+	 *            The blocks that changed since the old snapshot was taken.
+	 */
+	public WorldSnapshot(WorldSnapshot old, WorldData source,
+			Collection<BlockPos> changed) {
+		super(source.theWorld);
+		playerPosition = old.playerPosition;
+		minChunkX = old.minChunkX;
+		minChunkZ = old.minChunkZ;
+		chunksX = old.chunksX;
+		chunksZ = old.chunksZ;
+		minSection = old.minSection;
+		maxSection = old.maxSection;
+		scannerPolicy = old.scannerPolicy;
+		moveScanner = old.moveScanner;
+		chunks = old.chunks.clone();
+		deltas = old.deltas.clone();
+
+		final boolean[] cloned = new boolean[chunks.length];
+		for (BlockPos pos : changed) {
+			final int chunkX = pos.getX() >> 4;
+			final int chunkZ = pos.getZ() >> 4;
+			final int sectionY = pos.getY() >> 4;
+			final int cx = chunkX - minChunkX;
+			final int cz = chunkZ - minChunkZ;
+			if (cx < 0 || cx >= chunksX || cz < 0 || cz >= chunksZ
+					|| sectionY < minSection || sectionY > maxSection) {
+				continue;
+			}
+			final int index = cx * chunksZ + cz;
+			// The scanner view does not know about this change.
+			deltas[index] = true;
+			if (!cloned[index]) {
+				cloned[index] = true;
+				final char[][] sections;
+				if (chunks[index] != null) {
+					sections = chunks[index].sections.clone();
+				} else if (source.getChunkAccessor(chunkX << 4, chunkZ << 4) != null) {
+					// The chunk was loaded since the old snapshot.
+					sections = new char[maxSection - minSection + 1][];
+					for (int s = 0; s < sections.length; s++) {
+						sections[s] = source.getSectionCopy(chunkX, chunkZ,
+								minSection + s);
+					}
+				} else {
+					continue;
+				}
+				chunks[index] = new SnapshotChunk(sections, minSection);
+			}
+			if (chunks[index] == null) {
+				continue;
+			}
+			chunks[index].sections[sectionY - minSection] = source
+					.getSectionCopy(chunkX, chunkZ, sectionY);
+		}
+	}
+
+	@Override
+	protected ChunkAccessor generateChunkAccessor(int chunkX, int chunkZ) {
+		final int cx = chunkX - minChunkX;
+		final int cz = chunkZ - minChunkZ;
+		if (cx < 0 || cx >= chunksX || cz < 0 || cz >= chunksZ) {
+			return null;
+		}
+		return chunks[cx * chunksZ + cz];
+	}
+
+	@Override
+	protected ChunkAccessor getChunkAccessor(int x, int z) {
+		// No cache, so that multiple threads can use the snapshot.
+		return generateChunkAccessor(x >> 4, z >> 4);
+	}
+
+	@Override
+	public char[] getSectionCopy(int chunkX, int chunkZ, int sectionY) {
+		final SnapshotChunk chunk = (SnapshotChunk) generateChunkAccessor(
+				chunkX, chunkZ);
+		return chunk == null ? null : chunk.getSectionData(sectionY);
+	}
+
+	/**
+	 * Checks if a section was captured by this snapshot. Sections above or
+	 * below the world are always captured.
+	 * 
+	 * @param chunkX
+	 *            The chunk position.
+	 * @param chunkZ
+	 *            The chunk position.
+	 * @param sectionY
+	 *            The section index (y >> 4).
+	 * @return <code>true</code> if the blocks of that section are the blocks
+	 *         of the world the snapshot was taken from.
+	 */
+	public boolean isCaptured(int chunkX, int chunkZ, int sectionY) {
+		if (generateChunkAccessor(chunkX, chunkZ) == null) {
+			return false;
+		}
+		return sectionY < 0 || sectionY > 15 || sectionY >= minSection
+				&& sectionY <= maxSection;
+	}
+
+	@Override
+	public void invalidateChunkCache() {
+		// The snapshot never changes.
+	}
+
+	@Override
+	protected BlockSetIndex createIndex(BlockSet set) {
+		// Nobody tells us about changes, so there is nothing to do in the
+		// background.
+		return new BlockSetIndex(this, set, null, false);
+	}
+
+	@Override
+	public MoveScanner getMoveScanner(ScannerPolicy policy) {
+		return policy.equals(scannerPolicy) ? moveScanner : null;
+	}
+
+	@Override
+	public boolean hasDelta(int chunkX, int chunkZ) {
+		final int cx = chunkX - minChunkX;
+		final int cz = chunkZ - minChunkZ;
+		return cx >= 0 && cx < chunksX && cz >= 0 && cz < chunksZ
+				&& deltas[cx * chunksZ + cz];
+	}
+
+	@Override
+	public BlockPos getPlayerPosition() {
+		return playerPosition;
+	}
+
+	@Override
+	public Vec3 getExactPlayerPosition() {
+		return new Vec3(playerPosition.getX() + .5, playerPosition.getY(),
+				playerPosition.getZ() + .5);
+	}
+}
@@ -2,18 +2,36 @@ package net.famzangl.minecraft.minebot.ai.path.world;
 
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Map.Entry;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner;
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner.ScannerPolicy;
 import net.famzangl.minecraft.minebot.settings.MinebotSettings;
 import net.minecraft.block.Block;
-import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.util.BlockPos;
 import net.minecraft.util.Vec3;
 
+/**
+ * A world with some blocks replaced. The changes are stored as overlays over
+ * the sections of the world it was created from.
+ * <p>
+ * A delta can be forked again. Forks share all unchanged sections with their
+ * parent, so several plans can be tried on forks of the same world. The best
+ * one is then applied to the parent using {@link #commit()}. The presearch
+ * uses this to apply each task on a fork, so that a task that cannot be
+ * applied leaves no half-done changes behind. A world may not
+ * be changed while it has forks that are still used, except by committing
+ * one of them. Forks only access their parent while holding its lock, so
+ * different forks may be used in different threads as long as the parent is
+ * not used directly at the same time.
+ * 
+ * @author Michael Zangl
+ */
 public class WorldWithDelta extends WorldData {
 	private static final Marker MARKER_WORLD_DELTA = MarkerManager
 			.getMarker("worlddata");
@@ -24,20 +42,28 @@ public class WorldWithDelta extends WorldData {
 
 	private BlockPos playerPosition;
 
-	private WorldData currentWorld;
+	/**
+	 * The world this delta was created from.
+	 */
+	private final WorldData parent;
+
+	private final WorldData currentWorld;
 
 	public static class ChunkWithDelta extends ChunkAccessor {
-		private final WorldClient theWorld;
+		private final WorldData source;
 		private final int chunkX;
 		private final int chunkZ;
+		/**
+		 * The chunk of the source world. If it is unmodified, we use its
+		 * block storage directly.
+		 */
+		private ChunkAccessor sourceChunk;
 
-		private static final char NOT_REPLACED = 0xffff;
-
-		private char[][] replacedBlockIds = new char[0][];
+		private SectionDelta[] replacedBlockIds = new SectionDelta[0];
 
-		public ChunkWithDelta(WorldClient theWorld, int chunkX, int chunkZ) {
+		public ChunkWithDelta(WorldData source, int chunkX, int chunkZ) {
 			super();
-			this.theWorld = theWorld;
+			this.source = source;
 			this.chunkX = chunkX;
 			this.chunkZ = chunkZ;
 		}
@@ -45,70 +71,221 @@ public class WorldWithDelta extends WorldData {
 		@Override
 		public int getBlockIdWithMeta(final int x, final int y, final int z) {
 			if (y >> 4 < replacedBlockIds.length) {
-				char[] replacements = replacedBlockIds[y >> 4];
+				SectionDelta replacements = replacedBlockIds[y >> 4];
 				if (replacements != null) {
 					final int lx = x & 15;
 					final int ly = y & 15;
 					final int lz = z & 15;
-					int replacementId = replacements[ly << 8 | lz << 4 | lx] & 0xffff;
-					if (replacementId != NOT_REPLACED) {
+					int replacementId = replacements.get(ly << 8 | lz << 4 | lx);
+					if (replacementId != SectionDelta.NOT_REPLACED) {
 						return replacementId;
 					}
 				}
 			}
 
-			if (blockStorage == null) {
+			loadSourceChunk();
+			if (blockStorage != null) {
+				return super.getBlockIdWithMeta(x, y, z);
+			} else if (sourceChunk != null) {
+				return sourceChunk.getBlockIdWithMeta(x, y, z);
+			} else {
+				return BARRIER_ID;
+			}
+		}
+
+		private void loadSourceChunk() {
+			if (sourceChunk == null) {
 				LOGGER.trace(MARKER_WORLD_DELTA,
-						"Chunk delta fall through: load block storage for ("
+						"Chunk delta fall through: load source chunk for ("
 								+ chunkX + "," + chunkZ + ")");
-				blockStorage = theWorld.getChunkFromChunkCoords(chunkX, chunkZ)
-						.getBlockStorageArray();
+				synchronized (source) {
+					sourceChunk = source.getChunkAccessor(chunkX << 4,
+							chunkZ << 4);
+				}
+				if (sourceChunk instanceof ChunkAccessorUnmodified) {
+					blockStorage = sourceChunk.blockStorage;
+				}
 			}
-			return super.getBlockIdWithMeta(x, y, z);
+		}
+
+		@Override
+		public char[] getSectionData(int sectionY) {
+			if (sectionY >= 0 && sectionY < replacedBlockIds.length
+					&& replacedBlockIds[sectionY] != null) {
+				return copySection(sectionY);
+			}
+			loadSourceChunk();
+			return sourceChunk == null ? null : sourceChunk
+					.getSectionData(sectionY);
+		}
+
+		@Override
+		public char[] copySection(int sectionY) {
+			loadSourceChunk();
+			char[] section = sourceChunk == null ? null : sourceChunk
+					.copySection(sectionY);
+			if (sectionY >= 0 && sectionY < replacedBlockIds.length
+					&& replacedBlockIds[sectionY] != null) {
+				if (section == null) {
+					section = new char[16 * 16 * 16];
+				}
+				replacedBlockIds[sectionY].applyTo(section);
+			}
+			return section;
 		}
 
 		public void replaceBlock(int x, int y, int z, int blockWithMeta) {
 			int chunkY = y >> 4;
 			if (chunkY >= replacedBlockIds.length) {
-				replacedBlockIds = (char[][]) Arrays.copyOf(replacedBlockIds,
-						chunkY + 1);
+				replacedBlockIds = Arrays.copyOf(replacedBlockIds, chunkY + 1);
 			}
-			char[] replacements = replacedBlockIds[chunkY];
+			SectionDelta replacements = replacedBlockIds[chunkY];
 			if (replacements == null) {
-				replacements = new char[16 * 16 * 16];
-				Arrays.fill(replacements, NOT_REPLACED);
+				replacements = new SectionDelta();
 				replacedBlockIds[chunkY] = replacements;
 			}
 			final int lx = x & 15;
 			final int ly = y & 15;
 			final int lz = z & 15;
-			replacements[ly << 8 | lz << 4 | lx] = (char) blockWithMeta;
+			replacements.put(ly << 8 | lz << 4 | lx, (char) blockWithMeta);
+		}
+
+		/**
+		 * Takes over the replacements of an other delta of the same chunk.
+		 * Sections we did not replace anything in are not copied.
+		 * 
+		 * @param other
+		 *            The other delta. It may not be used afterwards.
+		 */
+		private void takeReplacements(ChunkWithDelta other) {
+			if (other.replacedBlockIds.length > replacedBlockIds.length) {
+				replacedBlockIds = Arrays.copyOf(replacedBlockIds,
+						other.replacedBlockIds.length);
+			}
+			for (int i = 0; i < other.replacedBlockIds.length; i++) {
+				final SectionDelta theirs = other.replacedBlockIds[i];
+				if (theirs == null) {
+					continue;
+				} else if (replacedBlockIds[i] == null) {
+					replacedBlockIds[i] = theirs;
+				} else {
+					replacedBlockIds[i].putAll(theirs);
+				}
+			}
 		}
 
 		public void invalidateCache() {
+			sourceChunk = null;
 			blockStorage = null;
 		}
 	}
 
-	public WorldWithDelta(WorldData currentWorld) {
-		super(currentWorld.theWorld, null);
-		if (currentWorld instanceof WorldWithDelta) {
-			throw new IllegalArgumentException(
-					"Cannot make a delta of a delta.");
+	/**
+	 * Creates a new delta.
+	 * 
+	 * @param parent
+	 *            The world this delta is relative to. This may be an other
+	 *            delta.
+	 */
+	public WorldWithDelta(WorldData parent) {
+		super(parent.theWorld);
+		this.parent = parent;
+		this.currentWorld = parent.getCurrentState();
+		this.playerPosition = parent.getPlayerPosition();
+	}
+
+	/**
+	 * Creates a new fork of this world. Changes to the fork are not visible
+	 * in this world until the fork is committed.
+	 * 
+	 * @return The new fork.
+	 */
+	public WorldWithDelta fork() {
+		return new WorldWithDelta(this);
+	}
+
+	/**
+	 * Applies all changes of this fork to the world it was forked from. The
+	 * changed sections are handed over, so this fork may not be used any more
+	 * afterwards.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this world was not forked from an other delta.
+	 */
+	public void commit() {
+		if (!(parent instanceof WorldWithDelta)) {
+			throw new IllegalStateException(
+					"Only forks of a delta can be committed.");
 		}
-		this.currentWorld = currentWorld;
-		this.playerPosition = currentWorld.getPlayerPosition();
+		final WorldWithDelta target = (WorldWithDelta) parent;
+		for (Entry<Long, ChunkWithDelta> e : chunkDeltas.entrySet()) {
+			target.takeDelta(e.getKey(), e.getValue());
+		}
+		target.playerPosition = playerPosition;
+		chunkDeltas.clear();
+		invalidateChunkCache();
+	}
+
+	private synchronized void takeDelta(long key, ChunkWithDelta delta) {
+		ChunkWithDelta ours = chunkDeltas.get(key);
+		if (ours == null) {
+			ours = new ChunkWithDelta(parent, delta.chunkX, delta.chunkZ);
+			chunkDeltas.put(key, ours);
+			invalidateChunkCache(delta.chunkX, delta.chunkZ);
+		}
+		ours.takeReplacements(delta);
+		invalidatePlanes(delta.chunkX, delta.chunkZ);
+		invalidateIndexes(delta.chunkX, delta.chunkZ);
 	}
 
 	protected ChunkAccessor generateChunkAccessor(int chunkX, int chunkZ) {
 		ChunkAccessor chunk;
 		chunk = chunkDeltas.get(cachePosition(chunkX, chunkZ));
 		if (chunk == null) {
-			chunk = super.generateChunkAccessor(chunkX, chunkZ);
+			synchronized (parent) {
+				chunk = parent.getChunkAccessor(chunkX << 4, chunkZ << 4);
+			}
 		}
 		return chunk;
 	}
 
+	@Override
+	protected BlockSetIndex createIndex(BlockSet set) {
+		synchronized (parent) {
+			return new BlockSetIndex(this, set, parent.getIndex(set),
+					false);
+		}
+	}
+
+	@Override
+	public boolean hasDelta(int chunkX, int chunkZ) {
+		return chunkDeltas.containsKey(cachePosition(chunkX, chunkZ));
+	}
+
+	@Override
+	public MoveScanner getMoveScanner(ScannerPolicy policy) {
+		if (parent instanceof WorldWithDelta) {
+			// We do not know which chunks our parent changed.
+			return null;
+		}
+		synchronized (parent) {
+			return parent.getMoveScanner(policy);
+		}
+	}
+
+	@Override
+	public char[] getSectionCopy(int chunkX, int chunkZ, int sectionY) {
+		if (hasDelta(chunkX, chunkZ)) {
+			final ChunkAccessor accessor = getChunkAccessor(chunkX << 4,
+					chunkZ << 4);
+			return accessor.copySection(sectionY);
+		} else {
+			synchronized (parent) {
+				return parent.getSectionCopy(chunkX, chunkZ, sectionY);
+			}
+		}
+	}
+
 	@Override
 	public void invalidateChunkCache() {
 		for (ChunkWithDelta v : chunkDeltas.values()) {
@@ -144,11 +321,14 @@ public class WorldWithDelta extends WorldData {
 		long key = cachePosition(chunkX, chunkZ);
 		ChunkWithDelta delta = chunkDeltas.get(key);
 		if (delta == null) {
-			delta = new ChunkWithDelta(theWorld, chunkX, chunkZ);
+			delta = new ChunkWithDelta(parent, chunkX, chunkZ);
 			chunkDeltas.put(key, delta);
+			// The cache may still hold the unmodified chunk.
+			invalidateChunkCache(chunkX, chunkZ);
 		}
 		delta.replaceBlock(x, y, z, blockWithMeta);
-		invalidateChunkCache();
+		updatePlanes(x, y, z, blockWithMeta);
+		invalidateIndexes(chunkX, chunkZ);
 	}
 
 	@Override
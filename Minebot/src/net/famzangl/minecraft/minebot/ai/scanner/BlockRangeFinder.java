@@ -32,14 +32,28 @@ public class BlockRangeFinder extends WalkingPathfinder {
 	protected boolean runSearch(BlockPos playerPosition) {
 		if (rangeScanner == null) {
 			rangeScanner = constructScanner(playerPosition);
-			//TODO: Pass on a synchronized world instance...
-			rangeScanner.startAsync(world);
-			return false;
-		} else if (!rangeScanner.isScaningFinished()) {
+			if (!rangeScanner.scanIndexed(world)) {
+				// Do not block the tick until the indexes are filled.
+				rangeScanner.startAsync(world);
+			}
+		}
+		if (!rangeScanner.finishAsync()) {
 			return false;
-		} else {
-			return super.runSearch(playerPosition);
 		}
+		return super.runSearch(playerPosition);
+	}
+
+	/**
+	 * Only a running scan is stopped. A finished one is kept, so that the
+	 * next search does not need to scan again.
+	 */
+	@Override
+	public void abort() {
+		if (rangeScanner != null && !rangeScanner.isScaningFinished()) {
+			rangeScanner.cancel();
+			rangeScanner = null;
+		}
+		super.abort();
 	}
 
 	protected BlockRangeScanner constructScanner(BlockPos playerPosition) {
@@ -17,16 +17,28 @@
 package net.famzangl.minecraft.minebot.ai.scanner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
-import net.famzangl.minecraft.minebot.ai.utils.BlockArea.AreaVisitor;
-import net.famzangl.minecraft.minebot.ai.utils.BlockCuboid;
+import net.famzangl.minecraft.minebot.ai.path.world.WorldSnapshot;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
 import net.minecraft.util.BlockPos;
 
 public class BlockRangeScanner {
 	private static final int HORIZONTAL_SCAN = 100;
 	private static final int VERTICAL_SCAN = 20;
+	/**
+	 * Handlers may look at the blocks around the ones they found.
+	 */
+	private static final int HANDLER_MARGIN = 4;
+	/**
+	 * The number of jobs the columns of an async scan are split into.
+	 */
+	private static final int SCAN_JOBS = Math.max(2, Runtime.getRuntime()
+			.availableProcessors());
 	private final BlockPos center;
 	
 	public interface BlockHandler {
@@ -42,7 +54,14 @@ public class BlockRangeScanner {
 	
 	private final ArrayList<BlockHandler> handlers = new ArrayList<BlockHandler>();
 	
-	private boolean scaningFinished;
+	private volatile boolean scaningFinished;
+	private volatile boolean canceled;
+	private final ArrayList<MinebotExecutor.Job> scanJobs = new ArrayList<MinebotExecutor.Job>();
+	/**
+	 * The world and the blocks the async scan found, by column.
+	 */
+	private WorldSnapshot asyncWorld;
+	private volatile ColumnHits[] asyncHits;
 
 	public BlockRangeScanner(BlockPos center) {
 		this.center = center;
@@ -57,38 +76,218 @@ public class BlockRangeScanner {
 		}
 	}
 
-	public void scanArea(WorldData world) {
-		BlockCuboid area = new BlockCuboid(center.add(-HORIZONTAL_SCAN,  -VERTICAL_SCAN, -HORIZONTAL_SCAN), center.add(HORIZONTAL_SCAN,  VERTICAL_SCAN, HORIZONTAL_SCAN));
-		area.accept(new AreaVisitor() {
-			@Override
-			public void visit(WorldData world, int x, int y, int z) {
-				int id = world.getBlockId(x, y, z);					
-				BlockHandler handler = handlersCache[id];
-				if (handler != null) {
-					handler.scanBlock(world, id, x, y, z);
+	/**
+	 * The blocks a handler is interested in that were found in one chunk
+	 * column. Each block uses 4 entries: id, x, y, z.
+	 */
+	private static class ColumnHits {
+		private int[] hits = new int[0];
+		private int size;
+
+		private void add(int id, int x, int y, int z) {
+			if (size + 4 > hits.length) {
+				hits = Arrays.copyOf(hits, Math.max(64, hits.length * 2));
+			}
+			hits[size++] = id;
+			hits[size++] = x;
+			hits[size++] = y;
+			hits[size++] = z;
+		}
+	}
+
+	private int getMinChunkX() {
+		return center.getX() - HORIZONTAL_SCAN >> 4;
+	}
+
+	private int getMinChunkZ() {
+		return center.getZ() - HORIZONTAL_SCAN >> 4;
+	}
+
+	private int getChunksZ() {
+		return (center.getZ() + HORIZONTAL_SCAN >> 4) - getMinChunkZ() + 1;
+	}
+
+	private ColumnHits scanColumn(WorldSnapshot world, int column) {
+		final int chunkX = getMinChunkX() + column / getChunksZ();
+		final int chunkZ = getMinChunkZ() + column % getChunksZ();
+		final int minX = Math.max(chunkX << 4, center.getX() - HORIZONTAL_SCAN);
+		final int maxX = Math.min((chunkX << 4) + 15, center.getX()
+				+ HORIZONTAL_SCAN);
+		final int minZ = Math.max(chunkZ << 4, center.getZ() - HORIZONTAL_SCAN);
+		final int maxZ = Math.min((chunkZ << 4) + 15, center.getZ()
+				+ HORIZONTAL_SCAN);
+		final int minY = Math.max(0, center.getY() - VERTICAL_SCAN);
+		final int maxY = Math.min(255, center.getY() + VERTICAL_SCAN);
+		final boolean scanAir = handlersCache[0] != null;
+
+		final ColumnHits hits = new ColumnHits();
+		for (int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+			final char[] data = world.getSectionCopy(chunkX, chunkZ, sectionY);
+			if (data == null && !scanAir) {
+				continue;
+			}
+			final int sectionMinY = Math.max(minY, sectionY << 4);
+			final int sectionMaxY = Math.min(maxY, (sectionY << 4) + 15);
+			for (int y = sectionMinY; y <= sectionMaxY; y++) {
+				for (int z = minZ; z <= maxZ; z++) {
+					final int row = (y & 15) << 8 | (z & 15) << 4;
+					for (int x = minX; x <= maxX; x++) {
+						final int id = data == null ? 0
+								: data[row | x & 15] >> 4;
+						if (handlersCache[id] != null) {
+							hits.add(id, x, y, z);
+						}
+					}
 				}
 			}
-		}, world);
+		}
+		return hits;
+	}
+
+	private int getColumnCount() {
+		final int chunksX = (center.getX() + HORIZONTAL_SCAN >> 4)
+				- getMinChunkX() + 1;
+		return chunksX * getChunksZ();
+	}
+
+	/**
+	 * Scans some of the columns of the area.
+	 * 
+	 * @param world
+	 *            The world to scan.
+	 * @param results
+	 *            Where to store the blocks found in each column.
+	 * @param start
+	 *            The first column to scan.
+	 * @param end
+	 *            The column after the last one to scan.
+	 */
+	private void scanColumns(WorldSnapshot world, ColumnHits[] results,
+			int start, int end) {
+		for (int c = start; c < end && !canceled; c++) {
+			results[c] = scanColumn(world, c);
+		}
+	}
+
+	/**
+	 * Finds the blocks using the block indexes of the world. The indexes are
+	 * filled in the background, so this is fast and done in the calling
+	 * thread. If a section in the area was not indexed yet, nothing is done.
+	 * 
+	 * @param world
+	 *            The world. If it is the live world, this needs to be the
+	 *            client thread.
+	 * @return <code>false</code> if the indexes were not ready. Use
+	 *         {@link #startAsync(WorldData)} then.
+	 */
+	public boolean scanIndexed(WorldData world) {
+		final BlockPos min = center.add(-HORIZONTAL_SCAN, -VERTICAL_SCAN,
+				-HORIZONTAL_SCAN);
+		final BlockPos max = center.add(HORIZONTAL_SCAN, VERTICAL_SCAN,
+				HORIZONTAL_SCAN);
+		final ArrayList<List<BlockPos>> found = new ArrayList<List<BlockPos>>();
+		for (BlockHandler handler : handlers) {
+			final List<BlockPos> blocks = world.getIndex(handler.getIds())
+					.findBlocks(min, max);
+			if (blocks == null) {
+				return false;
+			}
+			found.add(blocks);
+		}
+		for (int h = 0; h < handlers.size(); h++) {
+			final BlockHandler handler = handlers.get(h);
+			for (BlockPos pos : found.get(h)) {
+				final int id = world.getBlockId(pos);
+				// Same as scanning: Only the last handler gets the block.
+				if (handlersCache[id] == handler) {
+					handler.scanBlock(world, id, pos.getX(), pos.getY(),
+							pos.getZ());
+				}
+			}
+		}
 		for (BlockHandler handler : handlers) {
 			handler.scanningDone(world);
 		}
-		
 		scaningFinished = true;
+		return true;
 	}
 
-
-	public void startAsync(final WorldData world) {
-		new Thread("Block range finder") {
-			@Override
-			public void run() {
-				try {
-					scanArea(world);
-				} catch (Throwable t) {
-					t.printStackTrace();
-					scaningFinished = true;
+	/**
+	 * Scans a snapshot of the area in jobs on the {@link MinebotExecutor}. The
+	 * columns of the area are split between the jobs.
+	 * This needs to be called on the client thread, since the snapshot is
+	 * taken here. Use {@link #finishAsync()} to pass the result to the
+	 * handlers.
+	 * 
+	 * @param liveWorld
+	 *            The world to scan.
+	 */
+	public void startAsync(WorldData liveWorld) {
+		final WorldSnapshot world = new WorldSnapshot(liveWorld, center,
+				HORIZONTAL_SCAN + HANDLER_MARGIN, VERTICAL_SCAN
+						+ HANDLER_MARGIN);
+		asyncWorld = world;
+		final ColumnHits[] results = new ColumnHits[getColumnCount()];
+		final int jobs = Math.min(SCAN_JOBS, results.length);
+		final AtomicInteger runningJobs = new AtomicInteger(jobs);
+		for (int j = 0; j < jobs; j++) {
+			final int start = results.length * j / jobs;
+			final int end = results.length * (j + 1) / jobs;
+			scanJobs.add(MinebotExecutor.submit(new MinebotExecutor.Job(
+					"Block range scan around " + center + ", part " + (j + 1)
+							+ "/" + jobs) {
+				@Override
+				protected void execute() {
+					scanColumns(world, results, start, end);
+					// The last job to finish publishes all columns.
+					if (!isCanceled() && runningJobs.decrementAndGet() == 0) {
+						asyncHits = results;
+					}
 				}
-			};
-		}.start();
+			}));
+		}
+	}
+
+	/**
+	 * Passes the blocks the async scan found to the handlers as soon as it is
+	 * done. This is done on the client thread, since handlers may look at the
+	 * entities of the world. The blocks are passed in column order, no matter
+	 * which job found them.
+	 * 
+	 * @return <code>true</code> if scanning is finished.
+	 */
+	public boolean finishAsync() {
+		final ColumnHits[] hits = asyncHits;
+		if (scaningFinished || hits == null || canceled) {
+			return scaningFinished;
+		}
+		for (ColumnHits column : hits) {
+			for (int i = 0; i < column.size; i += 4) {
+				final int id = column.hits[i];
+				handlersCache[id].scanBlock(asyncWorld, id, column.hits[i + 1],
+						column.hits[i + 2], column.hits[i + 3]);
+			}
+		}
+		for (BlockHandler handler : handlers) {
+			handler.scanningDone(asyncWorld);
+		}
+		asyncWorld = null;
+		asyncHits = null;
+		scanJobs.clear();
+		scaningFinished = true;
+		return true;
+	}
+
+	/**
+	 * Stops a scan that was started by {@link #startAsync(WorldData)}. The
+	 * handlers are not informed about the blocks that were found.
+	 */
+	public void cancel() {
+		canceled = true;
+		for (MinebotExecutor.Job job : scanJobs) {
+			job.cancel();
+		}
+		scanJobs.clear();
 	}
 
 	public boolean isScaningFinished() {
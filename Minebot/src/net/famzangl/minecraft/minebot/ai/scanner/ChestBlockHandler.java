@@ -19,6 +19,7 @@ package net.famzangl.minecraft.minebot.ai.scanner;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
@@ -28,7 +29,10 @@ import net.famzangl.minecraft.minebot.ai.ItemFilter;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
 import net.famzangl.minecraft.minebot.ai.scanner.ChestBlockHandler.ChestData;
+import net.famzangl.minecraft.minebot.ai.task.inventory.ItemWithSubtype;
 import net.famzangl.minecraft.minebot.ai.utils.PrivateFieldUtils;
+import net.famzangl.minecraft.minebot.settings.MinebotSettings;
+import net.minecraft.client.Minecraft;
 import net.minecraft.entity.EntityHanging;
 import net.minecraft.entity.item.EntityItemFrame;
 import net.minecraft.init.Blocks;
@@ -36,6 +40,7 @@ import net.minecraft.item.ItemStack;
 import net.minecraft.util.AxisAlignedBB;
 import net.minecraft.util.BlockPos;
 import net.minecraft.util.EnumFacing;
+import net.minecraft.world.World;
 
 public class ChestBlockHandler extends RangeBlockHandler<ChestData> {
 	private static final BlockSet CHEST = new BlockSet(Blocks.chest,
@@ -192,29 +197,75 @@ public class ChestBlockHandler extends RangeBlockHandler<ChestData> {
 		}
 	}
 
+	/**
+	 * Remembers the chests of the current world across scans and sessions,
+	 * using a {@link ChestItemIndex} for each world.
+	 */
 	public static class PersistentChestStatus {
-		private final HashMap<BlockPos, AbstractChestData> chests = new HashMap<BlockPos, AbstractChestData>();
+		private World world;
+		private String worldName;
+		private ChestItemIndex index;
+
+		private synchronized ChestItemIndex getIndex() {
+			final World currentWorld = Minecraft.getMinecraft().theWorld;
+			if (index == null || currentWorld != world) {
+				world = currentWorld;
+				final String name = getWorldName();
+				if (index == null || !name.equals(worldName)) {
+					worldName = name;
+					index = new ChestItemIndex(
+							MinebotSettings.getDataDirFile("chests/" + name
+									+ ".json"));
+				}
+			}
+			return index;
+		}
 
-		public void update(AbstractChestData data) {
-			chests.put(data.getPos(), data);
-			BlockPos secondaryPos = data.getSecondaryPos();
-			if (secondaryPos != null) {
-				chests.put(secondaryPos, data);
+		private static String getWorldName() {
+			final Minecraft mc = Minecraft.getMinecraft();
+			String server;
+			if (mc.isSingleplayer() && mc.getIntegratedServer() != null) {
+				server = "local-" + mc.getIntegratedServer().getFolderName();
+			} else if (mc.getCurrentServerData() != null) {
+				server = mc.getCurrentServerData().serverIP;
+			} else {
+				server = "unknown";
 			}
+			final int dimension = mc.theWorld == null ? 0 : mc.theWorld.provider
+					.getDimensionId();
+			return (server + "-" + dimension).replaceAll("[^\\w.-]", "_");
 		}
 
-		public void reset() {
-			chests.clear();
+		public void update(AbstractChestData data) {
+			getIndex().update(data);
+		}
+
+		public void restore(AbstractChestData data) {
+			getIndex().restore(data);
+		}
+
+		public synchronized void reset() {
+			world = null;
+			index = null;
 		}
 
 		public boolean isEmptyFor(BlockPos pos, ItemStack stack) {
-			AbstractChestData data = chests.get(pos);
-			return data != null && data.isEmptyFor(stack);
+			return stack != null && stack.getItem() != null
+					&& getIndex().isEmptyFor(pos, new ItemWithSubtype(stack));
 		}
 
 		public boolean isFullFor(BlockPos pos, ItemStack stack) {
-			AbstractChestData data = chests.get(pos);
-			return data != null && data.isFullFor(stack);
+			return stack != null && stack.getItem() != null
+					&& getIndex().isFullFor(pos, new ItemWithSubtype(stack));
+		}
+
+		public boolean couldTakeItem(BlockPos pos, ItemWithSubtype item) {
+			return getIndex().couldTakeItem(pos, item);
+		}
+
+		public HashSet<BlockPos> getChestsToTakeFrom(
+				Collection<ItemWithSubtype> items) {
+			return getIndex().getChestsToTakeFrom(items);
 		}
 	}
 
@@ -231,10 +282,11 @@ public class ChestBlockHandler extends RangeBlockHandler<ChestData> {
 	}
 
 	@Override
-	protected void addPositionToCache(WorldData world, BlockPos pos, ChestData c) {
-		super.addPositionToCache(world, pos, c);
+	protected void addPositionToCache(WorldData world, BlockPos pos,
+			ChestData c, ReachableIndex<ChestData> building) {
+		super.addPositionToCache(world, pos, c, building);
 		if (c.getSecondaryPos() != null) {
-			super.addPositionToCache(world, c.getSecondaryPos(), c);
+			super.addPositionToCache(world, c.getSecondaryPos(), c, building);
 		}
 	}
 
@@ -290,6 +342,7 @@ public class ChestBlockHandler extends RangeBlockHandler<ChestData> {
 		}
 		if (chest == null) {
 			chest = new ChestData(pos, id);
+			persistentStatus.restore(chest);
 			chests.put(pos, chest);
 		}
 		return chest;
@@ -313,6 +366,36 @@ public class ChestBlockHandler extends RangeBlockHandler<ChestData> {
 		}
 	}
 
+	/**
+	 * Checks if we may take an item out of a chest. This only uses what we
+	 * remember about the chest, so it is fast but does not check NBT data.
+	 * 
+	 * @param pos
+	 *            The primary position of the chest.
+	 * @param item
+	 *            The item.
+	 * @return <code>true</code> if the item is allowed in the chest and the
+	 *         chest was not empty for that item the last time.
+	 */
+	public static boolean couldTakeItem(BlockPos pos, ItemWithSubtype item) {
+		return persistentStatus.couldTakeItem(pos, item);
+	}
+
+	/**
+	 * Gets the chests we could take one of the items from, using what we
+	 * remember about the chests. Call this once before a search instead of
+	 * calling {@link #couldTakeItem(BlockPos, ItemWithSubtype)} for every
+	 * chest.
+	 * 
+	 * @param items
+	 *            The items.
+	 * @return The primary and secondary positions of those chests.
+	 */
+	public static HashSet<BlockPos> getChestsToTakeFrom(
+			Collection<ItemWithSubtype> items) {
+		return persistentStatus.getChestsToTakeFrom(items);
+	}
+
 	public int getExpectedTakeRating(BlockPos pos, ItemStack s) {
 		if (persistentStatus.isEmptyFor(pos, s)) {
 			return 10;
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.scanner;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import net.famzangl.minecraft.minebot.ai.ItemFilter;
+import net.famzangl.minecraft.minebot.ai.scanner.ChestBlockHandler.AbstractChestData;
+import net.famzangl.minecraft.minebot.ai.task.inventory.ItemWithSubtype;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
+import net.minecraft.util.BlockPos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Remembers which items are allowed in which chest and for which items a
+ * chest was full or empty. The index maps from item to chests, so finding the
+ * chest for an item does not need to check all chests.
+ * <p>
+ * The index is stored in a file, so that it can be used right away the next
+ * time the world is loaded.
+ * 
+ * @author Michael Zangl
+ */
+public class ChestItemIndex {
+	private static final Marker MARKER_CHESTS = MarkerManager
+			.getMarker("chests");
+	private static final Logger LOGGER = LogManager
+			.getLogger(ChestItemIndex.class);
+
+	/**
+	 * What we know about a chest. This is the format the index is stored in.
+	 * 
+	 * @author Michael Zangl
+	 */
+	private static class StoredChest {
+		private int[] pos;
+		private int[] secondaryPos;
+		private final HashSet<ItemWithSubtype> allowed = new HashSet<ItemWithSubtype>();
+		private final HashSet<ItemWithSubtype> full = new HashSet<ItemWithSubtype>();
+		private final HashSet<ItemWithSubtype> empty = new HashSet<ItemWithSubtype>();
+
+		private StoredChest() {
+		}
+
+		private StoredChest(AbstractChestData data) {
+			pos = toArray(data.getPos());
+			secondaryPos = toArray(data.getSecondaryPos());
+			addItems(allowed, data.allowedItems);
+			addItems(full, data.fullItems);
+			addItems(empty, data.emptyItems);
+		}
+
+		private static int[] toArray(BlockPos pos) {
+			return pos == null ? null : new int[] { pos.getX(), pos.getY(),
+					pos.getZ() };
+		}
+
+		private static BlockPos toPos(int[] array) {
+			return array == null || array.length != 3 ? null : new BlockPos(
+					array[0], array[1], array[2]);
+		}
+
+		public BlockPos getPos() {
+			return toPos(pos);
+		}
+
+		public BlockPos getSecondaryPos() {
+			return toPos(secondaryPos);
+		}
+
+		/**
+		 * Removes items that do not exist any more.
+		 */
+		private void removeUnknownItems() {
+			removeUnknownItems(allowed);
+			removeUnknownItems(full);
+			removeUnknownItems(empty);
+		}
+
+		private static void removeUnknownItems(HashSet<ItemWithSubtype> items) {
+			final Iterator<ItemWithSubtype> iterator = items.iterator();
+			while (iterator.hasNext()) {
+				final ItemWithSubtype item = iterator.next();
+				if (item == null || item.getItem() == null) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private static class StoredIndex {
+		private ArrayList<StoredChest> chests = new ArrayList<StoredChest>();
+	}
+
+	private final File file;
+
+	/**
+	 * All chests by primary and secondary position.
+	 */
+	private final HashMap<BlockPos, StoredChest> chests = new HashMap<BlockPos, StoredChest>();
+	/**
+	 * The chests that accept a given item, by primary and secondary position.
+	 */
+	private final HashMap<ItemWithSubtype, HashMap<BlockPos, StoredChest>> byItem = new HashMap<ItemWithSubtype, HashMap<BlockPos, StoredChest>>();
+
+	private boolean saveQueued;
+	/**
+	 * Held while the file is written, so that two saves do not mix.
+	 */
+	private final Object saveMutex = new Object();
+
+	/**
+	 * Creates a new index and loads it from the file.
+	 * 
+	 * @param file
+	 *            The file the index is stored in.
+	 */
+	public ChestItemIndex(File file) {
+		this.file = file;
+		load();
+	}
+
+	private void load() {
+		StoredIndex stored = null;
+		try {
+			FileReader reader = new FileReader(file);
+			try {
+				stored = new Gson().fromJson(reader, StoredIndex.class);
+			} finally {
+				reader.close();
+			}
+		} catch (FileNotFoundException e) {
+			// no chests known yet.
+		} catch (IOException e) {
+			LOGGER.error(MARKER_CHESTS, "Could not read chest index " + file, e);
+		} catch (JsonParseException e) {
+			LOGGER.error(MARKER_CHESTS, "Chest index " + file + " is broken.",
+					e);
+		}
+		if (stored != null && stored.chests != null) {
+			for (StoredChest c : stored.chests) {
+				if (c != null && c.getPos() != null) {
+					c.removeUnknownItems();
+					add(c);
+				}
+			}
+			LOGGER.debug(MARKER_CHESTS, "Loaded " + stored.chests.size()
+					+ " chests from " + file);
+		}
+	}
+
+	/**
+	 * Updates the index with the current state of a chest.
+	 * 
+	 * @param data
+	 *            The chest.
+	 */
+	public synchronized void update(AbstractChestData data) {
+		final StoredChest old = chests.get(data.getPos());
+		if (old != null) {
+			remove(old);
+		}
+		add(new StoredChest(data));
+		queueSave();
+	}
+
+	private static void addItems(HashSet<ItemWithSubtype> items,
+			List<ItemFilter> filters) {
+		for (ItemFilter f : filters) {
+			if (f instanceof SameItemFilter) {
+				items.add(((SameItemFilter) f).getItem());
+			}
+		}
+	}
+
+	private void add(StoredChest c) {
+		chests.put(c.getPos(), c);
+		if (c.getSecondaryPos() != null) {
+			chests.put(c.getSecondaryPos(), c);
+		}
+		for (ItemWithSubtype item : c.allowed) {
+			HashMap<BlockPos, StoredChest> forItem = byItem.get(item);
+			if (forItem == null) {
+				forItem = new HashMap<BlockPos, StoredChest>();
+				byItem.put(item, forItem);
+			}
+			forItem.put(c.getPos(), c);
+			if (c.getSecondaryPos() != null) {
+				forItem.put(c.getSecondaryPos(), c);
+			}
+		}
+	}
+
+	private void remove(StoredChest c) {
+		chests.remove(c.getPos());
+		if (c.getSecondaryPos() != null) {
+			chests.remove(c.getSecondaryPos());
+		}
+		for (ItemWithSubtype item : c.allowed) {
+			final HashMap<BlockPos, StoredChest> forItem = byItem.get(item);
+			if (forItem != null) {
+				forItem.remove(c.getPos());
+				if (c.getSecondaryPos() != null) {
+					forItem.remove(c.getSecondaryPos());
+				}
+				if (forItem.isEmpty()) {
+					byItem.remove(item);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the full and empty flags we know of into a chest that was just
+	 * found.
+	 * 
+	 * @param data
+	 *            The chest.
+	 */
+	public synchronized void restore(AbstractChestData data) {
+		final StoredChest c = chests.get(data.getPos());
+		if (c == null) {
+			return;
+		}
+		for (ItemWithSubtype item : c.full) {
+			data.fullItems.add(new SameItemFilter(item.getFakeMCStack(1)));
+		}
+		for (ItemWithSubtype item : c.empty) {
+			data.emptyItems.add(new SameItemFilter(item.getFakeMCStack(1)));
+		}
+	}
+
+	public synchronized boolean isFullFor(BlockPos pos, ItemWithSubtype item) {
+		final StoredChest c = chests.get(pos);
+		return c != null && c.full.contains(item);
+	}
+
+	public synchronized boolean isEmptyFor(BlockPos pos, ItemWithSubtype item) {
+		final StoredChest c = chests.get(pos);
+		return c != null && c.empty.contains(item);
+	}
+
+	/**
+	 * Checks if we may take an item from the chest at the given position.
+	 * 
+	 * @return <code>false</code> if the item is not allowed in the chest or
+	 *         the chest was empty the last time.
+	 */
+	public synchronized boolean couldTakeItem(BlockPos pos,
+			ItemWithSubtype item) {
+		final StoredChest c = getChestFor(pos, item);
+		return c != null && !c.empty.contains(item);
+	}
+
+	/**
+	 * Finds all chests we may take one of the items from, so that a search
+	 * does not need to ask the index for every chest it finds.
+	 * 
+	 * @param items
+	 *            The items we want.
+	 * @return The primary and secondary positions of the chests that allow
+	 *         one of the items and were not empty for it the last time.
+	 */
+	public synchronized HashSet<BlockPos> getChestsToTakeFrom(
+			Collection<ItemWithSubtype> items) {
+		final HashSet<BlockPos> positions = new HashSet<BlockPos>();
+		for (ItemWithSubtype item : items) {
+			final HashMap<BlockPos, StoredChest> forItem = byItem.get(item);
+			if (forItem == null) {
+				continue;
+			}
+			for (Entry<BlockPos, StoredChest> e : forItem.entrySet()) {
+				if (!e.getValue().empty.contains(item)) {
+					positions.add(e.getKey());
+				}
+			}
+		}
+		return positions;
+	}
+
+	private StoredChest getChestFor(BlockPos pos, ItemWithSubtype item) {
+		final HashMap<BlockPos, StoredChest> forItem = byItem.get(item);
+		return forItem == null ? null : forItem.get(pos);
+	}
+
+	/**
+	 * Writes the index to disk in the background. Many updates in a row only
+	 * write the file once.
+	 */
+	private void queueSave() {
+		if (saveQueued) {
+			return;
+		}
+		saveQueued = true;
+		MinebotExecutor.submit(new MinebotExecutor.Job("Save chest index") {
+			@Override
+			protected void execute() throws IOException {
+				save();
+			}
+		});
+	}
+
+	private void save() throws IOException {
+		synchronized (saveMutex) {
+			final StoredIndex stored = new StoredIndex();
+			final String json;
+			synchronized (this) {
+				saveQueued = false;
+				stored.chests.addAll(new HashSet<StoredChest>(chests.values()));
+				json = new Gson().toJson(stored, StoredIndex.class);
+			}
+			file.getParentFile().mkdirs();
+			final FileWriter writer = new FileWriter(file);
+			try {
+				writer.write(json);
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ChestItemIndex [file=" + file + ", items=" + byItem.size()
+				+ "]";
+	}
+}
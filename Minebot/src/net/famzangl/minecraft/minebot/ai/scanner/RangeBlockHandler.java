@@ -18,7 +18,6 @@ package net.famzangl.minecraft.minebot.ai.scanner;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Hashtable;
 import java.util.Map.Entry;
 
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
@@ -32,7 +31,11 @@ import net.minecraft.util.EnumFacing;
 public abstract class RangeBlockHandler<ReachData> implements BlockHandler {
 	private static final BlockSet THROUGH_REACHABLE = new BlockSet(
 			Blocks.air, Blocks.torch);
-	private final Hashtable<BlockPos, ArrayList<ReachData>> reachable = new Hashtable<BlockPos, ArrayList<ReachData>>();
+	/**
+	 * The positions from which we can reach a target. A new index is built
+	 * after each scan and then replaced, so reading needs no lock.
+	 */
+	private volatile ReachableIndex<ReachData> reachable = new ReachableIndex<ReachData>();
 
 	@Override
 	public void scanningDone(WorldData world) {
@@ -42,21 +45,35 @@ public abstract class RangeBlockHandler<ReachData> implements BlockHandler {
 	protected abstract Collection<Entry<BlockPos, ReachData>> getTargetPositions();
 
 	private void updatePositionCache(WorldData world) {
-		reachable.clear();
+		final ReachableIndex<ReachData> building = new ReachableIndex<ReachData>();
 		for (Entry<BlockPos, ReachData> c : getTargetPositions()) {
-			addPositionToCache(world, c.getKey(), c.getValue());
+			addPositionToCache(world, c.getKey(), c.getValue(), building);
 		}
+		reachable = building;
 	}
 
-	protected void addPositionToCache(WorldData world, BlockPos pos, ReachData c) {
+	/**
+	 * Adds the positions from which a target can be reached.
+	 * 
+	 * @param world
+	 *            The world.
+	 * @param pos
+	 *            The target position.
+	 * @param c
+	 *            The data for the target.
+	 * @param building
+	 *            The index that is built.
+	 */
+	protected void addPositionToCache(WorldData world, BlockPos pos,
+			ReachData c, ReachableIndex<ReachData> building) {
 		for (EnumFacing d : new EnumFacing[] { EnumFacing.NORTH,
 				EnumFacing.SOUTH, EnumFacing.EAST, EnumFacing.WEST }) {
-			addPositions(world, pos, c, d);
+			addPositions(world, pos, c, d, building);
 		}
 	}
 
 	private void addPositions(WorldData world, BlockPos pos, ReachData c,
-			EnumFacing d) {
+			EnumFacing d, ReachableIndex<ReachData> building) {
 		int dvertMax = 4;
 		for (int dhor = 0; dhor < 4; dhor++) {
 			int y = pos.getY() - dhor;
@@ -66,24 +83,24 @@ public abstract class RangeBlockHandler<ReachData> implements BlockHandler {
 				if (!THROUGH_REACHABLE.isAt(world, x, y, z)) {
 					dvertMax = dvert;
 				} else if (dvert > 1) {
-					BlockPos allowed = new BlockPos(x, y, z);
-					addReachable(allowed, c);
+					building.add(x, y, z, c);
 				}
 			}
 		}
 	}
 
-	private void addReachable(BlockPos allowed, ReachData c) {
-		ArrayList<ReachData> list = reachable.get(allowed);
-		if (list == null) {
-			list = new ArrayList<ReachData>();
-			reachable.put(allowed, list);
-		}
-		list.add(c);
+	public ArrayList<ReachData> getReachableForPos(BlockPos pos) {
+		return getReachableForPos(pos.getX(), pos.getY(), pos.getZ());
 	}
 
-	public ArrayList<ReachData> getReachableForPos(BlockPos pos) {
-		return reachable.get(pos);
+	/**
+	 * Gets the targets that can be reached from a position. This is fast
+	 * enough to be used when rating path destinations.
+	 * 
+	 * @return The targets or <code>null</code> if there are none.
+	 */
+	public ArrayList<ReachData> getReachableForPos(int x, int y, int z) {
+		return reachable.get(x, y, z);
 	}
 
 }
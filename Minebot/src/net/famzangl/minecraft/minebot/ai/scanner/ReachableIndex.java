@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.scanner;
+
+import java.util.ArrayList;
+
+/**
+ * Maps block positions to the list of things that can be reached from that
+ * position. The positions are packed into longs and stored in an open addressed
+ * hash table, so no {@link net.minecraft.util.BlockPos} is needed for a lookup.
+ * <p>
+ * The index is filled by one thread and then only read. Reading is not
+ * synchronized, so the index needs to be published safely once it is filled.
+ * 
+ * @author Michael Zangl
+ * 
+ * @param <ReachData>
+ *            The data that is stored for each position.
+ */
+class ReachableIndex<ReachData> {
+	private static final int INITIAL_BITS = 6;
+
+	private long[] keys;
+	private ArrayList<ReachData>[] values;
+	private int bits;
+	private int size;
+
+	public ReachableIndex() {
+		init(INITIAL_BITS);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void init(int bits) {
+		this.bits = bits;
+		keys = new long[1 << bits];
+		values = new ArrayList[1 << bits];
+		size = 0;
+	}
+
+	/**
+	 * Packs a position the same way minecraft does it.
+	 */
+	private static long pack(int x, int y, int z) {
+		return ((long) x & 0x3ffffff) << 38 | ((long) y & 0xfff) << 26
+				| (long) z & 0x3ffffff;
+	}
+
+	private int slot(long key) {
+		final long hash = key * 0x9e3779b97f4a7c15l;
+		return (int) (hash >>> 64 - bits);
+	}
+
+	/**
+	 * Gets the list for a position.
+	 * 
+	 * @return The list or <code>null</code> if nothing can be reached from
+	 *         that position.
+	 */
+	public ArrayList<ReachData> get(int x, int y, int z) {
+		final long key = pack(x, y, z);
+		final long[] keys = this.keys;
+		final ArrayList<ReachData>[] values = this.values;
+		final int mask = keys.length - 1;
+		for (int slot = slot(key);; slot = slot + 1 & mask) {
+			final ArrayList<ReachData> value = values[slot];
+			if (value == null) {
+				return null;
+			} else if (keys[slot] == key) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Adds something that can be reached from a position.
+	 */
+	public void add(int x, int y, int z, ReachData data) {
+		final long key = pack(x, y, z);
+		final int mask = keys.length - 1;
+		int slot = slot(key);
+		while (values[slot] != null && keys[slot] != key) {
+			slot = slot + 1 & mask;
+		}
+		if (values[slot] == null) {
+			if ((size + 1) * 2 > keys.length) {
+				grow();
+				add(x, y, z, data);
+				return;
+			}
+			keys[slot] = key;
+			values[slot] = new ArrayList<ReachData>(2);
+			size++;
+		}
+		values[slot].add(data);
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final ArrayList<ReachData>[] oldValues = values;
+		init(bits + 1);
+		final int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = slot(oldKeys[i]);
+				while (values[slot] != null) {
+					slot = slot + 1 & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				size++;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "ReachableIndex [size=" + size + "]";
+	}
+}
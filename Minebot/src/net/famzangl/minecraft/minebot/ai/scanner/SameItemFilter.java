@@ -17,6 +17,7 @@
 package net.famzangl.minecraft.minebot.ai.scanner;
 
 import net.famzangl.minecraft.minebot.ai.ItemFilter;
+import net.famzangl.minecraft.minebot.ai.task.inventory.ItemWithSubtype;
 import net.minecraft.item.ItemStack;
 
 /**
@@ -47,6 +48,13 @@ public final class SameItemFilter implements ItemFilter {
 		return true;
 	}
 
+	/**
+	 * @return The item and subtype this filter matches.
+	 */
+	public ItemWithSubtype getItem() {
+		return new ItemWithSubtype(displayed);
+	}
+
 	@Override
 	public String toString() {
 		return "SameItemFilter [displayed=" + displayed + "]";
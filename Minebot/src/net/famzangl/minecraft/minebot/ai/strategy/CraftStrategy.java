@@ -315,7 +315,7 @@ public class CraftStrategy extends PathFinderStrategy {
 		@Override
 		protected float rateDestination(int distance, int x, int y, int z) {
 			ArrayList<CraftingTableData> tables = h
-					.getReachableForPos(new BlockPos(x, y, z));
+					.getReachableForPos(x, y, z);
 			return !failed && tables != null && tables.size() > 0 ? distance
 					: -1;
 		}
@@ -97,7 +97,7 @@ public class EnchantStrategy extends PathFinderStrategy {
 		@Override
 		protected float rateDestination(int distance, int x, int y, int z) {
 			ArrayList<EnchantingTableData> tables = h
-					.getReachableForPos(new BlockPos(x, y, z));
+					.getReachableForPos(x, y, z);
 			return tables != null && tables.size() > 0 ? distance : -1;
 		}
 
@@ -230,7 +230,7 @@ public class FurnaceStrategy extends PathFinderStrategy {
 		@Override
 		protected float rateDestination(int distance, int x, int y, int z) {
 			ArrayList<FurnaceData> furnaces = blockHandler
-					.getReachableForPos(new BlockPos(x, y, z));
+					.getReachableForPos(x, y, z);
 			if (furnaces != null) {
 				for (FurnaceData f : furnaces) {
 					if (list.couldTake(f)) {
@@ -17,6 +17,8 @@
 package net.famzangl.minecraft.minebot.ai.strategy;
 
 import net.famzangl.minecraft.minebot.ai.AIHelper;
+import net.famzangl.minecraft.minebot.ai.net.BlockChangeListener;
+import net.famzangl.minecraft.minebot.ai.path.BackgroundPathSearch;
 import net.famzangl.minecraft.minebot.ai.path.MovePathFinder;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldWithDelta;
@@ -30,6 +32,10 @@ import net.minecraftforge.fml.common.gameevent.TickEvent.RenderTickEvent;
  * This is the base strategy for all strategies that do pathfinding. Most of the
  * times, it does not need to be extended, it just needs an adjusted
  * {@link MovePathFinder}
+ * <p>
+ * If the path finder supports it, the search is done in a background thread
+ * and this strategy only polls for the result each tick. Either way, block
+ * changes are passed on so that a running search can be repaired.
  * 
  * @see MovePathFinder
  * 
@@ -44,7 +50,20 @@ public class PathFinderStrategy extends TaskStrategy {
 	private boolean noPathFound;
 	private final PosMarkerRenderer renderer = new PosMarkerRenderer(255, 128,
 			0);
-	private WorldData pathFindingWorld;;
+	private WorldData pathFindingWorld;
+	/**
+	 * The running background search. Read by the block change listener.
+	 */
+	private volatile BackgroundPathSearch backgroundSearch;
+	private final BlockChangeListener backgroundSearchListener = new BlockChangeListener() {
+		@Override
+		public void blockChanged(BlockPos pos) {
+			final BackgroundPathSearch search = backgroundSearch;
+			if (search != null) {
+				search.blockChanged(pos);
+			}
+		}
+	};
 
 	// private final HealthWatcher watcher = new HealthWatcher();
 
@@ -55,6 +74,10 @@ public class PathFinderStrategy extends TaskStrategy {
 
 	@Override
 	public void searchTasks(AIHelper helper) {
+		if (pathFinder.canSearchInBackground()) {
+			searchTasksInBackground(helper);
+			return;
+		}
 		if (pathFindingWorld != null) {
 			pathFinder.abort();
 		}
@@ -75,6 +98,55 @@ public class PathFinderStrategy extends TaskStrategy {
 		pathFindingWorld = null;
 	}
 
+	private void searchTasksInBackground(AIHelper helper) {
+		if (backgroundSearch != null && backgroundSearch.isPresearch()) {
+			// same as the abort() for synchronous searches.
+			backgroundSearch.cancel();
+		}
+		if (backgroundSearch != null && backgroundSearch.isCanceled()) {
+			if (!backgroundSearch.isDone()) {
+				// The path finder may not be used before the old search ended.
+				addTask(new WaitTask(1));
+				return;
+			}
+			backgroundSearch = null;
+		}
+
+		if (isInAir(helper)) {
+			addTask(new WaitTask(1));
+		} else {
+			if (backgroundSearch == null) {
+				backgroundSearch = BackgroundPathSearch.start(pathFinder,
+						helper, helper.getWorld(), false);
+			}
+			if (!takeBackgroundSearchResult()) {
+				// Path finding needs more time
+				if (!(noPathFound && inShouldTakeOver)) {
+					addTask(new WaitTask(1));
+				}
+			} else if (!hasMoreTasks()) {
+				noPathFound = true;
+			}
+		}
+	}
+
+	/**
+	 * Adds the tasks of the background search if it is done.
+	 * 
+	 * @return <code>true</code> if the search was done.
+	 */
+	private boolean takeBackgroundSearchResult() {
+		if (!backgroundSearch.isDone()) {
+			return false;
+		}
+		debug("Background search done: " + backgroundSearch);
+		for (AITask t : backgroundSearch.getFoundTasks()) {
+			addTask(t);
+		}
+		backgroundSearch = null;
+		return true;
+	}
+
 	private boolean isInAir(AIHelper helper) {
 		return !helper.getMinecraft().thePlayer.onGround;
 	}
@@ -87,6 +159,9 @@ public class PathFinderStrategy extends TaskStrategy {
 
 	@Override
 	protected TickResult onGameTick(AIHelper helper) {
+		if (pathFinder.canSearchInBackground()) {
+			return onGameTickWithBackgroundSearch(helper);
+		}
 		if (pathFindingWorld != null) {
 			// do pre pathfinding
 			if (searchTasksWithPathfinder(helper)) {
@@ -100,18 +175,7 @@ public class PathFinderStrategy extends TaskStrategy {
 		if (pathFindingWorld == null && tickResult == tickResult.TICK_AGAIN
 				&& !wasInDesync && !isDesync() && tasks.size() < 9
 				&& !tasks.isEmpty()) {
-			WorldWithDelta world = new WorldWithDelta(helper.getWorld());
-			debug("Applying DELTA");
-			for (AITask t : tasks) {
-				debug("Task: " + t);
-				if (!t.applyToDelta(world)) {
-					debug("--> Cannot pre-search tasks because " + t
-							+ " does not support world deltas.");
-					world = null;
-					break;
-				}
-			}
-			pathFindingWorld = world;
+			pathFindingWorld = createDeltaForTasks(helper);
 		} else if (tasks.size() < 9 && tickResult == tickResult.TICK_AGAIN) {
 			debug("I want to presearch, but this requires "
 					+ (pathFindingWorld == null) + "&&"
@@ -122,6 +186,85 @@ public class PathFinderStrategy extends TaskStrategy {
 		return tickResult;
 	}
 
+	private TickResult onGameTickWithBackgroundSearch(AIHelper helper) {
+		if (backgroundSearch != null && backgroundSearch.isCanceled()
+				&& backgroundSearch.isDone()) {
+			backgroundSearch = null;
+		}
+		if (backgroundSearch != null) {
+			backgroundSearch.updateWorld(helper.getWorld());
+		}
+		if (backgroundSearch != null && backgroundSearch.isPresearch()) {
+			if (isDesync()) {
+				backgroundSearch.cancel();
+			} else if (!backgroundSearch.isCanceled()) {
+				takeBackgroundSearchResult();
+			}
+		}
+
+		boolean wasInDesync = isDesync();
+		TickResult tickResult = super.onGameTick(helper);
+		if (backgroundSearch == null && tickResult == TickResult.TICK_AGAIN
+				&& !wasInDesync && !isDesync() && tasks.size() < 9
+				&& !tasks.isEmpty()) {
+			backgroundSearch = BackgroundPathSearch.start(pathFinder, helper,
+					createDeltaForTasks(helper), true);
+		}
+		return tickResult;
+	}
+
+	/**
+	 * Creates the world we expect after the current tasks. Each task is
+	 * applied on a fork that is only committed if the task supports deltas,
+	 * so a task that fails does not leave half of its changes behind and
+	 * does not stop the presearch.
+	 * 
+	 * @return The expected world.
+	 */
+	private WorldWithDelta createDeltaForTasks(AIHelper helper) {
+		WorldWithDelta world = new WorldWithDelta(helper.getWorld());
+		debug("Applying DELTA");
+		for (AITask t : tasks) {
+			debug("Task: " + t);
+			WorldWithDelta fork = world.fork();
+			if (t.applyToDelta(fork)) {
+				fork.commit();
+			} else {
+				debug("--> Skipping " + t
+						+ " in the pre-search, it does not support world deltas.");
+			}
+		}
+		return world;
+	}
+
+	@Override
+	protected void onActivate(AIHelper helper) {
+		super.onActivate(helper);
+		if (helper.getNetworkHelper() != null) {
+			// Background searches get the changes with a new snapshot.
+			helper.getNetworkHelper().addBlockChangeListener(
+					pathFinder.canSearchInBackground() ? backgroundSearchListener
+							: pathFinder);
+		}
+	}
+
+	@Override
+	protected void onDeactivate(AIHelper helper) {
+		if (backgroundSearch != null) {
+			backgroundSearch.cancel();
+		}
+		if (!pathFinder.canSearchInBackground()) {
+			// Also stops the block scans the path finder started.
+			pathFinder.abort();
+		}
+		if (helper.getNetworkHelper() != null) {
+			helper.getNetworkHelper().removeBlockChangeListener(pathFinder);
+			helper.getNetworkHelper().removeBlockChangeListener(
+					backgroundSearchListener);
+		}
+		super.onDeactivate(helper);
+	}
+
 	private void debug(String string) {
 		if (DEBUG) {
 			System.out.println(string);
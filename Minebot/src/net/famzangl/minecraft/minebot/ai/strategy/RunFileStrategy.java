@@ -9,6 +9,7 @@ import java.util.Scanner;
 import net.famzangl.minecraft.minebot.ai.AIHelper;
 import net.famzangl.minecraft.minebot.ai.command.AIChatController;
 import net.famzangl.minecraft.minebot.ai.command.IAIControllable;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.GuiChat;
 
@@ -45,7 +46,7 @@ public final class RunFileStrategy extends AIStrategy {
 	private final File fileName;
 	private LinkedList<String> commands = null;
 	private IOException exception = null;
-	private boolean fileRead;
+	private volatile boolean fileRead;
 	private boolean exceptionReported;
 	private AIStrategy activeStrategy;
 	private boolean repeatMode = false;
@@ -55,9 +56,9 @@ public final class RunFileStrategy extends AIStrategy {
 	public RunFileStrategy(File file) {
 		super();
 		this.fileName = file;
-		new Thread() {
+		MinebotExecutor.submit(new MinebotExecutor.Job("Read " + file) {
 			@Override
-			public void run() {
+			protected void execute() {
 				try {
 					commands = readFile(RunFileStrategy.this.fileName);
 				} catch (final FileNotFoundException e) {
@@ -82,7 +83,7 @@ public final class RunFileStrategy extends AIStrategy {
 				reader.close();
 				return commands;
 			}
-		}.start();
+		});
 	}
 
 	@Override
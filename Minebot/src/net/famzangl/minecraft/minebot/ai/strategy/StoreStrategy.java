@@ -69,8 +69,7 @@ public class StoreStrategy extends PathFinderStrategy {
 		
 		@Override
 		protected float rateDestination(int distance, int x, int y, int z) {
-			ArrayList<ChestData> chests = chestBlockHandler.getReachableForPos(new BlockPos(
-					x, y, z));
+			ArrayList<ChestData> chests = chestBlockHandler.getReachableForPos(x, y, z);
 			if (chests != null) {
 				for (ChestData c : chests) {
 					for (ItemStack s : helper.getMinecraft().thePlayer.inventory.mainInventory) {
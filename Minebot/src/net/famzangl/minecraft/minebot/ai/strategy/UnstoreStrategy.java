@@ -17,7 +17,9 @@
 package net.famzangl.minecraft.minebot.ai.strategy;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import net.famzangl.minecraft.minebot.ai.AIHelper;
 import net.famzangl.minecraft.minebot.ai.enchanting.CloseScreenTask;
@@ -31,6 +33,7 @@ import net.famzangl.minecraft.minebot.ai.strategy.InventoryDefinition.InventoryS
 import net.famzangl.minecraft.minebot.ai.task.AITask;
 import net.famzangl.minecraft.minebot.ai.task.OpenChestTask;
 import net.famzangl.minecraft.minebot.ai.task.WaitTask;
+import net.famzangl.minecraft.minebot.ai.task.inventory.ItemWithSubtype;
 import net.famzangl.minecraft.minebot.ai.task.inventory.MoveInInventoryTask;
 import net.minecraft.client.gui.inventory.GuiChest;
 import net.minecraft.inventory.Slot;
@@ -48,7 +51,37 @@ public class UnstoreStrategy extends PathFinderStrategy {
 			this.wantedInventory = wantedInventory;
 		}
 
-		public boolean couldUseOneOf(ChestData c) {
+		/**
+		 * Gets the chests we may take one of the wanted items from. This asks
+		 * the chest index once, so call it before a search.
+		 * 
+		 * @return The primary and secondary positions of the chests.
+		 */
+		public HashSet<BlockPos> getChestsToTakeFrom() {
+			HashSet<ItemWithSubtype> items = new HashSet<ItemWithSubtype>();
+			for (int i = 0; i < 36; i++) {
+				InventorySlot slot = wantedInventory.getSlot(i);
+				if (!slot.isEmpty() && !noMoreWork[i]) {
+					items.add(slot.getItem());
+				}
+			}
+			return ChestBlockHandler.getChestsToTakeFrom(items);
+		}
+
+		/**
+		 * Checks if we could take one of the wanted items from the chest.
+		 * 
+		 * @param c
+		 *            The chest.
+		 * @param chestsToTakeFrom
+		 *            The result of {@link #getChestsToTakeFrom()}.
+		 * @return <code>true</code> if the chest is worth visiting.
+		 */
+		public boolean couldUseOneOf(ChestData c,
+				Set<BlockPos> chestsToTakeFrom) {
+			if (!chestsToTakeFrom.contains(c.getPos())) {
+				return false;
+			}
 			for (int i = 0; i < 36; i++) {
 				InventorySlot slot = wantedInventory.getSlot(i);
 				if (slot.isEmpty() || noMoreWork[i]) {
@@ -172,6 +205,12 @@ public class UnstoreStrategy extends PathFinderStrategy {
 
 		private ChestBlockHandler chestBlockHandler;
 
+		/**
+		 * The chests we may take items from. Filled once per search, after the
+		 * range scan is done.
+		 */
+		private Set<BlockPos> chestsToTakeFrom;
+
 		@Override
 		protected BlockRangeScanner constructScanner(BlockPos playerPosition) {
 			BlockRangeScanner scanner = super.constructScanner(playerPosition);
@@ -184,13 +223,33 @@ public class UnstoreStrategy extends PathFinderStrategy {
 			this.list = list;
 		}
 
+		@Override
+		protected boolean runSearch(BlockPos playerPosition) {
+			boolean finished = super.runSearch(playerPosition);
+			if (finished) {
+				chestsToTakeFrom = null;
+			}
+			return finished;
+		}
+
+		@Override
+		public void abort() {
+			chestsToTakeFrom = null;
+			super.abort();
+		}
+
 		@Override
 		protected float rateDestination(int distance, int x, int y, int z) {
 			ArrayList<ChestData> chests = chestBlockHandler
-					.getReachableForPos(new BlockPos(x, y, z));
+					.getReachableForPos(x, y, z);
 			if (chests != null) {
+				if (chestsToTakeFrom == null) {
+					// Only now the range scan has stored the item frames it
+					// found in the index.
+					chestsToTakeFrom = list.getChestsToTakeFrom();
+				}
 				for (ChestData c : chests) {
-					if (list.couldUseOneOf(c)) {
+					if (list.couldUseOneOf(c, chestsToTakeFrom)) {
 						return distance;
 					}
 				}
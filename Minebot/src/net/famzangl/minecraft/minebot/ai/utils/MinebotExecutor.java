@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.utils;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+/**
+ * The thread pool all background work of Minebot is done on. Work is
+ * submitted as {@link Job}s that can be canceled. Queued jobs with a higher
+ * priority are run first, jobs with the same priority in the order they were
+ * submitted.
+ *
+ * @author Michael Zangl
+ */
+public class MinebotExecutor {
+	private static final Marker MARKER_EXECUTOR = MarkerManager
+			.getMarker("executor");
+	private static final Logger LOGGER = LogManager
+			.getLogger(MinebotExecutor.class);
+
+	/**
+	 * Threads that were not used for that long are stopped.
+	 */
+	private static final int KEEP_ALIVE_SECONDS = 30;
+
+	/**
+	 * The priority of most jobs.
+	 */
+	public static final int PRIORITY_NORMAL = 0;
+	/**
+	 * The priority of jobs the bot is waiting for, like path searches. They
+	 * are run before the scanning jobs that were queued earlier.
+	 */
+	public static final int PRIORITY_HIGH = 10;
+
+	private static final int THREADS = Math.max(4, Runtime.getRuntime()
+			.availableProcessors());
+
+	private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+			THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+			new PriorityBlockingQueue<Runnable>(11, new Comparator<Runnable>() {
+				@Override
+				public int compare(Runnable o1, Runnable o2) {
+					final Job j1 = (Job) o1;
+					final Job j2 = (Job) o2;
+					if (j1.priority != j2.priority) {
+						return j1.priority > j2.priority ? -1 : 1;
+					}
+					return j1.sequence < j2.sequence ? -1
+							: j1.sequence == j2.sequence ? 0 : 1;
+				}
+			}), new ThreadFactory() {
+				private final AtomicInteger threadNumber = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Minebot worker "
+							+ threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+	static {
+		POOL.allowCoreThreadTimeOut(true);
+	}
+
+	private static final AtomicLong submittedJobs = new AtomicLong();
+	private static final AtomicLong ranJobs = new AtomicLong();
+	private static final AtomicLong finishedJobs = new AtomicLong();
+	private static final AtomicLong canceledJobs = new AtomicLong();
+	private static final AtomicLong totalRunNanos = new AtomicLong();
+	private static final AtomicLong maxRunNanos = new AtomicLong();
+
+	/**
+	 * Some work that is done in the background. Long running jobs should
+	 * check {@link #isCanceled()} regularly and return as soon as it is set.
+	 *
+	 * @author Michael Zangl
+	 */
+	public static abstract class Job implements Runnable {
+		private final String name;
+		private final int priority;
+		/**
+		 * The order in which the job was submitted.
+		 */
+		private long sequence;
+		private volatile boolean canceled;
+		private volatile boolean done;
+
+		public Job(String name) {
+			this(name, PRIORITY_NORMAL);
+		}
+
+		/**
+		 * Creates a new job.
+		 * 
+		 * @param name
+		 *            The name for the log.
+		 * @param priority
+		 *            The priority, e.g. {@link MinebotExecutor#PRIORITY_HIGH}
+		 *            .
+		 */
+		public Job(String name, int priority) {
+			this.name = name;
+			this.priority = priority;
+		}
+
+		/**
+		 * Does the work.
+		 *
+		 * @throws Exception
+		 *             If anything went wrong. It is logged.
+		 */
+		protected abstract void execute() throws Exception;
+
+		@Override
+		public final void run() {
+			final long start = System.nanoTime();
+			try {
+				if (!canceled) {
+					execute();
+				}
+			} catch (Throwable t) {
+				LOGGER.error(MARKER_EXECUTOR, "Error in background job "
+						+ name, t);
+			} finally {
+				jobFinished(this, System.nanoTime() - start);
+				done = true;
+			}
+		}
+
+		/**
+		 * Requests the job to stop. If it did not start yet, it is removed
+		 * from the queue and marked as done.
+		 */
+		public void cancel() {
+			canceled = true;
+			if (POOL.remove(this)) {
+				canceledJobs.incrementAndGet();
+				done = true;
+			}
+		}
+
+		public boolean isCanceled() {
+			return canceled;
+		}
+
+		/**
+		 * @return <code>true</code> as soon as the job is not running any
+		 *         more and will never be run.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private MinebotExecutor() {
+	}
+
+	/**
+	 * Queues a job.
+	 *
+	 * @param job
+	 *            The job. It may only be submitted once.
+	 * @return The job.
+	 */
+	public static <T extends Job> T submit(T job) {
+		((Job) job).sequence = submittedJobs.incrementAndGet();
+		POOL.execute(job);
+		return job;
+	}
+
+	private static void jobFinished(Job job, long nanos) {
+		if (job.isCanceled()) {
+			canceledJobs.incrementAndGet();
+		} else {
+			finishedJobs.incrementAndGet();
+		}
+		ranJobs.incrementAndGet();
+		totalRunNanos.addAndGet(nanos);
+		long max;
+		while ((max = maxRunNanos.get()) < nanos
+				&& !maxRunNanos.compareAndSet(max, nanos)) {
+		}
+		LOGGER.debug(MARKER_EXECUTOR, "Job " + job.getName() + " took "
+				+ nanos / 1000000 + "ms"
+				+ (job.isCanceled() ? " (canceled)" : ""));
+	}
+
+	/**
+	 * @return The number of jobs waiting for a free thread.
+	 */
+	public static int getQueueDepth() {
+		return POOL.getQueue().size();
+	}
+
+	/**
+	 * @return The number of jobs currently running.
+	 */
+	public static int getActiveCount() {
+		return POOL.getActiveCount();
+	}
+
+	/**
+	 * @return A short text describing what the executor did.
+	 */
+	public static String getStatistics() {
+		return "Minebot executor: " + getActiveCount() + " running, "
+				+ getQueueDepth() + " queued, " + finishedJobs.get()
+				+ " finished, " + canceledJobs.get() + " canceled, "
+				+ totalRunNanos.get() / 1000000 / Math.max(1, ranJobs.get())
+				+ "ms average, " + maxRunNanos.get() / 1000000 + "ms max";
+	}
+}
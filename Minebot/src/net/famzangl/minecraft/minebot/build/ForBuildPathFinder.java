@@ -21,6 +21,7 @@ import java.util.LinkedList;
 
 import net.famzangl.minecraft.minebot.ai.BlockItemFilter;
 import net.famzangl.minecraft.minebot.ai.path.MovePathFinder;
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSets;
 import net.famzangl.minecraft.minebot.ai.task.move.AlignToGridTask;
@@ -48,6 +49,12 @@ public class ForBuildPathFinder extends MovePathFinder {
 	int[] res = new int[NEIGHBOURS_PER_DIRECTION * 4];
 	private boolean canBuildUp;
 	private boolean noPathFound;
+	/**
+	 * The box around all places we could build from. Computed when the search
+	 * starts.
+	 */
+	private BlockPos placesMin;
+	private BlockPos placesMax;
 
 	public ForBuildPathFinder(BuildTask task) {
 		this.task = task;
@@ -109,6 +116,12 @@ public class ForBuildPathFinder extends MovePathFinder {
 		}
 	}
 
+	@Override
+	protected MoveScanner.ScannerPolicy createScannerPolicy() {
+		// We use a different ground check.
+		return null;
+	}
+
 	@Override
 	protected boolean checkGroundBlock(int currentNode, int cx, int cy, int cz) {
 		return BlockSets.SAFE_GROUND.isAt(world, cx, cy - 1, cz)
@@ -133,6 +146,50 @@ public class ForBuildPathFinder extends MovePathFinder {
 		return -1;
 	}
 
+	@Override
+	protected void searchStarted() {
+		super.searchStarted();
+		final BlockPos pos = task.getForPosition();
+		placesMin = null;
+		placesMax = null;
+		for (final BlockPos p : task.getStandablePlaces()) {
+			final int x = p.getX() + pos.getX();
+			final int y = p.getY() + pos.getY();
+			final int z = p.getZ() + pos.getZ();
+			if (placesMin == null) {
+				placesMin = new BlockPos(x, y, z);
+				placesMax = placesMin;
+			} else {
+				placesMin = new BlockPos(Math.min(placesMin.getX(), x),
+						Math.min(placesMin.getY(), y), Math.min(
+								placesMin.getZ(), z));
+				placesMax = new BlockPos(Math.max(placesMax.getX(), x),
+						Math.max(placesMax.getY(), y), Math.max(
+								placesMax.getZ(), z));
+			}
+		}
+	}
+
+	/**
+	 * Estimates the distance to the box around all standable places. It is a
+	 * bit less than the distance to the nearest place, but does not need to
+	 * look at every place for every node.
+	 */
+	@Override
+	protected int estimateRemainingDistance(int x, int y, int z) {
+		if (placesMin == null) {
+			return 0;
+		}
+		return estimateWalkDistance(x, y, z,
+				clamp(x, placesMin.getX(), placesMax.getX()),
+				clamp(y, placesMin.getY(), placesMax.getY()),
+				clamp(z, placesMin.getZ(), placesMax.getZ()));
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
 	@Override
 	protected void foundPath(LinkedList<BlockPos> path) {
 		BlockPos currentPos = path.removeFirst();
@@ -232,6 +232,7 @@ public class MapDisplay extends JPanel implements FollowPlayerListener {
 	public void paint(Graphics g) {
 		super.paint(g);
 		int scaledSize = MapReader.BLOCK_SIZE * BASE_PIXEL / blocksPerBasePixel;
+		int level = getDetailLevel();
 		synchronized (activePlayerMutex) {
 			if (activePlayer == null) {
 				return;
@@ -257,13 +258,16 @@ public class MapDisplay extends JPanel implements FollowPlayerListener {
 			for (int z = minPosZ; z <= maxPosZ; z += MapReader.BLOCK_SIZE) {
 				ImagePos pos = new MapReader.ImagePos(x, z);
 				MultiModeImage imageChunk = map.task.getImage(pos);
-				WriteableImage im = imageChunk.getForRenderMode(mode);
-				icons.addAll(imageChunk.setting.getIcons());
-
-				BufferedImage draw = im.getPaintingImage();
-
-				g.drawImage(draw, blockToPanelX(x), blockToPanelY(z),
-						scaledSize, scaledSize, null);
+				if (imageChunk.mayHaveData()) {
+					WriteableImage im = imageChunk.getForRenderMode(mode);
+					icons.addAll(imageChunk.getIcons());
+
+					BufferedImage draw = im.getImageForLevel(level);
+					if (draw != null) {
+						g.drawImage(draw, blockToPanelX(x), blockToPanelY(z),
+								scaledSize, scaledSize, null);
+					}
+				}
 				g.drawRect(blockToPanelX(x), blockToPanelY(z), scaledSize,
 						scaledSize);
 				g.drawString(x + "," + z, blockToPanelX(x), blockToPanelY(z));
@@ -283,6 +287,21 @@ public class MapDisplay extends JPanel implements FollowPlayerListener {
 		drawMarks(g);
 	}
 
+	/**
+	 * Gets the mip level to draw, so that one image pixel is at least one
+	 * screen pixel.
+	 * 
+	 * @return The level for {@link WriteableImage#getImageForLevel(int)}.
+	 */
+	private int getDetailLevel() {
+		int level = 0;
+		while (level < MapReader.MIP_LEVELS
+				&& BASE_PIXEL << level + 1 <= blocksPerBasePixel) {
+			level++;
+		}
+		return level;
+	}
+
 	private void drawMarks(Graphics g) {
 		synchronized (markPositionMutex) {
 			if (mark1 != null && mark2 != null) {
@@ -4,33 +4,41 @@ import java.awt.BorderLayout;
 import java.awt.Frame;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
 import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JSeparator;
 import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
 
 import net.famzangl.minecraft.minebot.ai.AIHelper;
 import net.famzangl.minecraft.minebot.ai.net.ChunkListener;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData.ChunkAccessorUnmodified;
+import net.famzangl.minecraft.minebot.ai.utils.MinebotExecutor;
 import net.famzangl.minecraft.minebot.ai.utils.PrivateFieldUtils;
 import net.minecraft.client.entity.EntityPlayerSP;
 import net.minecraft.client.multiplayer.ChunkProviderClient;
@@ -57,12 +65,52 @@ public class MapReader implements ChunkListener {
 
 	private static final int ALL_CHUNKS_LOAD_INTERVALL = 30 * 20;
 
+	/**
+	 * How often the statistics in the title are updated. In game ticks.
+	 */
+	private static final int STATISTICS_INTERVALL = 20;
+
 	static final int BLOCK_SIZE = 1024;
 
+	private static final int CHUNKS_PER_IMAGE = BLOCK_SIZE / 16;
+	/**
+	 * The slot of the icons in the region file. The slots before are used
+	 * for the chunks.
+	 */
+	private static final int ICON_SLOT = CHUNKS_PER_IMAGE * CHUNKS_PER_IMAGE;
+	private static final int CHUNK_ROW_BYTES = 16 * 4;
+	/**
+	 * The pixels of one chunk in one render mode.
+	 */
+	private static final int CHUNK_BYTES = 16 * CHUNK_ROW_BYTES;
+	/**
+	 * Hash flag and chunk hash.
+	 */
+	private static final int CHUNK_HEADER_BYTES = 5;
+	/**
+	 * How many smaller versions of each image we keep. Each level has half
+	 * the size of the one before.
+	 */
+	static final int MIP_LEVELS = 3;
+
+	/**
+	 * How many images are rendered at the same time. The other workers of the
+	 * executor are left for the bot.
+	 */
+	private static final int RENDER_WORKERS = Math.max(2, Runtime
+			.getRuntime().availableProcessors() / 2);
+
+	/**
+	 * How much memory the loaded images may use. If they use more, the least
+	 * recently used images are unloaded.
+	 */
+	private static final long MAX_CACHE_BYTES = Runtime.getRuntime()
+			.maxMemory() / 4;
+
 	private final File baseFile;
 
-	private BlockingQueue<Chunk> chunksToProcess = new LinkedBlockingQueue<Chunk>();
-	private BlockingQueue<WriteableImage> imagesToWrite = new LinkedBlockingQueue<WriteableImage>();
+	private Queue<MultiModeImage> imagesToWrite = new ConcurrentLinkedQueue<MultiModeImage>();
+	private final AtomicBoolean writeQueued = new AtomicBoolean();
 
 	private MapDisplay mapDisplay = new MapDisplay(this);
 	MapDisplayDialog mapDialog = new MapDisplayDialog(mapDisplay);
@@ -72,110 +120,207 @@ public class MapReader implements ChunkListener {
 	private ChunkQueue chunkQueue = new ChunkQueue();
 
 	final MapReaderTask task = new MapReaderTask();
-	private final MapWriterTask writer = new MapWriterTask();
 
 	final class WriteableImage {
-
-		/**
-		 * Overlay this image over the original image. Set whenever there was an
-		 * original image and this image has not been set.
-		 */
-		private boolean overlay = false;
-
 		/**
 		 * Sub image position.
 		 */
 		private final ImagePos pos;
 
+		private final MultiModeImage owner;
+
+		private final RenderMode mode;
+
+		/**
+		 * The pixels. Created when the owner is loaded, dropped when it is
+		 * unloaded.
+		 */
 		private BufferedImage image;
-		private BufferedImage writeImage;
 
-		private boolean changed;
+		/**
+		 * Smaller versions of {@link #image}. Level n is 2^n times smaller.
+		 * Level 0 is not used. They are created when they are first used and
+		 * then kept up to date with each rendered chunk. Guarded by the owner.
+		 */
+		private final BufferedImage[] mipLevels = new BufferedImage[MIP_LEVELS + 1];
 
-		private RenderMode mode;
+		/**
+		 * The smallest mip level, kept while the owner is unloaded. This way,
+		 * a zoomed out map does not need to load all images again. Guarded by
+		 * the owner.
+		 */
+		private BufferedImage preview;
 
-		public WriteableImage(ImagePos pos, RenderMode mode) {
+		public WriteableImage(MultiModeImage owner, ImagePos pos,
+				RenderMode mode) {
 			super();
+			this.owner = owner;
 			this.pos = pos;
 			this.mode = mode;
+		}
 
+		/**
+		 * @return The file the image was stored in before region files were
+		 *         used.
+		 */
+		private File getLegacyPath() {
+			return new File(baseFile.getAbsolutePath() + "." + pos.topLeftX
+					+ "." + pos.topLeftZ + mode.getExt() + "." + "png");
 		}
 
-		private File getWithExt(String prefix) {
-			return new File(baseFile.getAbsolutePath() + prefix + "."
-					+ pos.topLeftX + "." + pos.topLeftZ + mode.getExt() + "."
-					+ "png");
+		/**
+		 * Get the image to paint on.
+		 * 
+		 * @return
+		 */
+		public BufferedImage getPaintingImage() {
+			synchronized (owner) {
+				owner.ensureLoaded();
+				return image;
+			}
 		}
 
-		public File getPath() {
-			return getWithExt("");
+		/**
+		 * Gets the image in a smaller resolution to draw it. This does not
+		 * block: If the image is not loaded, it is loaded in the background
+		 * and the map is repainted when it is done.
+		 * 
+		 * @param level
+		 *            The mip level. 0 is the full image, level n is 2^n times
+		 *            smaller. Levels above {@link MapReader#MIP_LEVELS} get the
+		 *            smallest image.
+		 * @return The image, the preview or <code>null</code> if it is not
+		 *         loaded yet.
+		 */
+		public BufferedImage getImageForLevel(int level) {
+			synchronized (owner) {
+				boolean hasPreview = level >= MIP_LEVELS && preview != null;
+				boolean hit = owner.loaded || hasPreview;
+				task.countAccess(hit);
+				if (!hit) {
+					owner.requestLoad();
+					// Until then, the smaller preview is better than nothing.
+					return preview;
+				}
+				return getMipLevel(level);
+			}
 		}
 
-		public File getTempPath() {
-			return getWithExt(".tmp");
+		private BufferedImage getMipLevel(int level) {
+			if (level <= 0) {
+				return getPaintingImage();
+			}
+			level = Math.min(level, MIP_LEVELS);
+			if (level == MIP_LEVELS && preview != null) {
+				return preview;
+			}
+			if (mipLevels[level] == null) {
+				BufferedImage larger = getMipLevel(level - 1);
+				int size = BLOCK_SIZE >> level;
+				BufferedImage mip = new BufferedImage(size, size,
+						BufferedImage.TYPE_4BYTE_ABGR);
+				downscale(getRasterBytes(larger), getRasterBytes(mip), size, 0,
+						0, size);
+				mipLevels[level] = mip;
+			}
+			return mipLevels[level];
 		}
 
 		/**
-		 * Get the image to paint on.
-		 * 
-		 * @return
+		 * Updates the mip levels that were already created after a chunk was
+		 * rendered.
 		 */
-		public synchronized BufferedImage getPaintingImage() {
-			try {
-				if (image == null) {
-					System.out.println("Reading old image for " + pos);
-					image = ImageIO.read(getPath());
+		private void updateMipLevels(Chunk chunk) {
+			int x = chunk.xPosition * 16 - pos.topLeftX;
+			int z = chunk.zPosition * 16 - pos.topLeftZ;
+			int size = 16;
+			synchronized (owner) {
+				for (int level = 1; level <= MIP_LEVELS
+						&& mipLevels[level] != null; level++) {
+					x >>= 1;
+					z >>= 1;
+					size >>= 1;
+					BufferedImage larger = level == 1 ? image
+							: mipLevels[level - 1];
+					downscale(getRasterBytes(larger),
+							getRasterBytes(mipLevels[level]),
+							BLOCK_SIZE >> level, x, z, size);
 				}
-			} catch (IOException e) {
 			}
-			if (image == null) {
-				System.out.println("Generating new image for " + pos);
-				image = new BufferedImage(BLOCK_SIZE, BLOCK_SIZE,
-						BufferedImage.TYPE_4BYTE_ABGR);
+		}
+
+		/**
+		 * Drops the pixels but keeps the smallest mip level as preview. Needs
+		 * the owner lock.
+		 */
+		private void unload() {
+			preview = image == null ? null : getMipLevel(MIP_LEVELS);
+			image = null;
+			Arrays.fill(mipLevels, null);
+		}
+
+		/**
+		 * @return The bytes used by the pixels of this image. Needs the owner
+		 *         lock.
+		 */
+		private long getMemoryUsage() {
+			long bytes = 0;
+			if (image != null) {
+				bytes += getRasterBytes(image).length;
+			}
+			for (BufferedImage mip : mipLevels) {
+				if (mip != null) {
+					bytes += getRasterBytes(mip).length;
+				}
+			}
+			if (preview != null) {
+				bytes += getRasterBytes(preview).length;
 			}
-			return image;
+			return bytes;
 		}
 
-		public synchronized void markChanged() {
-			changed = true;
+		private byte[] getPixels() {
+			return getRasterBytes(image);
 		}
 
 		/**
-		 * Mark the current image version for writing.
+		 * @return The offset of the first pixel of a chunk slot in the pixel
+		 *         array.
+		 */
+		private int getSlotOffset(int slot) {
+			int chunkX = slot % CHUNKS_PER_IMAGE;
+			int chunkZ = slot / CHUNKS_PER_IMAGE;
+			return 4 * (chunkZ * 16 * BLOCK_SIZE + chunkX * 16);
+		}
+
+		/**
+		 * Copies the pixel rows of one chunk.
 		 * 
-		 * @return <code>true</code> if the image was changed and marked for
-		 *         writing.
-		 */
-		public synchronized boolean prepareToWrite() {
-			if (changed && writeImage == null) {
-				long time = System.currentTimeMillis();
-				ColorModel cm = image.getColorModel();
-				writeImage = new BufferedImage(BLOCK_SIZE, BLOCK_SIZE,
-						BufferedImage.TYPE_4BYTE_ABGR);
-				Graphics graphics = writeImage.getGraphics();
-				graphics.drawImage(image, 0, 0, null);
-				graphics.dispose();
-				System.out.println(pos + ": Storing for write took "
-						+ (System.currentTimeMillis() - time) + " ms");
-				changed = false;
-				return true;
+		 * @param slot
+		 *            The chunk slot.
+		 * @param to
+		 *            The array to copy the {@link #CHUNK_BYTES} to.
+		 * @param offset
+		 *            Where to start in that array.
+		 */
+		void copyChunkRows(int slot, byte[] to, int offset) {
+			byte[] pixels = getPixels();
+			int first = getSlotOffset(slot);
+			for (int dz = 0; dz < 16; dz++) {
+				System.arraycopy(pixels, first + dz * BLOCK_SIZE * 4, to,
+						offset + dz * CHUNK_ROW_BYTES, CHUNK_ROW_BYTES);
 			}
-			return false;
 		}
 
-		public void write() {
-			try {
-				long time = System.currentTimeMillis();
-				getTempPath().getParentFile().mkdirs();
-				ImageIO.write(writeImage, "png", getTempPath());
-				getTempPath().renameTo(getPath());
-				System.out.println(pos + ": Writing took "
-						+ (System.currentTimeMillis() - time) + " ms");
-				synchronized (this) {
-					writeImage = null;
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+		/**
+		 * The reverse of {@link #copyChunkRows(int, byte[], int)}.
+		 */
+		void pasteChunkRows(int slot, byte[] from, int offset) {
+			byte[] pixels = getPixels();
+			int first = getSlotOffset(slot);
+			for (int dz = 0; dz < 16; dz++) {
+				System.arraycopy(from, offset + dz * CHUNK_ROW_BYTES, pixels,
+						first + dz * BLOCK_SIZE * 4, CHUNK_ROW_BYTES);
 			}
 		}
 
@@ -187,7 +332,12 @@ public class MapReader implements ChunkListener {
 					-pos.topLeftZ + chunk.zPosition * 16 + dz, color);
 		}
 
-		public void renderChunk(WorldData world, Chunk chunk) {
+		/**
+		 * Renders a chunk.
+		 * 
+		 * @return <code>true</code> if a pixel was changed.
+		 */
+		public boolean renderChunk(WorldData world, Chunk chunk) {
 			int chunkX = chunk.xPosition * 16;
 			int chunkZ = chunk.zPosition * 16;
 
@@ -219,35 +369,127 @@ public class MapReader implements ChunkListener {
 				}
 			}
 			if (wasChanged) {
-				markChanged();
+				updateMipLevels(chunk);
+			}
+			return wasChanged;
+		}
+	}
+
+	private static byte[] getRasterBytes(BufferedImage image) {
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Computes a square of an image of half the size. Each pixel is the
+	 * average of the four pixels of the larger image. The colors are weighted
+	 * by their alpha, so that transparent pixels do not darken the border of
+	 * the known area.
+	 * 
+	 * @param from
+	 *            The ABGR pixels of the larger image.
+	 * @param to
+	 *            The ABGR pixels of the smaller image.
+	 * @param toWidth
+	 *            The width of the smaller image.
+	 * @param x
+	 *            The square to compute in the smaller image.
+	 * @param z
+	 *            The square to compute in the smaller image.
+	 * @param size
+	 *            The size of the square.
+	 */
+	static void downscale(byte[] from, byte[] to, int toWidth, int x, int z,
+			int size) {
+		int fromWidth = toWidth * 2;
+		for (int dz = z; dz < z + size; dz++) {
+			for (int dx = x; dx < x + size; dx++) {
+				int topLeft = 4 * (2 * dz * fromWidth + 2 * dx);
+				int alpha = 0;
+				int b = 0;
+				int g = 0;
+				int r = 0;
+				for (int i = 0; i < 4; i++) {
+					int offset = topLeft + 4 * (i & 1) + 4 * fromWidth
+							* (i >> 1);
+					int a = from[offset] & 0xff;
+					alpha += a;
+					b += (from[offset + 1] & 0xff) * a;
+					g += (from[offset + 2] & 0xff) * a;
+					r += (from[offset + 3] & 0xff) * a;
+				}
+				int offset = 4 * (dz * toWidth + dx);
+				to[offset] = (byte) (alpha / 4);
+				if (alpha > 0) {
+					to[offset + 1] = (byte) (b / alpha);
+					to[offset + 2] = (byte) (g / alpha);
+					to[offset + 3] = (byte) (r / alpha);
+				} else {
+					to[offset + 1] = 0;
+					to[offset + 2] = 0;
+					to[offset + 3] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes all images that are waiting to be written.
+	 * 
+	 * @author michael
+	 *
+	 */
+	private final class MapWriterJob extends MinebotExecutor.Job {
+
+		public MapWriterJob() {
+			super("Map writer");
+		}
+
+		@Override
+		protected void execute() {
+			// Images offered from now on need a new job.
+			writeQueued.set(false);
+			MultiModeImage image;
+			while ((image = imagesToWrite.poll()) != null) {
+				image.write();
 			}
 		}
 	}
 
-	private final class MapWriterTask implements Runnable {
+	/**
+	 * Loads an image for the map display, so that painting does not need to
+	 * wait for the disk.
+	 * 
+	 * @author michael
+	 *
+	 */
+	private final class LoadImageJob extends MinebotExecutor.Job {
+		private final MultiModeImage image;
 
-		private boolean doStop;
+		public LoadImageJob(MultiModeImage image) {
+			super("Map loader " + image.pos);
+			this.image = image;
+		}
 
 		@Override
-		public void run() {
+		protected void execute() {
 			try {
-				while (!doStop) {
-					WriteableImage image = imagesToWrite.poll(5000,
-							TimeUnit.MILLISECONDS);
-					if (image != null) {
-						image.write();
-					}
+				image.ensureLoaded();
+			} finally {
+				synchronized (image) {
+					image.loadQueued = false;
 				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
 			}
+			mapDisplay.repaint();
 		}
+	}
 
-		public void stop() {
-			doStop = true;
-		}
-
-		private void write(BufferedImage map) throws IOException {
+	/**
+	 * Called whenever an image was offered for writing. Only one write job
+	 * is queued at a time, it writes all images offered until it starts.
+	 */
+	private void requestWrite() {
+		if (writeQueued.compareAndSet(false, true)) {
+			MinebotExecutor.submit(new MapWriterJob());
 		}
 	}
 
@@ -355,144 +597,498 @@ public class MapReader implements ChunkListener {
 		}
 	}
 
+	/**
+	 * The settings file that was stored next to the images before region
+	 * files were used.
+	 */
 	private static final class SettingsContainer {
 		private Hashtable<String, Integer> hashes = new Hashtable<String, Integer>();
 
 		private List<IconDefinition> icons = new LinkedList<IconDefinition>();
 	}
 
-	static class WriteableSetting {
-
+	/**
+	 * All render modes of one image. They are stored together in one
+	 * {@link MapRegionFile}. Each chunk has its own slot in that file that
+	 * contains the chunk hash and the pixel rows of that chunk for every mode.
+	 * The icons are stored in the last slot.
+	 * <p>
+	 * Only the chunks that changed since the last write are written again.
+	 * <p>
+	 * The pixels are only kept while the image is in the cache of the
+	 * {@link MapReaderTask}. The chunk hashes and icons are kept after the
+	 * image was unloaded, since they are small and needed to draw the map.
+	 * 
+	 * @author michael
+	 *
+	 */
+	class MultiModeImage {
+		private WriteableImage[] images = new WriteableImage[RenderMode
+				.values().length];
 		private final ImagePos pos;
-		private SettingsContainer settings = null;
-		private boolean read;
-		private final File baseFile;
+		private final MapRegionFile region;
+
+		/**
+		 * The chunks of this image that still need to be rendered. Guarded by
+		 * {@link MapReaderTask#renderMutex}.
+		 */
+		private final LinkedList<Chunk> pendingChunks = new LinkedList<Chunk>();
+		/**
+		 * <code>true</code> while this image is waiting for a worker or being
+		 * rendered by one. Guarded by {@link MapReaderTask#renderMutex}.
+		 */
+		private boolean scheduled;
+
+		private boolean loaded;
+		/**
+		 * <code>true</code> while a {@link LoadImageJob} is queued for this
+		 * image.
+		 */
+		private boolean loadQueued;
+		/**
+		 * <code>true</code> as soon as the chunk hashes and icons were read.
+		 */
+		private boolean metadataLoaded;
+		/**
+		 * If there are any files for this image. <code>null</code> if we did
+		 * not check yet.
+		 */
+		private Boolean hasFiles;
+		/**
+		 * Created when the image is loaded the first time.
+		 */
+		private int[] chunkHashes;
+		private final BitSet hasChunkHash = new BitSet(ICON_SLOT);
+		/**
+		 * The chunk slots that were changed since the last write.
+		 */
+		private final BitSet dirtyChunks = new BitSet(ICON_SLOT);
+		private final ArrayList<IconDefinition> icons = new ArrayList<IconDefinition>();
+		private boolean iconsDirty;
+		/**
+		 * <code>true</code> if the old png and json files were read. They are
+		 * deleted as soon as the region file was written.
+		 */
+		private boolean legacyFilesRead;
+		private boolean queuedForWrite;
+		/**
+		 * <code>true</code> while the region file is written.
+		 */
+		private boolean writing;
 
-		public WriteableSetting(File baseFile, ImagePos pos) {
-			this.baseFile = baseFile;
+		public MultiModeImage(ImagePos pos) {
 			this.pos = pos;
+			for (int i = 0; i < images.length; i++) {
+				images[i] = new WriteableImage(this, pos,
+						RenderMode.values()[i]);
+			}
+			region = new MapRegionFile(new File(baseFile.getAbsolutePath()
+					+ "." + pos.topLeftX + "." + pos.topLeftZ + ".region"),
+					ICON_SLOT + 1);
 		}
 
-		private File getFile() {
-			return new File(baseFile.getAbsolutePath() + "." + pos.topLeftX
-					+ "." + pos.topLeftZ + "." + "json");
+		/**
+		 * Loads the images if they are not loaded. The cache is informed about
+		 * the new image, so that it can unload others.
+		 */
+		void ensureLoaded() {
+			if (load()) {
+				task.requestEviction();
+			}
 		}
 
-		public synchronized Integer getChunkHash(int x, int z) {
-			attemptRead();
-			return settings.hashes.get(x + "," + z);
+		/**
+		 * Loads the image in the background if it is not loaded. The map is
+		 * repainted when it is done.
+		 */
+		synchronized void requestLoad() {
+			if (!loaded && !loadQueued) {
+				loadQueued = true;
+				MinebotExecutor.submit(new LoadImageJob(this));
+			}
 		}
 
-		public synchronized void setChunkHash(int x, int z, int hash) {
-			settings.hashes.put(x + "," + z, hash);
-			write();
+		/**
+		 * Loads the images from the region file. If there is none, the old
+		 * png and json files are read and the region file is created on the
+		 * next write.
+		 * 
+		 * @return <code>true</code> if the image was loaded now.
+		 */
+		private synchronized boolean load() {
+			if (loaded) {
+				return false;
+			}
+			long time = System.currentTimeMillis();
+			for (WriteableImage i : images) {
+				i.image = new BufferedImage(BLOCK_SIZE, BLOCK_SIZE,
+						BufferedImage.TYPE_4BYTE_ABGR);
+				i.preview = null;
+			}
+			// The file contains the same hashes and icons we have.
+			if (chunkHashes == null) {
+				chunkHashes = new int[ICON_SLOT];
+			}
+			hasChunkHash.clear();
+			icons.clear();
+			try {
+				if (region.exists()) {
+					readRegion();
+				} else {
+					readLegacy();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			loaded = true;
+			metadataLoaded = true;
+			// Check again when we are unloaded, the image may be written by
+			// then.
+			hasFiles = null;
+			System.out.println(pos + ": Loading took "
+					+ (System.currentTimeMillis() - time) + " ms");
+			return true;
 		}
 
-		private void attemptRead() {
-			if (settings == null) {
-				Gson gson = new Gson();
-				try {
-					settings = gson.fromJson(new FileReader(getFile()),
-							SettingsContainer.class);
-				} catch (JsonSyntaxException e) {
-					e.printStackTrace();
-				} catch (JsonIOException e) {
-					e.printStackTrace();
-				} catch (FileNotFoundException e) {
-					// use defaults..
+		/**
+		 * Drops the pixels of this image if they are not needed any more. An
+		 * image is not unloaded while it has chunks to render or unsaved
+		 * changes. Unsaved changes are queued for writing, so that the image
+		 * can be unloaded next time.
+		 * 
+		 * @return <code>true</code> if the image was unloaded.
+		 */
+		synchronized boolean unload() {
+			if (!loaded || queuedForWrite || writing) {
+				return false;
+			}
+			if (!dirtyChunks.isEmpty() || iconsDirty) {
+				offerForWrite(imagesToWrite);
+				return false;
+			}
+			synchronized (task.renderMutex) {
+				if (scheduled) {
+					return false;
 				}
-				if (settings == null) {
-					settings = new SettingsContainer();
+			}
+			for (WriteableImage i : images) {
+				i.unload();
+			}
+			region.dropHeader();
+			loaded = false;
+			return true;
+		}
+
+		/**
+		 * Drops the previews that were kept when the image was unloaded.
+		 * 
+		 * @return <code>true</code> if there were previews.
+		 */
+		synchronized boolean dropPreviews() {
+			boolean dropped = false;
+			for (WriteableImage i : images) {
+				dropped |= i.preview != null;
+				i.preview = null;
+			}
+			return dropped;
+		}
+
+		/**
+		 * @return The bytes used by the pixels and chunk hashes of this image.
+		 */
+		synchronized long getMemoryUsage() {
+			long bytes = chunkHashes == null ? 0 : 4L * chunkHashes.length;
+			for (WriteableImage i : images) {
+				bytes += i.getMemoryUsage();
+			}
+			return bytes;
+		}
+
+		/**
+		 * Checks if this image may contain something, without loading it.
+		 * 
+		 * @return <code>false</code> if it is known that there is nothing to
+		 *         draw for this image.
+		 */
+		public synchronized boolean mayHaveData() {
+			if (loaded) {
+				return true;
+			}
+			if (hasFiles == null) {
+				boolean found = region.exists();
+				for (WriteableImage i : images) {
+					found |= i.getLegacyPath().exists();
+				}
+				hasFiles = found;
+			}
+			return hasFiles;
+		}
+
+		private void readRegion() throws IOException {
+			byte[][] slots = region.readAll();
+			for (int slot = 0; slot < ICON_SLOT; slot++) {
+				byte[] data = slots[slot];
+				if (data == null || data.length < CHUNK_HEADER_BYTES) {
+					continue;
 				}
-				if (settings.hashes == null) {
-					settings.hashes = new Hashtable<String, Integer>();
+				if (data[0] != 0) {
+					hasChunkHash.set(slot);
+					chunkHashes[slot] = ByteBuffer.wrap(data).getInt(1);
 				}
-				if (settings.icons == null) {
-					settings.icons = new LinkedList<IconDefinition>();
+				for (int i = 0; i < images.length; i++) {
+					int offset = CHUNK_HEADER_BYTES + i * CHUNK_BYTES;
+					if (offset + CHUNK_BYTES <= data.length) {
+						images[i].pasteChunkRows(slot, data, offset);
+					}
+				}
+			}
+			if (slots[ICON_SLOT] != null) {
+				IconDefinition[] stored = new Gson().fromJson(new String(
+						slots[ICON_SLOT], "UTF-8"), IconDefinition[].class);
+				if (stored != null) {
+					icons.addAll(Arrays.asList(stored));
 				}
 			}
 		}
 
-		private void write() {
-			Gson gson = new Gson();
+		private void readLegacy() throws IOException {
+			boolean found = false;
+			for (WriteableImage i : images) {
+				File file = i.getLegacyPath();
+				BufferedImage old = file.exists() ? ImageIO.read(file) : null;
+				if (old != null) {
+					System.out.println("Reading old image for " + pos);
+					Graphics graphics = i.image.getGraphics();
+					graphics.drawImage(old, 0, 0, null);
+					graphics.dispose();
+					found = true;
+				}
+			}
+			SettingsContainer settings = null;
 			try {
-				// String json = gson.toJson(settings, SettingsContainer.class);
-				// SettingsContainer mySettings = gson.fromJson(json,
-				// SettingsContainer.class);
-
-				FileWriter fileWriter = new FileWriter(getFile());
+				FileReader reader = new FileReader(getLegacySettingsPath());
 				try {
-					gson.toJson(settings, SettingsContainer.class, fileWriter);
+					settings = new Gson().fromJson(reader,
+							SettingsContainer.class);
 				} finally {
-					fileWriter.close();
+					reader.close();
 				}
-			} catch (JsonIOException e) {
-				// TODO Auto-generated catch block
+			} catch (JsonSyntaxException e) {
 				e.printStackTrace();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
+			} catch (JsonIOException e) {
 				e.printStackTrace();
+			} catch (FileNotFoundException e) {
+				// use defaults..
+			}
+			if (settings != null) {
+				if (settings.hashes != null) {
+					for (Entry<String, Integer> e : settings.hashes.entrySet()) {
+						String[] xz = e.getKey().split(",");
+						int slot = getSlot(Integer.parseInt(xz[0]),
+								Integer.parseInt(xz[1]));
+						if (slot >= 0) {
+							hasChunkHash.set(slot);
+							chunkHashes[slot] = e.getValue();
+						}
+					}
+				}
+				if (settings.icons != null) {
+					icons.addAll(settings.icons);
+				}
+				found = true;
+			}
+			if (found) {
+				dirtyChunks.set(0, ICON_SLOT);
+				iconsDirty = true;
+				legacyFilesRead = true;
 			}
-
 		}
 
-		public List<IconDefinition> getIcons() {
-			attemptRead();
-			return settings.icons;
+		/**
+		 * Deletes the png and json files that were replaced by the region
+		 * file.
+		 */
+		private void deleteLegacyFiles() {
+			for (WriteableImage i : images) {
+				i.getLegacyPath().delete();
+			}
+			getLegacySettingsPath().delete();
 		}
 
-		public void addIcon(IconDefinition icon) {
-			settings.icons.add(icon);
-			write();
+		/**
+		 * @return The file the hashes and icons were stored in before region
+		 *         files were used.
+		 */
+		private File getLegacySettingsPath() {
+			return new File(baseFile.getAbsolutePath() + "." + pos.topLeftX
+					+ "." + pos.topLeftZ + "." + "json");
 		}
-	}
-
-	class MultiModeImage {
-		private WriteableImage[] images = new WriteableImage[RenderMode
-				.values().length];
-		WriteableSetting setting;
 
-		public MultiModeImage(ImagePos pos) {
-			for (int i = 0; i < images.length; i++) {
-				images[i] = new WriteableImage(pos, RenderMode.values()[i]);
+		/**
+		 * @return The slot of the chunk or -1 if it is not in this image.
+		 */
+		private int getSlot(int chunkX, int chunkZ) {
+			int x = chunkX - (pos.topLeftX >> 4);
+			int z = chunkZ - (pos.topLeftZ >> 4);
+			if (x < 0 || x >= CHUNKS_PER_IMAGE || z < 0
+					|| z >= CHUNKS_PER_IMAGE) {
+				return -1;
 			}
-			setting = new WriteableSetting(baseFile, pos);
+			return z * CHUNKS_PER_IMAGE + x;
 		}
 
 		public WriteableImage getForRenderMode(RenderMode mode) {
 			return images[mode.ordinal()];
 		}
 
-		public void offerForWrite(BlockingQueue<WriteableImage> imagesToWrite) {
-			for (WriteableImage i : images) {
-				if (i.prepareToWrite()) {
-					imagesToWrite.offer(i);
+		public synchronized void offerForWrite(
+				Queue<MultiModeImage> imagesToWrite) {
+			if (loaded && !queuedForWrite
+					&& (!dirtyChunks.isEmpty() || iconsDirty)) {
+				queuedForWrite = true;
+				imagesToWrite.offer(this);
+				requestWrite();
+			}
+		}
+
+		/**
+		 * Writes the chunks that changed to the region file.
+		 */
+		public void write() {
+			long time = System.currentTimeMillis();
+			int[] slots;
+			byte[][] data;
+			synchronized (this) {
+				queuedForWrite = false;
+				writing = true;
+				slots = new int[dirtyChunks.cardinality() + (iconsDirty ? 1 : 0)];
+				data = new byte[slots.length][];
+				int k = 0;
+				for (int slot = dirtyChunks.nextSetBit(0); slot >= 0; slot = dirtyChunks
+						.nextSetBit(slot + 1)) {
+					slots[k] = slot;
+					data[k] = getChunkData(slot);
+					k++;
+				}
+				dirtyChunks.clear();
+				if (iconsDirty) {
+					slots[k] = ICON_SLOT;
+					try {
+						data[k] = new Gson().toJson(
+								icons.toArray(new IconDefinition[icons.size()]))
+								.getBytes("UTF-8");
+					} catch (UnsupportedEncodingException e) {
+						throw new IllegalStateException(e);
+					}
+					iconsDirty = false;
+				}
+			}
+			try {
+				region.write(slots, data);
+				boolean migrated;
+				synchronized (this) {
+					hasFiles = true;
+					migrated = legacyFilesRead;
+					legacyFilesRead = false;
+				}
+				if (migrated) {
+					// The first write after reading them contains all slots.
+					deleteLegacyFiles();
+				}
+				System.out.println(pos + ": Writing " + slots.length
+						+ " slots took " + (System.currentTimeMillis() - time)
+						+ " ms");
+			} catch (IOException e) {
+				e.printStackTrace();
+				synchronized (this) {
+					for (int slot : slots) {
+						if (slot == ICON_SLOT) {
+							iconsDirty = true;
+						} else {
+							dirtyChunks.set(slot);
+						}
+					}
 				}
+			} finally {
+				synchronized (this) {
+					writing = false;
+				}
+			}
+		}
+
+		/**
+		 * @return The data to store for a chunk or <code>null</code> if
+		 *         nothing is known about that chunk.
+		 */
+		private byte[] getChunkData(int slot) {
+			byte[] data = new byte[CHUNK_HEADER_BYTES + images.length
+					* CHUNK_BYTES];
+			boolean empty = !hasChunkHash.get(slot);
+			if (!empty) {
+				data[0] = 1;
+				ByteBuffer.wrap(data).putInt(1, chunkHashes[slot]);
 			}
+			for (int i = 0; i < images.length; i++) {
+				images[i].copyChunkRows(slot, data, CHUNK_HEADER_BYTES + i
+						* CHUNK_BYTES);
+			}
+			for (int i = CHUNK_HEADER_BYTES; empty && i < data.length; i++) {
+				empty = data[i] == 0;
+			}
+			return empty ? null : data;
 		}
 
 		public void renderChunk(WorldData world, Chunk chunk) {
+			boolean hit;
+			synchronized (this) {
+				hit = loaded;
+			}
+			task.countAccess(hit);
+			ensureLoaded();
+			boolean changed = false;
 			for (WriteableImage i : images) {
-				i.renderChunk(world, chunk);
+				changed |= i.renderChunk(world, chunk);
+			}
+			if (changed) {
+				synchronized (this) {
+					dirtyChunks.set(getSlot(chunk.xPosition, chunk.zPosition));
+				}
 			}
 		}
 
-		public void markChanged() {
-			for (WriteableImage i : images) {
-				i.markChanged();
+		public synchronized boolean isValidForChunkHash(int x, int z, int hash) {
+			ensureLoaded();
+			int slot = getSlot(x, z);
+			return !hasChunkHash.get(slot) || chunkHashes[slot] == hash;
+		}
+
+		public synchronized void setChunkHash(int x, int z, int hash) {
+			ensureLoaded();
+			int slot = getSlot(x, z);
+			if (!hasChunkHash.get(slot) || chunkHashes[slot] != hash) {
+				hasChunkHash.set(slot);
+				chunkHashes[slot] = hash;
+				dirtyChunks.set(slot);
 			}
 		}
 
-		public boolean isValidForChunkHash(int x, int z, int hash) {
-			Integer h = setting.getChunkHash(x, z);
-			// System.out.println("Old hash(" + x + "," + z + "): " + h
-			// + ", new hash: " + hash);
-			return h == null || h == hash;
+		/**
+		 * Gets the icons without blocking. If they were not read yet, they are
+		 * loaded in the background.
+		 * 
+		 * @return The icons that are known now.
+		 */
+		public synchronized List<IconDefinition> getIcons() {
+			if (!metadataLoaded) {
+				requestLoad();
+			}
+			return new ArrayList<IconDefinition>(icons);
 		}
 
-		public void setChunkHash(int x, int z, int hash) {
-			setting.setChunkHash(x, z, hash);
-			// System.out.println("Store hash(" + x + "," + z + ") = " + hash);
+		public synchronized void addIcon(IconDefinition icon) {
+			ensureLoaded();
+			icons.add(icon);
+			iconsDirty = true;
 		}
 	}
 
@@ -535,65 +1131,288 @@ public class MapReader implements ChunkListener {
 		return data.getBlockIdWithMeta(x, y, z) >> 4 == BEDROCK_ID;
 	}
 
-	final class MapReaderTask implements Runnable {
+	/**
+	 * Renders the chunks on the {@link MinebotExecutor}. The work is
+	 * partitioned by image: Each image has its own queue of chunks, and only
+	 * one worker renders an image at a time. This way, no two workers write to
+	 * the same {@link BufferedImage}.
+	 * 
+	 * @author michael
+	 *
+	 */
+	final class MapReaderTask {
 		private static final long SAVE_TIME = 10000;
-		private boolean stopped;
-		private boolean doStop;
+		/**
+		 * How many chunks a worker renders before it lets other images go
+		 * first.
+		 */
+		private static final int MAX_CHUNKS_PER_JOB = 64;
 
-		private Hashtable<ImagePos, MultiModeImage> images = new Hashtable<ImagePos, MultiModeImage>();
+		private volatile boolean stopped;
+		private volatile long nextWrite = System.currentTimeMillis()
+				+ SAVE_TIME;
+
+		/**
+		 * All images we know of, the least recently used first. Images are
+		 * never removed, only their pixels are unloaded.
+		 */
+		private final LinkedHashMap<ImagePos, MultiModeImage> images = new LinkedHashMap<ImagePos, MultiModeImage>(
+				16, 0.75f, true);
+		/**
+		 * Guards {@link #images}. No other lock may be acquired while holding
+		 * this one.
+		 */
 		private final Object imagesMutex = new Object();
 
-		public MapReaderTask() {
+		private final AtomicBoolean evictionQueued = new AtomicBoolean();
+		private final AtomicLong cacheHits = new AtomicLong();
+		private final AtomicLong cacheMisses = new AtomicLong();
+		private final AtomicLong evictedImages = new AtomicLong();
+		private volatile long cacheBytes;
+
+		private final Object renderMutex = new Object();
+		/**
+		 * Images that have pending chunks but no worker.
+		 */
+		private final LinkedList<MultiModeImage> readyImages = new LinkedList<MultiModeImage>();
+		private int runningWorkers;
+		/**
+		 * Chunks waiting to be rendered.
+		 */
+		private int backlog;
+
+		private final AtomicLong renderedChunks = new AtomicLong();
+		private long lastStatisticsTime = System.nanoTime();
+		private long lastRenderedChunks;
+
+		/**
+		 * Renders the chunks of one image.
+		 * 
+		 * @author michael
+		 *
+		 */
+		private final class RenderImageJob extends MinebotExecutor.Job {
+			private final MultiModeImage image;
+
+			public RenderImageJob(MultiModeImage image) {
+				super("Map reader " + image.pos);
+				this.image = image;
+			}
+
+			@Override
+			protected void execute() {
+				try {
+					for (int i = 0; i < MAX_CHUNKS_PER_JOB && !isCanceled()
+							&& !stopped; i++) {
+						Chunk chunk = pollChunk(image);
+						if (chunk == null) {
+							break;
+						}
+						renderChunk(image, chunk);
+						renderedChunks.incrementAndGet();
+					}
+				} finally {
+					imageDone(image);
+				}
+				if ((System.currentTimeMillis() > nextWrite || getBacklog() == 0)
+						&& imagesToWrite.isEmpty()) {
+					write();
+					nextWrite = System.currentTimeMillis() + SAVE_TIME;
+				}
+			}
 		}
 
-		@Override
-		public void run() {
-			try {
-				long nextWrite = System.currentTimeMillis() + SAVE_TIME;
-
-				while (!doStop) {
-					Chunk chunk = chunksToProcess.poll(1000,
-							TimeUnit.MILLISECONDS);
-					// System.out.println("Chunks left to process: "
-					// + chunksToProcess.size());
-					if (chunk != null) {
-						renderChunk(chunk);
-						if ((System.currentTimeMillis() > nextWrite || chunksToProcess
-								.isEmpty()) && imagesToWrite.isEmpty()) {
-							write();
-							nextWrite = System.currentTimeMillis() + SAVE_TIME;
+		/**
+		 * Unloads the least recently used images.
+		 * 
+		 * @author michael
+		 *
+		 */
+		private final class EvictImagesJob extends MinebotExecutor.Job {
+			public EvictImagesJob() {
+				super("Map cache eviction");
+			}
+
+			@Override
+			protected void execute() {
+				evictionQueued.set(false);
+				evict();
+			}
+		}
+
+		/**
+		 * Queues a chunk for rendering.
+		 * 
+		 * @param chunk
+		 *            The chunk.
+		 */
+		public void offer(Chunk chunk) {
+			if (stopped) {
+				return;
+			}
+			MultiModeImage image = getImage(new ImagePos(chunk.xPosition * 16,
+					chunk.zPosition * 16));
+			synchronized (renderMutex) {
+				image.pendingChunks.add(chunk);
+				backlog++;
+				if (!image.scheduled) {
+					image.scheduled = true;
+					readyImages.add(image);
+				}
+			}
+			startWorkers();
+		}
+
+		private Chunk pollChunk(MultiModeImage image) {
+			synchronized (renderMutex) {
+				Chunk chunk = image.pendingChunks.poll();
+				if (chunk != null) {
+					backlog--;
+				}
+				return chunk;
+			}
+		}
+
+		private void imageDone(MultiModeImage image) {
+			synchronized (renderMutex) {
+				runningWorkers--;
+				if (image.pendingChunks.isEmpty()) {
+					image.scheduled = false;
+				} else {
+					readyImages.add(image);
+				}
+			}
+			startWorkers();
+		}
+
+		private void startWorkers() {
+			ArrayList<RenderImageJob> jobs = new ArrayList<RenderImageJob>();
+			synchronized (renderMutex) {
+				while (!stopped && runningWorkers < RENDER_WORKERS
+						&& !readyImages.isEmpty()) {
+					runningWorkers++;
+					jobs.add(new RenderImageJob(readyImages.poll()));
+				}
+			}
+			for (RenderImageJob job : jobs) {
+				MinebotExecutor.submit(job);
+			}
+		}
+
+		/**
+		 * @return The number of chunks waiting to be rendered.
+		 */
+		public int getBacklog() {
+			synchronized (renderMutex) {
+				return backlog;
+			}
+		}
+
+		/**
+		 * Gets the backlog and how many chunks were rendered per second since
+		 * the last call.
+		 * 
+		 * @return A short statistics text.
+		 */
+		public String getStatistics() {
+			long now = System.nanoTime();
+			long rendered = renderedChunks.get();
+			double perSecond = (rendered - lastRenderedChunks) * 1e9
+					/ Math.max(1, now - lastStatisticsTime);
+			lastStatisticsTime = now;
+			lastRenderedChunks = rendered;
+			return String.format(
+					"%d chunks queued, %.1f chunks/s, cache: %d MB, %d hits, %d misses, %d evicted",
+					getBacklog(), perSecond, cacheBytes / 1024 / 1024,
+					cacheHits.get(), cacheMisses.get(), evictedImages.get());
+		}
+
+		/**
+		 * Counts an access to the pixels of an image.
+		 * 
+		 * @param hit
+		 *            <code>true</code> if the pixels were in memory.
+		 */
+		private void countAccess(boolean hit) {
+			(hit ? cacheHits : cacheMisses).incrementAndGet();
+		}
+
+		/**
+		 * Called whenever an image was loaded or written. Unloads images in
+		 * the background if the cache is full. This may be called while holding
+		 * the lock of an image.
+		 */
+		private void requestEviction() {
+			if (evictionQueued.compareAndSet(false, true)) {
+				MinebotExecutor.submit(new EvictImagesJob());
+			}
+		}
+
+		/**
+		 * Unloads images, the least recently used first, until they fit into
+		 * {@link MapReader#MAX_CACHE_BYTES}. The full images are unloaded
+		 * first, the previews only if that was not enough. Only the lock of
+		 * one image is held at a time.
+		 */
+		private void evict() {
+			ArrayList<MultiModeImage> byAge;
+			synchronized (imagesMutex) {
+				byAge = new ArrayList<MultiModeImage>(images.values());
+			}
+			long used = 0;
+			for (MultiModeImage image : byAge) {
+				used += image.getMemoryUsage();
+			}
+			for (int pass = 0; pass < 2 && used > MAX_CACHE_BYTES; pass++) {
+				for (Iterator<MultiModeImage> it = byAge.iterator(); it
+						.hasNext() && used > MAX_CACHE_BYTES;) {
+					MultiModeImage image = it.next();
+					long before = image.getMemoryUsage();
+					if (pass == 0 ? image.unload() : image.dropPreviews()) {
+						used -= before - image.getMemoryUsage();
+						if (pass == 0) {
+							evictedImages.incrementAndGet();
 						}
 					}
 				}
+			}
+			cacheBytes = used;
+		}
 
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} finally {
-				try {
-					write();
-				} catch (Throwable e) {
+		/**
+		 * Stops rendering and writes the images.
+		 */
+		public void cancel() {
+			stopped = true;
+			synchronized (renderMutex) {
+				for (MultiModeImage image : readyImages) {
+					image.pendingChunks.clear();
 				}
-				stopped = true;
+				readyImages.clear();
+				backlog = 0;
+			}
+			try {
+				write();
+			} catch (Throwable e) {
 			}
 		}
 
 		private void write() {
 			System.out.println("Marking write");
+			ArrayList<MultiModeImage> all;
 			synchronized (imagesMutex) {
-				for (MultiModeImage i : images.values()) {
-					i.offerForWrite(imagesToWrite);
-				}
+				all = new ArrayList<MultiModeImage>(images.values());
+			}
+			for (MultiModeImage i : all) {
+				i.offerForWrite(imagesToWrite);
 			}
+			requestEviction();
 		}
 
-		private void renderChunk(Chunk chunk) {
+		private void renderChunk(MultiModeImage image, Chunk chunk) {
 			if (!wcm.shouldStillRender()) {
 				return;
 			}
-			ImagePos pos = new ImagePos(chunk.xPosition * 16,
-					chunk.zPosition * 16);
-
-			MultiModeImage image = getImage(pos);
 			int hash = getChunkHash(chunk);
 			if (!image.isValidForChunkHash(chunk.xPosition, chunk.zPosition,
 					hash)) {
@@ -611,10 +1430,6 @@ public class MapReader implements ChunkListener {
 			mapDisplay.repaint();
 		}
 
-		public void stop() {
-			doStop = true;
-		}
-
 		public MultiModeImage getImage(ImagePos pos) {
 			synchronized (imagesMutex) {
 				MultiModeImage image = images.get(pos);
@@ -632,6 +1447,8 @@ public class MapReader implements ChunkListener {
 
 		private final MapDisplay d;
 
+		private String statistics = "";
+
 		public MapDisplayDialog(MapDisplay d) {
 			this.d = d;
 			setLayout(new BorderLayout());
@@ -653,17 +1470,30 @@ public class MapReader implements ChunkListener {
 		}
 
 		void updateTitle() {
-			setTitle("Map view - scale: " + d.getScale());
+			setTitle("Map view - scale: " + d.getScale() + " - " + statistics);
+		}
+
+		/**
+		 * Sets the render statistics shown in the title. May be called by any
+		 * thread.
+		 * 
+		 * @param statistics
+		 *            The statistics text.
+		 */
+		void setStatistics(final String statistics) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					MapDisplayDialog.this.statistics = statistics;
+					updateTitle();
+				}
+			});
 		}
 	}
 
 	public MapReader(File file) {
 		super();
 		this.baseFile = file;
-
-		new Thread(task, "Map reader").start();
-		new Thread(writer, "Map writer").start();
-
 	}
 
 	private class ChunkQueue {
@@ -740,13 +1570,16 @@ public class MapReader implements ChunkListener {
 			Chunk chunkFromChunkCoords = helper.getMinecraft().theWorld
 					.getChunkFromChunkCoords(d.chunkXPos, d.chunkZPos);
 			if (chunkFromChunkCoords != null) {
-				chunksToProcess.offer(chunkFromChunkCoords);
+				task.offer(chunkFromChunkCoords);
 			}
 		}
 
 		currentIndex++;
+		if (currentIndex % STATISTICS_INTERVALL == 0) {
+			mapDialog.setStatistics(task.getStatistics());
+		}
 		if (currentIndex > ALL_CHUNKS_LOAD_INTERVALL
-				&& chunksToProcess.isEmpty()) {
+				&& task.getBacklog() == 0) {
 			// TODO: mark to save here.
 			currentIndex = 0;
 		}
@@ -806,9 +1639,8 @@ public class MapReader implements ChunkListener {
 
 	public void onStop() {
 		registeredHelper.getNetworkHelper().removeChunkChangeListener(this);
-		task.stop();
-		writer.stop();
-		chunksToProcess.clear();
+		// Writes the images that are left.
+		task.cancel();
 		mapDialog.setVisible(false);
 		mapDialog.dispose();
 	}
@@ -817,7 +1649,7 @@ public class MapReader implements ChunkListener {
 		ImagePos pos = new ImagePos(iconDefinition.getPosition().getX(),
 				iconDefinition.getPosition().getZ());
 		MultiModeImage image = task.getImage(pos);
-		image.setting.addIcon(iconDefinition);
+		image.addIcon(iconDefinition);
 		mapDisplay.repaint();
 	}
 }
@@ -0,0 +1,363 @@
+package net.famzangl.minecraft.minebot.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A file that stores a fixed number of data slots. Each slot is compressed on
+ * its own, so single slots can be replaced without touching the rest of the
+ * file.
+ * <p>
+ * The file starts with a header that contains the position of each slot. The
+ * slot data follows. New slot data is always appended to the end of the file
+ * and the header is written after it in one go, so the data the old header
+ * points to is never overwritten. When the file contains more old data than
+ * used data, it is written again to a temporary file that replaces it.
+ *
+ * @author Michael Zangl
+ */
+class MapRegionFile {
+	private static final int MAGIC = 0x4d424d52;
+	private static final int VERSION = 1;
+	/**
+	 * Offset, compressed length, reserved space and uncompressed length.
+	 */
+	private static final int ENTRY_SIZE = 16;
+	private static final int HEADER_START = 8;
+	/**
+	 * The file is only compacted if it contains at least that many unused
+	 * bytes.
+	 */
+	private static final int MIN_COMPACT_GARBAGE = 64 * 1024;
+
+	private final File file;
+	private final int slots;
+
+	/**
+	 * The header. <code>null</code> as long as it was not read.
+	 */
+	private int[] offsets;
+	private int[] lengths;
+	private int[] capacities;
+	private int[] rawLengths;
+	private int fileEnd;
+
+	public MapRegionFile(File file, int slots) {
+		this.file = file;
+		this.slots = slots;
+	}
+
+	public boolean exists() {
+		return file.exists();
+	}
+
+	private int getHeaderSize() {
+		return HEADER_START + slots * ENTRY_SIZE;
+	}
+
+	/**
+	 * Reads all slots.
+	 *
+	 * @return The uncompressed data of each slot, <code>null</code> for empty
+	 *         slots.
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	public synchronized byte[][] readAll() throws IOException {
+		byte[][] result = new byte[slots][];
+		if (!file.exists()) {
+			initHeader();
+			return result;
+		}
+		Inflater inflater = new Inflater();
+		try {
+			ByteBuffer content = ByteBuffer.wrap(readFile());
+			readHeader(content);
+			for (int i = 0; i < slots; i++) {
+				if (lengths[i] > 0) {
+					inflater.reset();
+					inflater.setInput(content.array(), offsets[i], lengths[i]);
+					result[i] = new byte[rawLengths[i]];
+					if (inflater.inflate(result[i]) != rawLengths[i]) {
+						throw new IOException("Slot " + i + " of " + file
+								+ " is truncated.");
+					}
+				}
+			}
+		} catch (DataFormatException e) {
+			moveBrokenFile();
+			throw new IOException("Broken slot in " + file, e);
+		} catch (IOException e) {
+			moveBrokenFile();
+			throw e;
+		} finally {
+			inflater.end();
+		}
+		return result;
+	}
+
+	/**
+	 * Moves a file we could not read out of the way, so that the next write
+	 * starts a new one and does not use a broken header. The old file is
+	 * kept for manual recovery.
+	 */
+	private void moveBrokenFile() {
+		File broken = new File(file.getPath() + ".broken");
+		broken.delete();
+		if (!file.renameTo(broken)) {
+			file.delete();
+		}
+		initHeader();
+	}
+
+	private byte[] readFile() throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] content = new byte[(int) file.length()];
+			int read = 0;
+			while (read < content.length) {
+				int r = in.read(content, read, content.length - read);
+				if (r < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				read += r;
+			}
+			return content;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void initHeader() {
+		offsets = new int[slots];
+		lengths = new int[slots];
+		capacities = new int[slots];
+		rawLengths = new int[slots];
+		fileEnd = getHeaderSize();
+	}
+
+	/**
+	 * Reads the header. If it is broken, the header is not changed.
+	 */
+	private void readHeader(ByteBuffer content) throws IOException {
+		if (content.limit() < getHeaderSize() || content.getInt(0) != MAGIC
+				|| content.getInt(4) != VERSION) {
+			throw new IOException(file + " is not a map region file.");
+		}
+		int[] newOffsets = new int[slots];
+		int[] newLengths = new int[slots];
+		int[] newCapacities = new int[slots];
+		int[] newRawLengths = new int[slots];
+		int newFileEnd = getHeaderSize();
+		for (int i = 0; i < slots; i++) {
+			int entry = HEADER_START + i * ENTRY_SIZE;
+			newOffsets[i] = content.getInt(entry);
+			newLengths[i] = content.getInt(entry + 4);
+			newCapacities[i] = content.getInt(entry + 8);
+			newRawLengths[i] = content.getInt(entry + 12);
+			if (newLengths[i] < 0
+					|| newRawLengths[i] < 0
+					|| newLengths[i] > newCapacities[i]
+					|| newOffsets[i] < 0
+					|| (long) newOffsets[i] + newCapacities[i] > content
+							.limit()) {
+				throw new IOException("Slot " + i + " of " + file
+						+ " is out of range.");
+			}
+			newFileEnd = Math.max(newFileEnd, newOffsets[i]
+					+ newCapacities[i]);
+		}
+		offsets = newOffsets;
+		lengths = newLengths;
+		capacities = newCapacities;
+		rawLengths = newRawLengths;
+		fileEnd = newFileEnd;
+	}
+
+	/**
+	 * Replaces some slots. The new data is appended to the file, then the
+	 * header is replaced. If this fails in between, the file still contains
+	 * the old slots.
+	 *
+	 * @param indexes
+	 *            The slots to replace.
+	 * @param data
+	 *            The new uncompressed data for each slot. <code>null</code>
+	 *            empties the slot.
+	 * @throws IOException
+	 *             If the file could not be written.
+	 */
+	public synchronized void write(int[] indexes, byte[][] data)
+			throws IOException {
+		if (offsets == null) {
+			if (file.exists()) {
+				try {
+					readHeader(ByteBuffer.wrap(readFile()));
+				} catch (IOException e) {
+					e.printStackTrace();
+					moveBrokenFile();
+				}
+			} else {
+				initHeader();
+			}
+		}
+		file.getParentFile().mkdirs();
+		ByteArrayOutputStream appended = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			byte[] buffer = new byte[4096];
+			for (int k = 0; k < indexes.length; k++) {
+				int i = indexes[k];
+				if (data[k] == null) {
+					offsets[i] = 0;
+					lengths[i] = 0;
+					capacities[i] = 0;
+					rawLengths[i] = 0;
+				} else {
+					buffer = deflate(deflater, data[k], buffer);
+					int length = deflater.getTotalOut();
+					offsets[i] = fileEnd + appended.size();
+					lengths[i] = length;
+					capacities[i] = length;
+					rawLengths[i] = data[k].length;
+					appended.write(buffer, 0, length);
+				}
+			}
+		} finally {
+			deflater.end();
+		}
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(fileEnd);
+			out.write(appended.toByteArray());
+			fileEnd += appended.size();
+			// The data needs to be on the disk before the header points to it.
+			out.getFD().sync();
+			writeHeader(out);
+		} catch (IOException e) {
+			// We do not know what the header on the disk looks like now.
+			dropHeader();
+			throw e;
+		} finally {
+			out.close();
+		}
+
+		if (getUnusedBytes() > Math.max(getUsedBytes(), MIN_COMPACT_GARBAGE)) {
+			compact();
+		}
+	}
+
+	private long getUsedBytes() {
+		long used = 0;
+		for (int i = 0; i < slots; i++) {
+			used += capacities[i];
+		}
+		return used;
+	}
+
+	private long getUnusedBytes() {
+		return fileEnd - getHeaderSize() - getUsedBytes();
+	}
+
+	/**
+	 * Writes the used slots to a new file that replaces the current one.
+	 */
+	private void compact() throws IOException {
+		byte[] content = readFile();
+		int[] newOffsets = new int[slots];
+		int position = getHeaderSize();
+		for (int i = 0; i < slots; i++) {
+			if (lengths[i] > 0) {
+				newOffsets[i] = position;
+				position += lengths[i];
+			}
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			int[] oldOffsets = offsets;
+			offsets = newOffsets;
+			System.arraycopy(lengths, 0, capacities, 0, slots);
+			writeHeader(out);
+			for (int i = 0; i < slots; i++) {
+				if (lengths[i] > 0) {
+					out.write(content, oldOffsets[i], lengths[i]);
+				}
+			}
+			out.getFD().sync();
+		} catch (IOException e) {
+			dropHeader();
+			throw e;
+		} finally {
+			out.close();
+		}
+		fileEnd = position;
+		if (!temp.renameTo(file)) {
+			// Windows does not replace files on rename.
+			file.delete();
+			if (!temp.renameTo(file)) {
+				dropHeader();
+				throw new IOException("Could not replace " + file);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the header. It is read again on the next write.
+	 */
+	public synchronized void dropHeader() {
+		offsets = null;
+		lengths = null;
+		capacities = null;
+		rawLengths = null;
+	}
+
+	private void writeHeader(RandomAccessFile out) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(getHeaderSize());
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		for (int i = 0; i < slots; i++) {
+			header.putInt(offsets[i]);
+			header.putInt(lengths[i]);
+			header.putInt(capacities[i]);
+			header.putInt(rawLengths[i]);
+		}
+		out.seek(0);
+		out.write(header.array());
+	}
+
+	/**
+	 * Compresses the data. The compressed length is
+	 * {@link Deflater#getTotalOut()}.
+	 *
+	 * @return The buffer that contains the compressed data.
+	 */
+	private static byte[] deflate(Deflater deflater, byte[] data, byte[] buffer) {
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		return buffer;
+	}
+
+	@Override
+	public String toString() {
+		return "MapRegionFile [file=" + file + "]";
+	}
+}
@@ -4,13 +4,12 @@ import java.util.Hashtable;
 
 import net.famzangl.minecraft.minebot.ai.path.world.BlockSet;
 import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
-import net.famzangl.minecraft.minebot.ai.utils.BlockCounter;
-import net.famzangl.minecraft.minebot.ai.utils.BlockCuboid;
+import net.minecraft.block.Block;
 import net.minecraft.block.material.MapColor;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.init.Blocks;
-import net.minecraft.util.BlockPos;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
 
 public enum RenderMode {
 	UNDERGROUND(new UndergroundRenderer(), "-underground"), MAP(
@@ -33,6 +32,68 @@ public enum RenderMode {
 	private static final BlockSet INTERESTING_BLOCKS = new BlockSet(
 			Blocks.chest, Blocks.mob_spawner, Blocks.gold_block);
 
+	private static final int FLAG_IGNORED_COVER = 1;
+	private static final int FLAG_STRUCTURE = 2;
+	private static final int FLAG_INTERESTING = 4;
+	private static final int FLAG_UNDERGROUND = 8;
+	/**
+	 * The FLAG_ bits of each block id.
+	 */
+	private static final byte[] BLOCK_FLAGS = createBlockFlags();
+	/**
+	 * The map color of each block id with meta. The alpha is 0 for blocks
+	 * that should not be used as map cover.
+	 */
+	private static final int[] MAP_COLORS = createMapColors();
+
+	private static byte[] createBlockFlags() {
+		byte[] flags = new byte[BlockSet.MAX_BLOCKIDS];
+		for (int id = 0; id < flags.length; id++) {
+			int blockWithMeta = id << 4;
+			flags[id] = (byte) ((IGNORED_COVER_BLOCKS
+					.containsWithMeta(blockWithMeta) ? FLAG_IGNORED_COVER : 0)
+					| (STRUCTURE_BLOCKS.containsWithMeta(blockWithMeta) ? FLAG_STRUCTURE
+							: 0)
+					| (INTERESTING_BLOCKS.containsWithMeta(blockWithMeta) ? FLAG_INTERESTING
+							: 0)
+					| (UNDERGROUND_BLOCKS.containsWithMeta(blockWithMeta) ? FLAG_UNDERGROUND
+							: 0));
+		}
+		return flags;
+	}
+
+	private static int[] createMapColors() {
+		int[] colors = new int[BlockSet.MAX_BLOCKIDS * 16];
+		for (int blockWithMeta = 0; blockWithMeta < colors.length; blockWithMeta++) {
+			IBlockState state = (IBlockState) Block.BLOCK_STATE_IDS
+					.getByValue(blockWithMeta);
+			if (state == null) {
+				state = Blocks.air.getDefaultState();
+			}
+			MapColor color = state.getBlock().getMapColor(state);
+			boolean isCover = !GLOBAL_COVER_BLACKLIST.contains(state.getBlock())
+					&& color != MapColor.airColor;
+			colors[blockWithMeta] = color.colorValue
+					| (isCover ? 0xff000000 : 0);
+		}
+		return colors;
+	}
+
+	/**
+	 * Gets a block without any bounds checks, like
+	 * {@link WorldData.ChunkAccessor#getBlockIdWithMeta(int, int, int)}.
+	 * 
+	 * @param column
+	 *            The index of the column in the section: z << 4 | x.
+	 * @return The block id with meta.
+	 */
+	private static int getBlockIdWithMeta(ExtendedBlockStorage[] storage,
+			int column, int y) {
+		ExtendedBlockStorage section = y >> 4 < storage.length ? storage[y >> 4]
+				: null;
+		return section == null ? 0 : section.getData()[(y & 15) << 8 | column];
+	}
+
 	private interface IRenderer {
 		/**
 		 * Gets the color for one pixel of the map.
@@ -54,22 +115,46 @@ public enum RenderMode {
 
 		@Override
 		public int getColor(WorldData world, Chunk chunk, int dx, int dz) {
+			ExtendedBlockStorage[] storage = chunk.getBlockStorageArray();
+			int column = (dz & 0xf) << 4 | dx & 0xf;
 			int h = chunk.getHeight(dx & 0xf, dz & 0xf) + 1;
 			while (h > 3
-					&& IGNORED_COVER_BLOCKS.contains(chunk.getBlock(dx, h, dz))) {
+					&& (BLOCK_FLAGS[getBlockIdWithMeta(storage, column, h) >> 4] & FLAG_IGNORED_COVER) != 0) {
 				h--;
 			}
-			BlockCuboid area = new BlockCuboid(new BlockPos(dx, 0, dz),
-					new BlockPos(dx, h, dz));
-
-			int[] count = BlockCounter.countBlocks(world, area,
-					STRUCTURE_BLOCKS, INTERESTING_BLOCKS, UNDERGROUND_BLOCKS);
-			// structure
-			int r = Math.min((int) (count[0] / 6.0 * 0xff), 0xff);
-			// interesting
-			int g = Math.min((int) (count[1] / 2.0 * 0xff), 0xff);
-			// underground
-			int b = Math.min((int) (Math.sqrt(count[2]) / 6.0 * 0xff), 0xff);
+
+			// How many blocks of the column 0..h have which flags.
+			int[] flagCount = new int[16];
+			for (int sectionY = 0; sectionY <= h >> 4; sectionY++) {
+				int top = sectionY == h >> 4 ? h & 15 : 15;
+				ExtendedBlockStorage section = sectionY < storage.length ? storage[sectionY]
+						: null;
+				if (section == null) {
+					flagCount[BLOCK_FLAGS[0]] += top + 1;
+				} else {
+					char[] data = section.getData();
+					for (int y = 0; y <= top; y++) {
+						flagCount[BLOCK_FLAGS[data[y << 8 | column] >> 4]]++;
+					}
+				}
+			}
+			int structure = 0;
+			int interesting = 0;
+			int underground = 0;
+			for (int flags = 0; flags < flagCount.length; flags++) {
+				if ((flags & FLAG_STRUCTURE) != 0) {
+					structure += flagCount[flags];
+				}
+				if ((flags & FLAG_INTERESTING) != 0) {
+					interesting += flagCount[flags];
+				}
+				if ((flags & FLAG_UNDERGROUND) != 0) {
+					underground += flagCount[flags];
+				}
+			}
+			int r = Math.min((int) (structure / 6.0 * 0xff), 0xff);
+			int g = Math.min((int) (interesting / 2.0 * 0xff), 0xff);
+			int b = Math.min((int) (Math.sqrt(underground) / 6.0 * 0xff), 0xff);
 			return 0xff000000 | (r << 16) | (g << 8) | b;
 		}
 	}
@@ -77,21 +162,27 @@ public enum RenderMode {
 	private static class MapRenderer implements RenderMode.IRenderer {
 		@Override
 		public int getColor(WorldData world, Chunk chunk, int dx, int dz) {
-			int h = chunk.getHeight(dx & 0xf, dz & 0xf) + 1;
-			IBlockState state;
-			do {
-				--h;
-				state = chunk.getBlockState(new BlockPos(dx, h, dz));
-			} while ((GLOBAL_COVER_BLACKLIST.contains(state.getBlock()) || state
-					.getBlock().getMapColor(state) == MapColor.airColor)
-					&& h > 0);
-
-			MapColor color = (state.getBlock().getMapColor(state));
-			return getColor(color);
-		}
-
-		private int getColor(MapColor color) {
-			return 0xff000000 | color.colorValue;
+			ExtendedBlockStorage[] storage = chunk.getBlockStorageArray();
+			int column = (dz & 0xf) << 4 | dx & 0xf;
+			int h = chunk.getHeight(dx & 0xf, dz & 0xf);
+			for (int sectionY = h >> 4; sectionY >= 0; sectionY--) {
+				ExtendedBlockStorage section = sectionY < storage.length ? storage[sectionY]
+						: null;
+				if (section == null) {
+					// only air.
+					continue;
+				}
+				char[] data = section.getData();
+				for (int y = sectionY == h >> 4 ? h & 15 : 15; y >= 0; y--) {
+					int color = MAP_COLORS[data[y << 8 | column]];
+					if ((color & 0xff000000) != 0) {
+						return color;
+					}
+				}
+			}
+			// Nothing found, use the bottom block like the game does.
+			return 0xff000000 | MAP_COLORS[getBlockIdWithMeta(storage, column,
+					0)];
 		}
 	}
 
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner.DangerSource;
+import net.famzangl.minecraft.minebot.ai.path.MoveScanner.ScannerPolicy;
+import net.famzangl.minecraft.minebot.ai.path.world.BlockSets;
+import net.famzangl.minecraft.minebot.ai.path.world.WorldData;
+import net.famzangl.minecraft.minebot.settings.MinebotSettingsRoot;
+import net.minecraft.block.Block;
+import net.minecraft.client.multiplayer.WorldClient;
+import net.minecraft.init.Blocks;
+import net.minecraft.init.Bootstrap;
+import net.minecraft.util.BlockPos;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MoveScannerTest {
+	private static final BlockPos MOB = new BlockPos(8, 70, 8);
+	private static final int ZOMBIE = 20;
+	/**
+	 * The player position in the {@link TestWorld}.
+	 */
+	private static final BlockPos PLAYER = new BlockPos(8, 5, 8);
+
+	@BeforeClass
+	public static void registerBlocks() {
+		Bootstrap.register();
+	}
+
+	private static MoveScanner createScanner() {
+		final WorldData air = new WorldData((WorldClient) null) {
+			@Override
+			public char[] getSectionCopy(int chunkX, int chunkZ, int sectionY) {
+				return null;
+			}
+		};
+		final MoveScanner scanner = new MoveScanner(air,
+				new MoveScanner.ScannerPolicy(
+						BlockSets.HEAD_CAN_WALK_TRHOUGH,
+						BlockSets.FEET_CAN_WALK_THROUGH, BlockSets.SAFE_GROUND));
+		scanner.scanAround(MOB);
+		return scanner;
+	}
+
+	private static void waitForDanger(MoveScanner scanner, int expected)
+			throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (getDanger(scanner, MOB) != expected
+				&& System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, getDanger(scanner, MOB));
+	}
+
+	private static int getDanger(MoveScanner scanner, BlockPos pos) {
+		return scanner.getDanger(pos.getX(), pos.getY(), pos.getZ());
+	}
+
+	/**
+	 * The cost {@link MovePathFinder} adds for a step to that position.
+	 */
+	private static int getDangerCost(MoveScanner scanner, BlockPos pos) {
+		return getDanger(scanner, pos) / MovePathFinder.DANGER_PER_COST;
+	}
+
+	@Test
+	public void testMobMakesStepsExpensive() throws InterruptedException {
+		final MoveScanner scanner = createScanner();
+		assertEquals(0, getDangerCost(scanner.createView(), MOB));
+
+		scanner.setDangerSources(Arrays.asList(new DangerSource(MOB, ZOMBIE)));
+		waitForDanger(scanner, ZOMBIE);
+		final MoveScanner view = scanner.createView();
+		assertEquals(5, getDangerCost(view, MOB));
+		assertEquals(4, getDangerCost(view, MOB.east(3)));
+		assertEquals(2, getDangerCost(view, MOB.west(5).up(7)));
+		assertEquals(0, getDangerCost(view, MOB.south(ZOMBIE)));
+	}
+
+	@Test
+	public void testViewDoesNotChange() throws InterruptedException {
+		final MoveScanner scanner = createScanner();
+		scanner.setDangerSources(Arrays.asList(new DangerSource(MOB, ZOMBIE)));
+		waitForDanger(scanner, ZOMBIE);
+		final MoveScanner view = scanner.createView();
+
+		scanner.setDangerSources(Collections.<DangerSource> emptyList());
+		waitForDanger(scanner, 0);
+		assertEquals(ZOMBIE, getDanger(view, MOB));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testViewCannotBeUpdated() {
+		createScanner().createView().update(MOB);
+	}
+
+	/**
+	 * A small world: A stone floor with walls, a low stone ceiling, a gravel
+	 * ceiling, some lava and a platform that crosses the section border.
+	 */
+	private static class TestWorld extends WorldData {
+		private static final int STONE = Block.getIdFromBlock(Blocks.stone) << 4;
+		private static final int GRAVEL = Block.getIdFromBlock(Blocks.gravel) << 4;
+		private static final int LAVA = Block.getIdFromBlock(Blocks.lava) << 4;
+
+		public TestWorld() {
+			super((WorldClient) null);
+		}
+
+		private static int getBlock(int x, int y, int z) {
+			if (y <= 4) {
+				return STONE;
+			} else if (x == 12 && y <= 6) {
+				// wall
+				return STONE;
+			} else if (x < 0 && z < 0 && y == 7) {
+				return STONE;
+			} else if (x < 0 && z > 8 && y == 7) {
+				return GRAVEL;
+			} else if (x == 5 && z == 10 && y == 5 || x == 20 && z == 3
+					&& y == 4) {
+				return LAVA;
+			} else if (x > 14 && z > 14 && y <= 15) {
+				// platform, walked on in the second section.
+				return STONE;
+			} else {
+				return AIR_ID;
+			}
+		}
+
+		@Override
+		protected ChunkAccessor getChunkAccessor(final int blockX,
+				final int blockZ) {
+			return new ChunkAccessor() {
+				@Override
+				public char[] getSectionData(int sectionY) {
+					final char[] section = new char[16 * 16 * 16];
+					for (int i = 0; i < section.length; i++) {
+						section[i] = (char) getBlock((blockX & ~15) + (i & 15),
+								(sectionY << 4) + (i >> 8), (blockZ & ~15)
+										+ (i >> 4 & 15));
+					}
+					return section;
+				}
+
+				@Override
+				public int getBlockIdWithMeta(int x, int y, int z) {
+					return getBlock(x, y, z);
+				}
+			};
+		}
+
+		@Override
+		public MoveScanner getMoveScanner(ScannerPolicy policy) {
+			// Forces the path finder to use the planes.
+			return null;
+		}
+	}
+
+	private static class PlanesPathFinder extends MovePathFinder {
+		public PlanesPathFinder(WorldData world) {
+			super(true, new MinebotSettingsRoot());
+			searchSomethingAround(PLAYER, null, world, null);
+		}
+
+		@Override
+		protected boolean runSearch(BlockPos playerPosition) {
+			return true;
+		}
+
+		public boolean isSafeToGoHorizontally(int x, int y, int z) {
+			return isSafeToTravel(getIndexForBlock(x - 1, y, z), x, y, z);
+		}
+	}
+
+	@Test
+	public void testSameAsPathFinder() throws InterruptedException {
+		final TestWorld world = new TestWorld();
+		final PlanesPathFinder pathFinder = new PlanesPathFinder(world);
+		final MoveScanner scanner = new MoveScanner(world,
+				pathFinder.getScannerPolicy());
+		for (int i = 0; i < 10; i++) {
+			scanner.scanAround(PLAYER);
+		}
+
+		int safe = 0;
+		int unsafe = 0;
+		for (int y = 1; y < 30; y++) {
+			for (int x = -8; x < 24; x++) {
+				for (int z = -8; z < 24; z++) {
+					final long end = System.currentTimeMillis() + 5000;
+					while (scanner.isSafeToGo(x, y, z) == MoveScanner.UNKNOWN
+							&& System.currentTimeMillis() < end) {
+						Thread.sleep(10);
+					}
+					final boolean expected = pathFinder
+							.isSafeToGoHorizontally(x, y, z);
+					assertEquals("At " + x + "," + y + "," + z,
+							expected ? MoveScanner.SAFE : MoveScanner.UNSAFE,
+							scanner.isSafeToGo(x, y, z));
+					if (expected) {
+						safe++;
+					} else {
+						unsafe++;
+					}
+				}
+			}
+		}
+		assertTrue(safe > 0);
+		assertTrue(unsafe > 0);
+	}
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This file is part of Minebot.
+ *
+ * Minebot is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Minebot is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Minebot.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package net.famzangl.minecraft.minebot.ai.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ReachableIndexTest {
+
+	@Test
+	public void testEmpty() {
+		final ReachableIndex<String> index = new ReachableIndex<String>();
+		assertNull(index.get(0, 0, 0));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testSamePosition() {
+		final ReachableIndex<String> index = new ReachableIndex<String>();
+		index.add(3, 64, 5, "a");
+		index.add(3, 64, 5, "b");
+		assertEquals(Arrays.asList("a", "b"), index.get(3, 64, 5));
+		assertEquals(1, index.size());
+		assertNull(index.get(3, 65, 5));
+	}
+
+	@Test
+	public void testGrow() {
+		final ReachableIndex<Integer> index = new ReachableIndex<Integer>();
+		int added = 0;
+		for (int x = -20; x < 20; x++) {
+			for (int z = -20; z < 20; z++) {
+				index.add(x, 70 + (x & 3), z, added++);
+			}
+		}
+		assertEquals(added, index.size());
+		int expected = 0;
+		for (int x = -20; x < 20; x++) {
+			for (int z = -20; z < 20; z++) {
+				final ArrayList<Integer> list = index.get(x, 70 + (x & 3), z);
+				assertEquals(Arrays.asList(expected++), list);
+			}
+		}
+		assertNull(index.get(20, 70, 0));
+	}
+
+	@Test
+	public void testAddDuringGrow() {
+		final ReachableIndex<Integer> index = new ReachableIndex<Integer>();
+		// Fill the initial table to the limit, then add to an existing entry
+		// and a new one.
+		for (int i = 0; i < 32; i++) {
+			index.add(i, 1, 0, i);
+		}
+		index.add(0, 1, 0, 100);
+		index.add(32, 1, 0, 32);
+		assertEquals(33, index.size());
+		assertEquals(Arrays.asList(0, 100), index.get(0, 1, 0));
+		assertEquals(Arrays.asList(32), index.get(32, 1, 0));
+	}
+
+	@Test
+	public void testNegativeCoordinates() {
+		final ReachableIndex<String> index = new ReachableIndex<String>();
+		index.add(-1, 10, -1, "negative");
+		index.add(1, 10, 1, "positive");
+		index.add(-1, 10, 1, "mixed");
+		index.add(-30000000, 0, 30000000, "border");
+		index.add(30000000, 255, -30000000, "other border");
+		assertEquals(Arrays.asList("negative"), index.get(-1, 10, -1));
+		assertEquals(Arrays.asList("positive"), index.get(1, 10, 1));
+		assertEquals(Arrays.asList("mixed"), index.get(-1, 10, 1));
+		assertNull(index.get(1, 10, -1));
+		assertEquals(Arrays.asList("border"),
+				index.get(-30000000, 0, 30000000));
+		assertEquals(Arrays.asList("other border"),
+				index.get(30000000, 255, -30000000));
+		assertNull(index.get(-30000000, 0, -30000000));
+	}
+}